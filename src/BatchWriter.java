@@ -0,0 +1,372 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
+
+// class that writes many tiles at once by committing them as multi() transactions of up to batchSize operations
+// several transactions are kept in flight at a time, and batches that fail because another client created or
+// deleted nodes at the same time are retried once every batch has completed
+public class BatchWriter {
+
+    public static final int defaultBatchSize = 500; // operations per transaction, small enough to stay far below the request size limit
+    public static final int defaultMaxInFlight = 8; // transactions waiting for a response at once
+
+    // class containing the tile writes of one transaction
+    static class Batch {
+
+        int chunkX;
+        int chunkY;
+        List<int[]> tiles; // { tile x, tile y, palette index } of each tile written by the batch
+
+        Batch(int chunkX, int chunkY) {
+            this.chunkX = chunkX;
+            this.chunkY = chunkY;
+            this.tiles = new ArrayList<int[]>();
+        }
+    }
+
+    Client client;
+    int batchSize;
+    Semaphore inFlight;
+    int maxInFlight;
+    List<Batch> failedBatches; // batches to retry in flush, only used while holding batchLock
+    HashSet<ZooKeeperMonitor> monitorsWithRoot; // the sessions whose ensemble is known to have the root node
+    AtomicInteger tilesWritten;
+    KeeperException lastError; // the last error that was not caused by another client, only used while holding batchLock
+    HashMap<Long, int[]> writtenVersions; // the version each written tile's node was left at per chunk, null unless tracked
+    HashMap<Long, byte[]> writtenChunkSummaries; // the summary of each chunk written since the last flush, null for chunks that were only partly written, only used while holding batchLock
+    Object batchLock = new Object();
+
+    public BatchWriter(Client client, int batchSize, int maxInFlight) {
+        this.client = client;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.inFlight = new Semaphore(this.maxInFlight);
+        this.failedBatches = new ArrayList<Batch>();
+        this.monitorsWithRoot = new HashSet<ZooKeeperMonitor>();
+        this.tilesWritten = new AtomicInteger(0);
+        this.lastError = null;
+        this.writtenVersions = null;
+        this.writtenChunkSummaries = new HashMap<Long, byte[]>();
+    }
+
+    // uses the client's configured batch size, keeping its max in flight transactions in flight for each of its write sessions
+    public BatchWriter(Client client) {
+        this(client, client.config.batchSize, client.config.maxInFlight * client.getNumWriteSessions());
+    }
+
+    // starts recording the version each tile's node is left at by the writes, e.g. so that they can be undone
+    public void trackVersions() {
+        writtenVersions = new HashMap<Long, int[]>();
+    }
+
+    // returns the version each tile of a chunk was left at row by row (-1 for tiles that were not written), or null if
+    // no tiles of the chunk were written
+    public int[] getWrittenVersions(int chunkX, int chunkY) {
+        synchronized (batchLock) {
+            return writtenVersions.get(((long) chunkX << 32) | (chunkY & 0xffffffffL));
+        }
+    }
+
+    // queues the writes of a chunk's tiles, given as the palette index of every tile row by row (transparent tiles are skipped)
+    // this waits only when maxInFlight transactions are already waiting for a response
+    public void writeChunk(int chunkX, int chunkY, int colors[]) throws KeeperException, InterruptedException {
+
+        Batch batch = new Batch(chunkX, chunkY);
+        ChunkSummary summary = new ChunkSummary();
+
+        for (int y = 0; y < Chunk.size; y++) {
+            for (int x = 0; x < Chunk.size; x++) {
+
+                int colorIndex = colors[y * Chunk.size + x];
+
+                if (colorIndex == CanvasImage.transparent) {
+                    summary = null;
+                    continue;
+                }
+
+                if (summary != null) {
+                    summary.updateTile(x, y, Palette.defaultColorIndex, colorIndex);
+                }
+
+                batch.tiles.add(new int[] { x, y, colorIndex });
+
+                if (batch.tiles.size() == batchSize) {
+                    submit(batch);
+                    batch = new Batch(chunkX, chunkY);
+                }
+            }
+        }
+
+        if (!batch.tiles.isEmpty()) {
+            submit(batch);
+        }
+
+        // a chunk whose every tile was written has a known summary, the others have to be read back to be summarized
+        synchronized (batchLock) {
+            writtenChunkSummaries.put(((long) chunkX << 32) | (chunkY & 0xffffffffL), summary == null ? null : summary.serialize());
+        }
+    }
+
+    // sends a batch as an asynchronous transaction
+    void submit(Batch batch) throws KeeperException, InterruptedException {
+
+        ZooKeeperMonitor chunkZkm = client.zkmForWrite(batch.chunkX, batch.chunkY);
+        List<Op> ops = buildOps(chunkZkm, batch);
+
+        // every tile counts towards the client's batch rate limit, so a large batch waits longer before it is sent
+        client.batchLimiter.acquire(batch.tiles.size());
+        inFlight.acquire();
+
+        chunkZkm.asyncMulti(ops, (rc, path, ctx, results) -> {
+
+            if (Code.get(rc) == Code.OK) {
+                recordWrites(batch, results);
+            } else {
+                synchronized (batchLock) {
+                    failedBatches.add(batch);
+
+                    // batches that failed because ZooKeeper could not keep up are retried more slowly in flush
+                    if (Client.isOverloadError(Code.get(rc))) {
+                        client.batchLimiter.backOff();
+                    } else if (Code.get(rc) != Code.NODEEXISTS && Code.get(rc) != Code.NONODE) {
+                        lastError = KeeperException.create(Code.get(rc));
+                    }
+                }
+            }
+
+            inFlight.release();
+        }, null);
+    }
+
+    // builds the operations of a batch, creating the chunk's nodes and any tile nodes that do not exist yet
+    List<Op> buildOps(ZooKeeperMonitor chunkZkm, Batch batch) throws KeeperException, InterruptedException {
+
+        String chunkPath = Helpers.chunkCoordsToNodePath(batch.chunkX, batch.chunkY);
+        String chunkTilesNodePath = Helpers.tilesPathForChunkCoords(batch.chunkX, batch.chunkY);
+        List<Op> ops = new ArrayList<Op>();
+        HashSet<String> existingTileNames = new HashSet<String>();
+
+        if (!monitorsWithRoot.contains(chunkZkm)) {
+            if (!chunkZkm.syncExists(Helpers.rootNodePath, false)) {
+                try {
+                    chunkZkm.syncCreate(Helpers.rootNodePath, false, null);
+                } catch (KeeperException.NodeExistsException e) {
+                    // another client created it first
+                }
+            }
+            monitorsWithRoot.add(chunkZkm);
+        }
+
+        // one listing tells which tiles of the chunk already have nodes
+        try {
+            existingTileNames.addAll(chunkZkm.syncGetChildren(chunkTilesNodePath, false));
+        } catch (KeeperException.NoNodeException e) {
+            if (!chunkZkm.syncExists(chunkPath, false)) {
+                ops.add(Op.create(chunkPath, null, Ids.OPEN_ACL_UNSAFE, CreateMode.CONTAINER));
+            }
+            ops.add(Op.create(chunkTilesNodePath, null, Ids.OPEN_ACL_UNSAFE, CreateMode.CONTAINER));
+        }
+
+        for (int tile[] : batch.tiles) {
+
+            String tilePath = Helpers.tileCoordsToNodePath(batch.chunkX, batch.chunkY, tile[0], tile[1]);
+            byte[] colorData = Colorer.colorIndexToData(tile[2]);
+
+            if (existingTileNames.contains(Helpers.tileNameFromPath(tilePath))) {
+                ops.add(Op.setData(tilePath, colorData, -1));
+            } else {
+                ops.add(Op.create(tilePath, colorData, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+            }
+        }
+
+        return ops;
+    }
+
+    // records the tiles a successful transaction wrote in the chunk directory
+    void recordWrites(Batch batch, List<OpResult> results) {
+
+        long zxid = 0;
+
+        for (OpResult result : results) {
+            if (result instanceof OpResult.SetDataResult) {
+                zxid = Math.max(zxid, ((OpResult.SetDataResult) result).getStat().getMzxid());
+            }
+        }
+
+        // the first operations may have created the chunk's nodes, the rest are one per tile
+        int firstTileResult = results.size() - batch.tiles.size();
+
+        for (int i = firstTileResult; i < results.size(); i++) {
+            client.directory.recordWrite(batch.chunkX, batch.chunkY, results.get(i) instanceof OpResult.CreateResult, zxid);
+        }
+
+        if (writtenVersions != null) {
+            synchronized (batchLock) {
+
+                int versions[] = writtenVersions.computeIfAbsent(((long) batch.chunkX << 32) | (batch.chunkY & 0xffffffffL), (key) -> {
+                    int newVersions[] = new int[Chunk.size * Chunk.size];
+                    Arrays.fill(newVersions, -1);
+                    return newVersions;
+                });
+
+                // a created node always starts at version 0
+                for (int i = 0; i < batch.tiles.size(); i++) {
+                    OpResult result = results.get(firstTileResult + i);
+                    int tile[] = batch.tiles.get(i);
+                    versions[tile[1] * Chunk.size + tile[0]] = result instanceof OpResult.SetDataResult ? ((OpResult.SetDataResult) result).getStat().getVersion() : 0;
+                }
+            }
+        }
+
+        tilesWritten.addAndGet(batch.tiles.size());
+    }
+
+    // writes a chunk's tiles in one transaction, each only if its node is still at the given version (tiles with a
+    // version of -1 are skipped), and returns the version each tile was left at, or -1 for tiles that were skipped or
+    // had been changed by someone else, whose writes are dropped from the transaction before it is sent again
+    public int[] writeChunkConditionally(int chunkX, int chunkY, int colors[], int versions[]) throws KeeperException, InterruptedException {
+
+        ZooKeeperMonitor chunkZkm = client.zkmForWrite(chunkX, chunkY);
+        int writtenVersions[] = new int[Chunk.size * Chunk.size];
+        List<Integer> tileIndices = new ArrayList<Integer>();
+        Arrays.fill(writtenVersions, -1);
+
+        synchronized (batchLock) {
+            writtenChunkSummaries.put(((long) chunkX << 32) | (chunkY & 0xffffffffL), null);
+        }
+
+        for (int i = 0; i < versions.length; i++) {
+            if (versions[i] >= 0) {
+                tileIndices.add(i);
+            }
+        }
+
+        int overloadRetries = 0;
+
+        while (!tileIndices.isEmpty()) {
+
+            List<Op> ops = new ArrayList<Op>();
+
+            for (int i : tileIndices) {
+                String tilePath = Helpers.tileCoordsToNodePath(chunkX, chunkY, i % Chunk.size, i / Chunk.size);
+                ops.add(Op.setData(tilePath, Colorer.colorIndexToData(colors[i]), versions[i]));
+            }
+
+            client.batchLimiter.acquire(ops.size());
+
+            try {
+                List<OpResult> results = chunkZkm.syncMulti(ops);
+                long zxid = 0;
+
+                for (int k = 0; k < results.size(); k++) {
+                    Stat stat = ((OpResult.SetDataResult) results.get(k)).getStat();
+                    writtenVersions[tileIndices.get(k)] = stat.getVersion();
+                    zxid = Math.max(zxid, stat.getMzxid());
+                }
+
+                for (int k = 0; k < results.size(); k++) {
+                    client.directory.recordWrite(chunkX, chunkY, false, zxid);
+                }
+                break;
+
+            } catch (KeeperException e) {
+
+                if (Client.isOverloadError(e.code())) {
+                    client.waitForRetryAfterOverload(client.batchLimiter, overloadRetries++);
+                    continue;
+                }
+
+                if (e.getResults() == null || (e.code() != Code.BADVERSION && e.code() != Code.NONODE)) {
+                    throw e;
+                }
+
+                // the operations that failed on their own are the tiles someone else changed, the rest only failed with them
+                List<Integer> remainingTileIndices = new ArrayList<Integer>();
+
+                for (int k = 0; k < e.getResults().size(); k++) {
+                    OpResult result = e.getResults().get(k);
+                    if (!(result instanceof OpResult.ErrorResult) || ((OpResult.ErrorResult) result).getErr() == Code.OK.intValue() || ((OpResult.ErrorResult) result).getErr() == Code.RUNTIMEINCONSISTENCY.intValue()) {
+                        remainingTileIndices.add(tileIndices.get(k));
+                    }
+                }
+
+                // nothing can be dropped if no operation failed on its own
+                if (remainingTileIndices.size() == tileIndices.size()) {
+                    throw e;
+                }
+
+                tileIndices = remainingTileIndices;
+            }
+        }
+
+        return writtenVersions;
+    }
+
+    // waits for every queued transaction to complete and retries the ones that failed, returns the number of tiles written
+    // once every write is in, the summaries of the written chunks are published so the overview shows them
+    public int flush() throws KeeperException, InterruptedException {
+
+        inFlight.acquire(maxInFlight);
+        inFlight.release(maxInFlight);
+
+        List<Batch> batchesToRetry;
+
+        synchronized (batchLock) {
+
+            if (lastError != null) {
+                KeeperException error = lastError;
+                lastError = null;
+                failedBatches.clear();
+                throw error;
+            }
+
+            batchesToRetry = failedBatches;
+            failedBatches = new ArrayList<Batch>();
+        }
+
+        // the nodes have settled by now, so each retry is built from a fresh listing and sent on its own
+        for (Batch batch : batchesToRetry) {
+
+            int overloadRetries = 0;
+
+            while (true) {
+                try {
+                    ZooKeeperMonitor chunkZkm = client.zkmForWrite(batch.chunkX, batch.chunkY);
+                    List<Op> ops = buildOps(chunkZkm, batch);
+                    client.batchLimiter.acquire(batch.tiles.size());
+                    recordWrites(batch, chunkZkm.syncMulti(ops));
+                    break;
+                } catch (KeeperException e) {
+                    if (Client.isOverloadError(e.code())) {
+                        client.waitForRetryAfterOverload(client.batchLimiter, overloadRetries++);
+                    } else if (e.code() != Code.NODEEXISTS && e.code() != Code.NONODE) {
+                        throw e;
+                    }
+                }
+            }
+        }
+
+        HashMap<Long, byte[]> summaries;
+
+        synchronized (batchLock) {
+            summaries = writtenChunkSummaries;
+            writtenChunkSummaries = new HashMap<Long, byte[]>();
+        }
+
+        client.publishWrittenChunkSummaries(summaries);
+
+        return tilesWritten.getAndSet(0);
+    }
+}
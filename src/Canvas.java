@@ -1,6 +1,8 @@
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 
 public class Canvas {
     
@@ -60,11 +62,28 @@ public class Canvas {
         return chunksAtX.get(yCoord);
     }
 
+    // returns every chunk that has been added to the canvas
+    public List<Chunk> getAllChunks() {
+
+        List<Chunk> allChunks = new ArrayList<Chunk>();
+
+        for (HashMap<Integer, Chunk> chunksAtX : chunks.values()) {
+            allChunks.addAll(chunksAtX.values());
+        }
+
+        return allChunks;
+    }
+
     // returns the chunk object associated with a given path
     public Chunk getChunkWithPath(String path) {
         
         String parts[] = path.split("[,_/]");
 
+        // paths outside of a chunk, like the root node, do not belong to any chunk
+        if (parts.length < 5) {
+            return null;
+        }
+
         int chunkXCoord = -1;
         int chunkYCoord = -1;
 
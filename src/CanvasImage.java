@@ -0,0 +1,243 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+// class that converts between image files and palette indices, used to import and export regions of the canvas
+// PPM files (binary P6 or plain P3) are read and written directly, every other format goes through ImageIO (e.g. PNG)
+public class CanvasImage {
+
+    public static final int transparent = -1; // the palette index returned for pixels that should leave their tile unchanged
+    public static final int defaultMaxChunks = 400; // chunks an imported or exported region may span by default
+
+    // reads an image file and returns the palette index of each pixel as [y][x], quantized to the nearest palette color
+    // images with more than maxPixels pixels are rejected from their header, before their pixels are read
+    public static int[][] read(String fileName, Palette palette, long maxPixels) throws IOException {
+
+        if (isPPM(fileName)) {
+            return readPPM(fileName, palette, maxPixels);
+        }
+
+        BufferedImage image;
+
+        try (InputStream file = new BufferedInputStream(new FileInputStream(fileName)); ImageInputStream in = ImageIO.createImageInputStream(file)) {
+
+            Iterator<ImageReader> readers = in != null ? ImageIO.getImageReaders(in) : null;
+
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException(String.format("%s is not an image format that can be read", fileName));
+            }
+
+            ImageReader reader = readers.next();
+
+            try {
+                reader.setInput(in);
+                checkSize(fileName, reader.getWidth(0), reader.getHeight(0), maxPixels);
+                image = reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+
+        Quantizer quantizer = new Quantizer(palette);
+        int colors[][] = new int[image.getHeight()][image.getWidth()];
+        int row[] = new int[image.getWidth()];
+
+        for (int y = 0; y < image.getHeight(); y++) {
+
+            image.getRGB(0, y, image.getWidth(), 1, row, 0, image.getWidth());
+
+            for (int x = 0; x < row.length; x++) {
+
+                // mostly transparent pixels do not paint their tile
+                if (image.getColorModel().hasAlpha() && (row[x] >>> 24) < 128) {
+                    colors[y][x] = transparent;
+                } else {
+                    colors[y][x] = quantizer.indexForRGB(row[x] & 0xffffff);
+                }
+            }
+        }
+
+        return colors;
+    }
+
+    // writes the palette indices given as [y][x] to an image file, picking the format from the file's extension
+    public static void write(String fileName, int colors[][], Palette palette) throws IOException {
+
+        int height = colors.length;
+        int width = height > 0 ? colors[0].length : 0;
+
+        if (isPPM(fileName)) {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName))) {
+
+                out.write(String.format("P6\n%d %d\n255\n", width, height).getBytes(StandardCharsets.US_ASCII));
+
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        int rgb = palette.rgbForIndex(colors[y][x]);
+                        out.write((rgb >> 16) & 0xff);
+                        out.write((rgb >> 8) & 0xff);
+                        out.write(rgb & 0xff);
+                    }
+                }
+            }
+            return;
+        }
+
+        String extension = fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase();
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, palette.rgbForIndex(colors[y][x]));
+            }
+        }
+
+        if (!ImageIO.write(image, extension, new File(fileName))) {
+            throw new IOException(String.format("images cannot be written as %s", extension));
+        }
+    }
+
+    static boolean isPPM(String fileName) {
+        String lowerFileName = fileName.toLowerCase();
+        return lowerFileName.endsWith(".ppm") || lowerFileName.endsWith(".pnm");
+    }
+
+    // throws an exception if an image has more pixels than maxPixels
+    static void checkSize(String fileName, int width, int height, long maxPixels) throws IOException {
+
+        if ((long) width * height > maxPixels) {
+            throw new IOException(String.format("%s is %dx%d, more than the limit of %d pixels", fileName, width, height, maxPixels));
+        }
+    }
+
+    // reads a binary (P6) or plain (P3) PPM file
+    static int[][] readPPM(String fileName, Palette palette, long maxPixels) throws IOException {
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)))) {
+
+            String magic = readPPMToken(in);
+
+            if (!magic.equals("P6") && !magic.equals("P3")) {
+                throw new IOException(String.format("%s is not a P3 or P6 PPM file", fileName));
+            }
+
+            int width;
+            int height;
+            int maxValue;
+
+            try {
+                width = Integer.parseInt(readPPMToken(in));
+                height = Integer.parseInt(readPPMToken(in));
+                maxValue = Integer.parseInt(readPPMToken(in));
+            } catch (NumberFormatException e) {
+                throw new IOException(String.format("%s has an invalid PPM header", fileName));
+            }
+
+            if (width <= 0 || height <= 0 || maxValue <= 0 || maxValue > 65535) {
+                throw new IOException(String.format("%s has an invalid PPM header", fileName));
+            }
+
+            checkSize(fileName, width, height, maxPixels);
+
+            Quantizer quantizer = new Quantizer(palette);
+            int colors[][] = new int[height][width];
+            int channels[] = new int[3];
+
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+
+                    for (int c = 0; c < 3; c++) {
+                        if (magic.equals("P3")) {
+                            channels[c] = Integer.parseInt(readPPMToken(in));
+                        } else if (maxValue < 256) {
+                            channels[c] = in.readUnsignedByte();
+                        } else {
+                            channels[c] = in.readUnsignedShort();
+                        }
+
+                        channels[c] = channels[c] * 255 / maxValue;
+                    }
+
+                    colors[y][x] = quantizer.indexForRGB((channels[0] << 16) | (channels[1] << 8) | channels[2]);
+                }
+            }
+
+            return colors;
+        } catch (NumberFormatException e) {
+            throw new IOException(String.format("%s has invalid PPM pixel data", fileName));
+        }
+    }
+
+    // reads the next whitespace separated token of a PPM header, skipping comments
+    // exactly one whitespace character after the token is consumed, which is what separates the header from binary data
+    static String readPPMToken(InputStream in) throws IOException {
+
+        StringBuilder token = new StringBuilder();
+        int c;
+
+        while ((c = in.read()) != -1) {
+
+            if (c == '#' && token.length() == 0) {
+                while ((c = in.read()) != -1 && c != '\n') {
+                    // skip the rest of the comment
+                }
+            } else if (Character.isWhitespace(c)) {
+                if (token.length() > 0) {
+                    break;
+                }
+            } else {
+                token.append((char) c);
+            }
+        }
+
+        if (token.length() == 0) {
+            throw new IOException("unexpected end of PPM file");
+        }
+
+        return token.toString();
+    }
+
+    // class that finds the nearest palette color of pixels, caching the result for each 15-bit color
+    // images can have far more distinct colors than fit in the cache, so colors are first reduced to 5 bits per channel
+    static class Quantizer {
+
+        Palette palette;
+        int cachedIndices[];
+
+        Quantizer(Palette palette) {
+            this.palette = palette;
+            this.cachedIndices = new int[32 * 32 * 32];
+            Arrays.fill(cachedIndices, -1);
+        }
+
+        int indexForRGB(int rgb) {
+
+            int key = ((rgb >> 9) & 0x7c00) | ((rgb >> 6) & 0x3e0) | ((rgb >> 3) & 0x1f);
+
+            if (cachedIndices[key] < 0) {
+
+                // the reduced color scaled back up to 8 bits per channel, which the default palette contains exactly
+                int r = ((key >> 10) & 31) * 255 / 31;
+                int g = ((key >> 5) & 31) * 255 / 31;
+                int b = (key & 31) * 255 / 31;
+                cachedIndices[key] = palette.indexForRGB((r << 16) | (g << 8) | b);
+            }
+
+            return cachedIndices[key];
+        }
+    }
+}
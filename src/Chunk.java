@@ -1,3 +1,6 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 
 public class Chunk {
@@ -9,12 +12,18 @@ public class Chunk {
     public Tile tiles[][];
     public List<String> tileNodeNames;
     public List<String> lastReceivedTileNodeNames;
+    public ChunkSummary summary; // downsampled version of the chunk, kept up to date as tiles change
+    public byte[] lastPublishedSummary; // the summary data last written to the chunk node by this client
+    public long lastLocalWriteTime; // the last time this client wrote a tile in the chunk
     Object tileLock = new Object();
     
     public Chunk(int x, int y) {
         this.xCoord = x;
         this.yCoord = y;
         this.path = Helpers.chunkCoordsToNodePath(x, y);
+        this.summary = new ChunkSummary();
+        this.lastPublishedSummary = null;
+        this.lastLocalWriteTime = 0;
         
         // initialize the 2D tile array
         this.tiles = new Tile[size][];
@@ -41,18 +50,96 @@ public class Chunk {
         return tile;
     }
 
-    // set the color of a given tile
-    public void setTileColor(int x, int y, Colorer.Color color) {
+    // set the color of a given tile, along with the version and mzxid of the tile node it came from
+    // returns false if the color was dropped because the tile already reflects a newer write
+    public boolean setTileColor(int x, int y, int colorIndex, int version, long mzxid) {
         synchronized (tileLock) {
             Tile tile = getTile(x, y);
-            tile.setColor(color);
+            int oldColorIndex = tile.getColorIndex();
+            boolean applied = tile.setColor(colorIndex, version, mzxid);
+            summary.updateTile(x, y, oldColorIndex, tile.getColorIndex());
+            return applied;
         }
     }
 
-    // returns true if a given tile is in the old list or not
-    public boolean tileWasInPreviousList(String tileName) {
+    // shows a color that this client is writing before ZooKeeper has acknowledged it
+    public void setPendingTileColor(int x, int y, int colorIndex) {
         synchronized (tileLock) {
-            return lastReceivedTileNodeNames != null && lastReceivedTileNodeNames.contains(tileName);
+            Tile tile = getTile(x, y);
+            int oldColorIndex = tile.getColorIndex();
+            tile.setPendingColor(colorIndex);
+            summary.updateTile(x, y, oldColorIndex, tile.getColorIndex());
+        }
+    }
+
+    // records that ZooKeeper acknowledged a write of the tile, returns false if the tile already reflected a newer write
+    public boolean confirmTileColor(int x, int y, int colorIndex, int version, long mzxid) {
+        synchronized (tileLock) {
+            Tile tile = getTile(x, y);
+            int oldColorIndex = tile.getColorIndex();
+            boolean applied = tile.confirmPendingColor(colorIndex, version, mzxid);
+            summary.updateTile(x, y, oldColorIndex, tile.getColorIndex());
+            return applied;
+        }
+    }
+
+    // records that a write of the tile failed, which reverts it to its confirmed color once no writes are pending
+    public void cancelTileColor(int x, int y) {
+        synchronized (tileLock) {
+            Tile tile = getTile(x, y);
+            int oldColorIndex = tile.getColorIndex();
+            tile.cancelPendingColor();
+            summary.updateTile(x, y, oldColorIndex, tile.getColorIndex());
+        }
+    }
+
+    // returns the version of the tile node that a tile's color came from, -1 if the node is not known to exist
+    public int getTileVersion(int x, int y) {
+        synchronized (tileLock) {
+            return getTile(x, y).version;
+        }
+    }
+
+    // returns the summary data if it changed since it was last published, otherwise null
+    public byte[] getUnpublishedSummary() {
+        synchronized (tileLock) {
+            byte[] summaryData = summary.serialize();
+            return Arrays.equals(summaryData, lastPublishedSummary) ? null : summaryData;
+        }
+    }
+
+    // records the summary data that was written to the chunk node
+    public void setPublishedSummary(byte[] summaryData) {
+        synchronized (tileLock) {
+            lastPublishedSummary = summaryData;
+        }
+    }
+
+    // returns true if the chunk's tiles have been listed since it was last (re)loaded
+    public boolean hasPreviousList() {
+        synchronized (tileLock) {
+            return lastReceivedTileNodeNames != null;
+        }
+    }
+
+    // returns the tiles of a new listing that were not in the old list (every tile if there is no old list)
+    public List<String> tilesNotInPreviousList(List<String> tileNames) {
+        synchronized (tileLock) {
+
+            if (lastReceivedTileNodeNames == null) {
+                return new ArrayList<String>(tileNames);
+            }
+
+            HashSet<String> previousTileNames = new HashSet<String>(lastReceivedTileNodeNames);
+            List<String> newTileNames = new ArrayList<String>();
+
+            for (String tileName : tileNames) {
+                if (!previousTileNames.contains(tileName)) {
+                    newTileNames.add(tileName);
+                }
+            }
+
+            return newTileNames;
         }
     }
 
@@ -0,0 +1,300 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.data.Stat;
+
+// class that maintains an index of every chunk along with how active it is
+// chunks are grouped into square regions and each region's entries are stored as the data of one directory node
+public class ChunkDirectory {
+
+    public static final int regionSize = 16; // height and width of a region in chunks
+    public static final long writeRateHalfLife = 60000; // milliseconds for a chunk's recent write count to decay by half
+
+    // class containing the directory entry of one chunk
+    public static class Entry {
+
+        public int chunkX;
+        public int chunkY;
+        public int tileCount; // the number of tile nodes that have been created in the chunk
+        public long lastModifiedZxid; // the zxid of the most recent write to the chunk that a writer reported
+        public double recentWrites; // number of writes, decayed with writeRateHalfLife
+        public long updatedTime; // the time recentWrites was last decayed
+
+        public Entry(int chunkX, int chunkY) {
+            this.chunkX = chunkX;
+            this.chunkY = chunkY;
+            this.tileCount = 0;
+            this.lastModifiedZxid = 0;
+            this.recentWrites = 0;
+            this.updatedTime = System.currentTimeMillis();
+        }
+
+        // returns the recent write count decayed to the given time
+        public double recentWritesAt(long time) {
+            return recentWrites * Math.pow(0.5, Math.max(0, time - updatedTime) / (double) writeRateHalfLife);
+        }
+
+        // adds the counts of another entry for the same chunk to this entry
+        public void merge(Entry other) {
+            long time = Math.max(updatedTime, other.updatedTime);
+            recentWrites = recentWritesAt(time) + other.recentWritesAt(time);
+            updatedTime = time;
+            tileCount = Math.min(tileCount + other.tileCount, Chunk.size * Chunk.size);
+            lastModifiedZxid = Math.max(lastModifiedZxid, other.lastModifiedZxid);
+        }
+
+        // converts the entry to a line of the region node's data
+        public String toLine() {
+            return String.format(Locale.ROOT, "%d,%d %d %d %.3f %d", chunkX, chunkY, tileCount, lastModifiedZxid, recentWrites, updatedTime);
+        }
+
+        // creates an entry from a line of a region node's data, returns null if the line is invalid
+        public static Entry fromLine(String line) {
+
+            String parts[] = line.trim().split("[, ]");
+
+            if (parts.length != 6) {
+                return null;
+            }
+
+            try {
+                Entry entry = new Entry(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+                entry.tileCount = Integer.parseInt(parts[2]);
+                entry.lastModifiedZxid = Long.parseLong(parts[3]);
+                entry.recentWrites = Double.parseDouble(parts[4]);
+                entry.updatedTime = Long.parseLong(parts[5]);
+                return entry;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    ZooKeeperMonitor zkm;
+    HashMap<String, Entry> pendingEntries; // writes recorded since the last flush, keyed by chunk coordinates
+    Object pendingLock = new Object();
+
+    public ChunkDirectory(ZooKeeperMonitor zkm) {
+        this.zkm = zkm;
+        this.pendingEntries = new HashMap<String, Entry>();
+    }
+
+    // records a write to a tile so that it is included in the next flush
+    public void recordWrite(int chunkX, int chunkY, boolean createdTile, long zxid) {
+
+        synchronized (pendingLock) {
+
+            String key = String.format("%d,%d", chunkX, chunkY);
+            Entry entry = pendingEntries.get(key);
+
+            if (entry == null) {
+                entry = new Entry(chunkX, chunkY);
+                pendingEntries.put(key, entry);
+            }
+
+            entry.recentWrites++;
+            entry.lastModifiedZxid = Math.max(entry.lastModifiedZxid, zxid);
+
+            if (createdTile) {
+                entry.tileCount++;
+            }
+        }
+    }
+
+    // merges the writes recorded since the last flush into the region nodes, one conditional write per region
+    public void flush() throws KeeperException, InterruptedException {
+
+        HashMap<String, Entry> entriesToFlush;
+
+        synchronized (pendingLock) {
+            if (pendingEntries.isEmpty()) {
+                return;
+            }
+
+            entriesToFlush = pendingEntries;
+            pendingEntries = new HashMap<String, Entry>();
+        }
+
+        // group the entries by region
+        HashMap<String, List<Entry>> entriesByRegion = new HashMap<String, List<Entry>>();
+
+        for (Entry entry : entriesToFlush.values()) {
+            String regionPath = Helpers.regionCoordsToNodePath(Math.floorDiv(entry.chunkX, regionSize), Math.floorDiv(entry.chunkY, regionSize));
+            entriesByRegion.computeIfAbsent(regionPath, (path) -> new ArrayList<Entry>()).add(entry);
+        }
+
+        try {
+            if (!zkm.syncExists(Helpers.directoryNodePath, false)) {
+                zkm.syncCreate(Helpers.directoryNodePath, false, null);
+            }
+        } catch (KeeperException e) {
+            if (e.code() != Code.NODEEXISTS) {
+                restorePendingEntries(entriesToFlush);
+                throw e;
+            }
+        }
+
+        List<String> regionPaths = new ArrayList<String>(entriesByRegion.keySet());
+
+        for (int i = 0; i < regionPaths.size(); i++) {
+            try {
+                mergeIntoRegion(regionPaths.get(i), entriesByRegion.get(regionPaths.get(i)));
+            } catch (KeeperException e) {
+
+                // keep the writes of the regions that were not flushed so they are retried on the next flush
+                HashMap<String, Entry> unflushedEntries = new HashMap<String, Entry>();
+
+                for (String regionPath : regionPaths.subList(i, regionPaths.size())) {
+                    for (Entry entry : entriesByRegion.get(regionPath)) {
+                        unflushedEntries.put(String.format("%d,%d", entry.chunkX, entry.chunkY), entry);
+                    }
+                }
+
+                restorePendingEntries(unflushedEntries);
+                throw e;
+            }
+        }
+    }
+
+    // adds entries that could not be flushed back to the pending entries
+    void restorePendingEntries(HashMap<String, Entry> entries) {
+
+        synchronized (pendingLock) {
+            for (String key : entries.keySet()) {
+                Entry pendingEntry = pendingEntries.get(key);
+
+                if (pendingEntry == null) {
+                    pendingEntries.put(key, entries.get(key));
+                } else {
+                    pendingEntry.merge(entries.get(key));
+                }
+            }
+        }
+    }
+
+    // reads a region node, merges the entries into it, and writes it back only if no other writer changed it in between
+    void mergeIntoRegion(String regionPath, List<Entry> entries) throws KeeperException, InterruptedException {
+
+        while (true) {
+
+            Stat stat = new Stat();
+            HashMap<String, Entry> regionEntries = new HashMap<String, Entry>();
+            boolean regionExists = true;
+
+            try {
+                for (Entry entry : parseEntries(zkm.syncGetData(regionPath, false, stat))) {
+                    regionEntries.put(String.format("%d,%d", entry.chunkX, entry.chunkY), entry);
+                }
+            } catch (KeeperException e) {
+                if (e.code() != Code.NONODE) {
+                    throw e;
+                }
+                regionExists = false;
+            }
+
+            for (Entry entry : entries) {
+                String key = String.format("%d,%d", entry.chunkX, entry.chunkY);
+                Entry regionEntry = regionEntries.get(key);
+
+                if (regionEntry == null) {
+                    regionEntries.put(key, entry);
+                } else {
+                    regionEntry.merge(entry);
+                }
+            }
+
+            byte[] data = serializeEntries(new ArrayList<Entry>(regionEntries.values()));
+
+            try {
+                if (regionExists) {
+                    zkm.syncSetData(regionPath, data, stat.getVersion());
+                } else {
+                    zkm.syncCreate(regionPath, false, data);
+                }
+                return;
+            } catch (KeeperException e) {
+
+                // another writer updated the region first, so read it again and retry
+                if (e.code() != Code.BADVERSION && e.code() != Code.NODEEXISTS) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // reads every region node and returns all of the directory's entries
+    public List<Entry> readAll() throws KeeperException, InterruptedException {
+
+        List<Entry> entries = new ArrayList<Entry>();
+        List<String> regionNames;
+
+        try {
+            regionNames = zkm.syncGetChildren(Helpers.directoryNodePath, false);
+        } catch (KeeperException e) {
+            if (e.code() == Code.NONODE) {
+                return entries;
+            }
+            throw e;
+        }
+
+        for (String regionName : regionNames) {
+            try {
+                entries.addAll(parseEntries(zkm.syncGetData(String.format("%s/%s", Helpers.directoryNodePath, regionName), false)));
+            } catch (KeeperException e) {
+                if (e.code() != Code.NONODE) {
+                    throw e;
+                }
+            }
+        }
+
+        return entries;
+    }
+
+    // returns up to n entries with the highest recent write counts
+    public static List<Entry> hottest(List<Entry> entries, int n) {
+
+        long time = System.currentTimeMillis();
+        List<Entry> sortedEntries = new ArrayList<Entry>(entries);
+        sortedEntries.sort((Entry entry1, Entry entry2) -> Double.compare(entry2.recentWritesAt(time), entry1.recentWritesAt(time)));
+
+        return sortedEntries.subList(0, Math.min(n, sortedEntries.size()));
+    }
+
+    // converts a list of entries to the data stored in a region node, one entry per line
+    public static byte[] serializeEntries(List<Entry> entries) {
+
+        StringBuilder str = new StringBuilder();
+
+        for (Entry entry : entries) {
+            str.append(entry.toLine());
+            str.append("\n");
+        }
+
+        return str.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // converts the data stored in a region node to a list of entries
+    public static List<Entry> parseEntries(byte[] data) {
+
+        List<Entry> entries = new ArrayList<Entry>();
+
+        if (data == null) {
+            return entries;
+        }
+
+        for (String line : Helpers.bytesToASCII(data).split("\n")) {
+            Entry entry = Entry.fromLine(line);
+
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+
+        return entries;
+    }
+}
@@ -0,0 +1,156 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+
+// class that reads many tiles of a chunk at once with asynchronous getData calls, so loading a chunk takes about one round
+// trip plus the time to transfer its tiles instead of one round trip per tile
+// at most window reads wait for a response at a time, and the results are collected into arrays row by row so the
+// caller can apply them all together once every read has completed
+// each response sends the next read itself, so starting a fetch never blocks and it can be started from a dispatcher
+// worker, whose events ZooKeeper's event thread may be waiting to queue while it delivers the responses
+public class ChunkFetch {
+
+    public static final int defaultWindow = 500; // reads waiting for a response at once
+
+    public int chunkX;
+    public int chunkY;
+    public int colors[]; // the palette index of every tile row by row, -1 for tiles that were not read
+    public int versions[]; // the version of every tile's node row by row, -1 for tiles that were not read
+    public long mzxids[]; // the zxid of the last write to every tile row by row
+    public int numTiles; // the number of tiles that were read
+    ZooKeeperMonitor zkm;
+    List<String> tileNames; // the tiles to read, only ones with valid names
+    boolean watch;
+    int window;
+    int numSent; // the number of reads sent so far
+    int numReceived; // the number of reads that have completed
+    Runnable completion; // run on ZooKeeper's event thread once every read has completed, null if there is none
+    CountDownLatch tilesReceived;
+    Code error; // the first error other than a missing node, null if there was none
+    long startTime;
+    long finishTime;
+
+    public ChunkFetch(ZooKeeperMonitor zkm, int chunkX, int chunkY, List<String> tileNames, boolean watch, int window) {
+        this.chunkX = chunkX;
+        this.chunkY = chunkY;
+        this.colors = new int[Chunk.size * Chunk.size];
+        this.versions = new int[Chunk.size * Chunk.size];
+        this.mzxids = new long[Chunk.size * Chunk.size];
+        this.numTiles = 0;
+        this.zkm = zkm;
+        this.tileNames = new ArrayList<String>();
+        this.watch = watch;
+        this.window = Math.max(1, window);
+        this.numSent = 0;
+        this.numReceived = 0;
+        this.completion = null;
+        this.error = null;
+        this.startTime = 0;
+        this.finishTime = 0;
+        Arrays.fill(colors, -1);
+        Arrays.fill(versions, -1);
+
+        // tiles with invalid names are never read
+        for (String tileName : tileNames) {
+
+            int tileX = Helpers.tileXCoordForTileName(tileName);
+            int tileY = Helpers.tileYCoordForTileName(tileName);
+
+            if (tileX >= 0 && tileX < Chunk.size && tileY >= 0 && tileY < Chunk.size) {
+                this.tileNames.add(tileName);
+            }
+        }
+
+        this.tilesReceived = new CountDownLatch(this.tileNames.size());
+    }
+
+    // returns true if there are no tiles to read, in which case a completion passed to start is never run
+    public boolean isEmpty() {
+        return tileNames.isEmpty();
+    }
+
+    // sends the first window reads without waiting for any response, each response then sends the next read
+    // with watch, each read leaves a watch that is handled by the session's listener like any other watched read
+    // completion, if not null, is run on ZooKeeper's event thread once every read has completed, so it must not block
+    public void start(Runnable completion) {
+
+        synchronized (this) {
+            this.completion = completion;
+            startTime = System.currentTimeMillis();
+            finishTime = startTime;
+        }
+
+        for (int i = 0; i < window; i++) {
+            sendNextRead();
+        }
+    }
+
+    // sends the read of the next tile that has not been read yet, if there is one
+    void sendNextRead() {
+
+        String tileName;
+
+        synchronized (this) {
+            if (numSent >= tileNames.size()) {
+                return;
+            }
+            tileName = tileNames.get(numSent++);
+        }
+
+        int tileX = Helpers.tileXCoordForTileName(tileName);
+        int tileY = Helpers.tileYCoordForTileName(tileName);
+        String tilesPath = Helpers.tilesPathForChunkCoords(chunkX, chunkY);
+
+        zkm.asyncGetData(String.format("%s/%s", tilesPath, tileName), watch, (rc, path, ctx, data, stat) -> {
+
+            int colorIndex = Code.get(rc) == Code.OK ? Colorer.dataToColorIndex(data) : -1;
+            boolean isLast;
+
+            // a tile deleted since the chunk was listed is just left out, any other error fails the fetch
+            synchronized (this) {
+                if (colorIndex >= 0) {
+                    colors[tileY * Chunk.size + tileX] = colorIndex;
+                    versions[tileY * Chunk.size + tileX] = stat.getVersion();
+                    mzxids[tileY * Chunk.size + tileX] = stat.getMzxid();
+                    numTiles++;
+                } else if (Code.get(rc) != Code.OK && Code.get(rc) != Code.NONODE && error == null) {
+                    error = Code.get(rc);
+                }
+
+                finishTime = System.currentTimeMillis();
+                isLast = ++numReceived == tileNames.size();
+            }
+
+            sendNextRead();
+            tilesReceived.countDown();
+
+            if (isLast && completion != null) {
+                completion.run();
+            }
+        }, null);
+    }
+
+    // sends every read and waits for them to complete, throwing the first error a read failed with
+    // this must not be called from a dispatcher worker, the responses may be stuck behind the events it would have to handle
+    public void fetch() throws KeeperException, InterruptedException {
+        start(null);
+        tilesReceived.await();
+        throwIfFailed();
+    }
+
+    // throws the first error a read failed with, once every read has completed
+    public synchronized void throwIfFailed() throws KeeperException {
+        if (error != null) {
+            throw KeeperException.create(error, Helpers.tilesPathForChunkCoords(chunkX, chunkY));
+        }
+    }
+
+    // returns the milliseconds between the first read being sent and the last response arriving
+    public synchronized long getElapsedTime() {
+        return finishTime - startTime;
+    }
+}
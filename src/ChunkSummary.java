@@ -0,0 +1,113 @@
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+// class containing a downsampled version of a chunk, where each cell is the most common color of a square of tiles
+// the summary is updated as tiles change and is stored as the data of the chunk's node
+public class ChunkSummary {
+
+    public static final int gridSize = 5; // height and width of the summary in cells
+    public static final int cellSize = Chunk.size / gridSize; // height and width of each cell in tiles
+
+    HashMap<Integer, Integer> cellColorCounts[]; // the number of tiles of each color in each cell
+    int dominantColors[]; // the most common color of each cell
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ChunkSummary() {
+        this.cellColorCounts = new HashMap[gridSize * gridSize];
+        this.dominantColors = new int[gridSize * gridSize];
+
+        // every tile starts off as the default color
+        for (int i = 0; i < cellColorCounts.length; i++) {
+            cellColorCounts[i] = new HashMap<Integer, Integer>();
+            cellColorCounts[i].put(Palette.defaultColorIndex, cellSize * cellSize);
+            dominantColors[i] = Palette.defaultColorIndex;
+        }
+    }
+
+    // updates the cell containing a tile after the tile changed color
+    public void updateTile(int tileX, int tileY, int oldColorIndex, int newColorIndex) {
+
+        if (oldColorIndex == newColorIndex) {
+            return;
+        }
+
+        int cell = (tileY / cellSize) * gridSize + (tileX / cellSize);
+        HashMap<Integer, Integer> counts = cellColorCounts[cell];
+
+        int oldCount = counts.getOrDefault(oldColorIndex, 0) - 1;
+        if (oldCount > 0) {
+            counts.put(oldColorIndex, oldCount);
+        } else {
+            counts.remove(oldColorIndex);
+        }
+
+        counts.merge(newColorIndex, 1, Integer::sum);
+
+        // only the changed cell needs to be recounted
+        int dominantColor = dominantColors[cell];
+        int dominantCount = counts.getOrDefault(dominantColor, 0);
+
+        for (HashMap.Entry<Integer, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() > dominantCount) {
+                dominantColor = entry.getKey();
+                dominantCount = entry.getValue();
+            }
+        }
+
+        dominantColors[cell] = dominantColor;
+    }
+
+    // returns the most common color of every cell, row by row
+    public int[] getCellColors() {
+        return dominantColors.clone();
+    }
+
+    // converts the summary to the data stored in the chunk node: the grid size followed by 2 bytes per cell
+    public byte[] serialize() {
+
+        ByteBuffer buffer = ByteBuffer.allocate(1 + dominantColors.length * 2);
+        buffer.put((byte) gridSize);
+
+        for (int i = 0; i < dominantColors.length; i++) {
+            buffer.putShort((short) dominantColors[i]);
+        }
+
+        return buffer.array();
+    }
+
+    // converts the data stored in a chunk node to the cell colors, returns null if there is no valid summary
+    public static int[] deserialize(byte[] data) {
+
+        if (data == null || data.length != 1 + gridSize * gridSize * 2 || data[0] != gridSize) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(data, 1, data.length - 1);
+        int cellColors[] = new int[gridSize * gridSize];
+
+        for (int i = 0; i < cellColors.length; i++) {
+            cellColors[i] = buffer.getShort() & 0xffff;
+        }
+
+        return cellColors;
+    }
+
+    // returns the most common color out of a set of cells
+    public static int dominantColor(int cellColors[]) {
+
+        HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        int dominantColor = Palette.defaultColorIndex;
+        int dominantCount = 0;
+
+        for (int color : cellColors) {
+            int count = counts.merge(color, 1, Integer::sum);
+
+            if (count > dominantCount) {
+                dominantColor = color;
+                dominantCount = count;
+            }
+        }
+
+        return dominantColor;
+    }
+}
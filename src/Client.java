@@ -1,18 +1,54 @@
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.ZooDefs.Ids;
 import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.data.Stat;
 
 public class Client implements ZooKeeperMonitor.ZooKeeperMonitorListener
 {
-    ZooKeeperMonitor zkm; // object responsible for communicating with ZooKeeper
+    ZooKeeperMonitor zkm; // object responsible for communicating with the default ZooKeeper ensemble
+    Config config; // the settings this client was started with
+    ShardMap shardMap; // maps chunks to the ensemble that stores them
+    HashMap<String, ZooKeeperMonitor> shardMonitors; // one ZooKeeper session per ensemble, keyed by connect string
+    HashMap<String, ZooKeeperMonitor[]> shardWriteSessions; // the sessions each ensemble's tile writes are spread over, keyed by connect string
+    EventDispatcher dispatcher; // handles the events of every session off of ZooKeeper's event threads
     Canvas canvas; // stores the canvas data
+    ChunkDirectory directory; // index of the canvas's chunks and how active they are
     Chunk currentChunk; // stores the current chunk
+    Viewport viewport; // the rectangle of tiles currently being displayed
+    boolean isViewer; // true if this client only watches the canvas, in which case it never writes to ZooKeeper
+    boolean syncBeforeLoad; // true if the ZooKeeper server should catch up with the leader before a chunk is loaded
+    boolean precreateChunks; // true if every tile node of a chunk is created when the chunk is first written
+    Set<String> chunksWithNodes; // the paths of the chunks whose nodes this client knows to exist, so they are only created once
+    boolean headless; // true if nothing is drawn to the terminal, for clients driven by another program
+    RelayConnection relay; // the relay this client receives the canvas from instead of ZooKeeper, null if it uses ZooKeeper
+    TileUpdateListener tileUpdateListener; // notified whenever a tile update from ZooKeeper is applied, null if there is none
+    boolean viewportMode; // true if the viewport is sized to the terminal rather than to the current chunk
+    HashSet<Chunk> visibleChunks; // the chunks that intersect the viewport, which are the only chunks kept up to date
+    Overview overview; // the zoomed out view of the chunks around the current chunk
+    boolean overviewMode; // true if the overview is displayed instead of the viewport
     String message; // message to show while drawing the display
     boolean hasDrawnDisplayOnce; // used to make sure formatting is correct while drawing the display
     boolean hasUserInputtedCommand;
@@ -22,13 +58,76 @@ public class Client implements ZooKeeperMonitor.ZooKeeperMonitorListener
     String savedCommand;
     Scanner reader;
     ArrayList<Long> updateLog;
+    AtomicLong updatesApplied; // the number of tile responses applied to the canvas
+    AtomicLong staleUpdatesDropped; // the number of tile responses and write acknowledgements dropped because the tile already reflected a newer write
+    AtomicInteger chunkFetchesInFlight; // the number of chunk fetches whose tiles have not all been applied yet
     int errorRetryCounter; // the current number of times a request has failed in a row
     int errorRetryLimit; // the number of times to retry sending a request before giving up
+    int summaryPublishInterval; // milliseconds between writing updated chunk summaries to ZooKeeper
+    int summaryPublishWindow; // milliseconds after painting a chunk during which this client keeps its summary up to date
+    int directoryFlushInterval; // milliseconds between writing batches of recorded writes to the chunk directory
+    RateLimiter writeLimiter; // limits the tile writes sent per second, writes over the limit wait in writeExecutor's queue
+    RateLimiter batchLimiter; // limits the tile writes sent per second by batch writers
+    WriteQuota writeQuota; // this client's share of the write budget shared by all writers, null if it does not take part
+    ThreadPoolExecutor writeExecutor; // sends queued tile writes in the background
+    ThreadPoolExecutor batchExecutor; // sends the batched writes of shapes one after another, so later shapes end up on top
+    History history; // the recent painting commands of this client, for undo and redo
+
+    // interface for programs running a headless client that need to know when tiles change
+    public interface TileUpdateListener {
+
+        // handle a tile of a chunk changing to a new color
+        void handleTileUpdate(Chunk chunk, int tileXCoord, int tileYCoord, int colorIndex);
+    }
 
     public Client(String hostPort) throws KeeperException, IOException {
-        zkm = new ZooKeeperMonitor(this, hostPort);
+        this(new ShardMap(hostPort), false, false, false);
+    }
+
+    // creates a viewer that receives the canvas from a relay instead of connecting to ZooKeeper
+    public Client(String relayHost, int relayPort) throws KeeperException, IOException {
+        this(null, true, false, false);
+        relay = new RelayConnection(this, relayHost, relayPort);
+    }
+
+    public Client(ShardMap shardMap, boolean isViewer, boolean syncBeforeLoad, boolean precreateChunks) throws KeeperException, IOException {
+        this(shardMap, isViewer, configWith(syncBeforeLoad, precreateChunks));
+    }
+
+    public Client(ShardMap shardMap, boolean isViewer, Config config) throws KeeperException, IOException {
+
+        // viewers are routed to observers where an ensemble has them
+        this.shardMap = isViewer && shardMap != null ? shardMap.forViewers() : shardMap;
+        this.isViewer = isViewer;
+        this.config = config;
+        this.syncBeforeLoad = config.syncBeforeLoad;
+        this.precreateChunks = config.precreateChunks;
+        this.headless = false;
+        this.relay = null;
+        this.tileUpdateListener = null;
+        shardMap = this.shardMap;
+        dispatcher = new EventDispatcher();
+        shardMonitors = new HashMap<String, ZooKeeperMonitor>();
+        shardWriteSessions = new HashMap<String, ZooKeeperMonitor[]>();
+
+        // a client without a shard map gets the canvas from a relay, so it has no ZooKeeper sessions
+        if (shardMap != null) {
+            for (String connectString : shardMap.getAllConnectStrings()) {
+                ZooKeeperMonitor shardZkm = new ZooKeeperMonitor(this, connectString, dispatcher, config.sessionTimeout);
+                shardMonitors.put(connectString, shardZkm);
+                shardWriteSessions.put(connectString, new ZooKeeperMonitor[] { shardZkm });
+            }
+            zkm = shardMonitors.get(shardMap.getDefaultConnectString());
+        }
         canvas = new Canvas();
+        directory = new ChunkDirectory(zkm);
         currentChunk = null;
+        viewport = null;
+        viewportMode = false;
+        visibleChunks = new HashSet<Chunk>();
+        chunksWithNodes = ConcurrentHashMap.newKeySet();
+        overview = null;
+        overviewMode = false;
         hasDrawnDisplayOnce = false;
         hasUserInputtedCommand = false;
         message = "";
@@ -36,8 +135,79 @@ public class Client implements ZooKeeperMonitor.ZooKeeperMonitorListener
         savedCommand = "";
         reader = new Scanner(System.in).useDelimiter("");
         updateLog = new ArrayList<Long>();
+        updatesApplied = new AtomicLong(0);
+        staleUpdatesDropped = new AtomicLong(0);
+        chunkFetchesInFlight = new AtomicInteger(0);
         errorRetryCounter = 0;
-        errorRetryLimit = 5;
+        errorRetryLimit = config.retryLimit;
+        summaryPublishInterval = 1000;
+        summaryPublishWindow = 30000;
+        directoryFlushInterval = 5000;
+        writeLimiter = new RateLimiter(config.writeRate, config.writeBurst);
+        batchLimiter = new RateLimiter(config.batchRate, config.batchSize);
+        writeQuota = null;
+
+        // the threads stop when idle, so queued writes are still sent after the user's input ends
+        writeExecutor = new ThreadPoolExecutor(16, 16, 5, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        writeExecutor.allowCoreThreadTimeOut(true);
+        batchExecutor = new ThreadPoolExecutor(1, 1, 5, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        batchExecutor.allowCoreThreadTimeOut(true);
+        history = new History(config.historySize);
+
+        // viewers never write, so they only need the session that keeps their watches
+        if (shardMap != null && !isViewer && config.writeSessions > 1) {
+            openWriteSessions(config.writeSessions);
+        }
+    }
+
+    // returns the default settings with the given chunk loading options
+    static Config configWith(boolean syncBeforeLoad, boolean precreateChunks) {
+        Config config = new Config();
+        config.syncBeforeLoad = syncBeforeLoad;
+        config.precreateChunks = precreateChunks;
+        return config;
+    }
+
+    // returns the ZooKeeper session for the ensemble that stores a chunk
+    public ZooKeeperMonitor zkmForChunk(int chunkX, int chunkY) {
+        return shardMonitors.get(shardMap.connectStringForChunk(chunkX, chunkY));
+    }
+
+    // returns the ZooKeeper session that sends the tile writes of a chunk
+    // a chunk always uses the same session, and a session's requests are handled in order, so writes to a tile stay in order
+    public ZooKeeperMonitor zkmForWrite(int chunkX, int chunkY) {
+
+        ZooKeeperMonitor sessions[] = shardWriteSessions.get(shardMap.connectStringForChunk(chunkX, chunkY));
+
+        if (sessions.length == 1) {
+            return sessions[0];
+        }
+
+        // neighboring chunks land on different sessions, so a large shape is sent over all of them
+        return sessions[Math.floorMod(chunkX * 31 + chunkY * 17, sessions.length)];
+    }
+
+    // opens more sessions to every ensemble so that tile writes to different chunks are sent over several connections
+    // the client library connects each session to a random server of the connect string, spreading them over the ensemble
+    // the first session of each ensemble stays the one in shardMonitors, which keeps every watch and does every other read
+    public void openWriteSessions(int numSessions) throws KeeperException, IOException {
+
+        for (String connectString : shardMonitors.keySet()) {
+
+            ZooKeeperMonitor sessions[] = new ZooKeeperMonitor[Math.max(1, numSessions)];
+            sessions[0] = shardMonitors.get(connectString);
+
+            for (int i = 1; i < sessions.length; i++) {
+                sessions[i] = new ZooKeeperMonitor(this, connectString, dispatcher, config.sessionTimeout);
+            }
+
+            shardWriteSessions.put(connectString, sessions);
+        }
+    }
+
+    // returns the number of sessions each ensemble's tile writes are spread over
+    public int getNumWriteSessions() {
+        return shardWriteSessions.isEmpty() ? 1 : shardWriteSessions.values().iterator().next().length;
     }
 
     // if an error occured 
@@ -48,413 +218,1553 @@ public class Client implements ZooKeeperMonitor.ZooKeeperMonitorListener
             System.exit(1);
         }
 
-        // sleep for 5 seconds before retrying the request
-        try {
-            Thread.sleep(5000);
-        } catch (Exception e) {
+        // sleep for a while (5 seconds by default) before retrying the request
+        try {
+            Thread.sleep(config.retryDelay);
+        } catch (Exception e) {
+
+        }
+
+        errorRetryCounter++;
+    }
+
+    // load the canvas's palette from ZooKeeper, storing the default palette if the canvas does not have one yet
+    public void loadPaletteFromZK() {
+
+        // a relay sends its palette as soon as the client connects
+        if (relay != null) {
+            return;
+        }
+
+        try {
+
+            // viewers never write, so they just use the default palette until a writer stores it
+            if (isViewer) {
+                if (zkm.syncExists(Helpers.paletteNodePath, false)) {
+                    Palette palette = Palette.deserialize(zkm.syncGetData(Helpers.paletteNodePath, false));
+
+                    if (palette != null) {
+                        Colorer.setPalette(palette);
+                    }
+                }
+
+                errorRetryCounter = 0;
+                return;
+            }
+
+            // check if the root node exists in zookeeper
+            boolean rootExists = zkm.syncExists(Helpers.rootNodePath, false);
+
+            // if it doesn't, create it
+            if (!rootExists) {
+                zkm.syncCreate(Helpers.rootNodePath, false, null);
+            }
+
+            if (zkm.syncExists(Helpers.paletteNodePath, false)) {
+
+                Palette palette = Palette.deserialize(zkm.syncGetData(Helpers.paletteNodePath, false));
+
+                if (palette != null) {
+                    Colorer.setPalette(palette);
+                } else {
+                    message = "error: the palette stored in ZooKeeper is invalid, using the default palette";
+                }
+            } else {
+                zkm.syncCreate(Helpers.paletteNodePath, false, Colorer.getPalette().serialize());
+            }
+
+            errorRetryCounter = 0;
+
+        } catch (KeeperException e) {
+
+            // another client created the root or palette node first, so read it again
+            if (e.code() != Code.NODEEXISTS) {
+                waitForRetryDueToError();
+                message = String.format("KeeperException: %s", e.getMessage());
+            }
+            loadPaletteFromZK();
+        } catch (InterruptedException e) {
+            message = String.format("InterruptedException: %s", e.getMessage());
+        }
+    }
+
+    // load a chunk from ZooKeeper (create it if necessary) and set it as the current chunk
+    public Chunk getChunkFromZK(int x, int y) {
+        // System.out.printf("get chunk (%d, %d) from ZK\n", x, y);
+
+        // try to get given chunk from the Canvas, if it does not exist create a new one
+        Chunk chunk;
+
+        synchronized (chunkLock) {
+            chunk = canvas.getChunkAtCoords(x, y);
+            if (chunk == null) {
+                chunk = canvas.addNewChunk(x, y);
+            }
+            currentChunk = chunk;
+        }
+
+        // leave the overview once a chunk is opened
+        synchronized (displayLock) {
+            if (overviewMode) {
+                overviewMode = false;
+                hasDrawnDisplayOnce = false;
+            }
+        }
+
+        updateViewport();
+
+        return chunk;
+    }
+
+    // positions the viewport at the current chunk and loads every chunk that intersects it
+    public void updateViewport() {
+
+        Chunk chunk;
+
+        synchronized (chunkLock) {
+            chunk = currentChunk;
+        }
+
+        Viewport newViewport;
+
+        if (viewportMode) {
+            newViewport = Viewport.forTerminal(chunk.xCoord, chunk.yCoord);
+        } else {
+            newViewport = Viewport.forChunk(chunk.xCoord, chunk.yCoord);
+        }
+
+        HashSet<Chunk> newVisibleChunks = new HashSet<Chunk>();
+        List<Chunk> chunksToLoad = new ArrayList<Chunk>();
+
+        synchronized (chunkLock) {
+
+            for (int[] coords : newViewport.intersectingChunkCoords()) {
+
+                Chunk visibleChunk = canvas.getChunkAtCoords(coords[0], coords[1]);
+                if (visibleChunk == null) {
+                    visibleChunk = canvas.addNewChunk(coords[0], coords[1]);
+                }
+
+                newVisibleChunks.add(visibleChunk);
+
+                // chunks that were not visible stopped receiving updates, so they need to be fully reloaded
+                if (!visibleChunks.contains(visibleChunk)) {
+                    chunksToLoad.add(visibleChunk);
+                }
+            }
+
+            // a relay keeps sending the updates of a chunk until it is told the chunk is no longer needed
+            if (relay != null) {
+                for (Chunk oldChunk : visibleChunks) {
+                    if (!newVisibleChunks.contains(oldChunk)) {
+                        relay.unsubscribe(oldChunk.xCoord, oldChunk.yCoord);
+                    }
+                }
+            }
+
+            viewport = newViewport;
+            visibleChunks = newVisibleChunks;
+        }
+
+        for (Chunk chunkToLoad : chunksToLoad) {
+            chunkToLoad.setLastReceivedTileNodeNames(null);
+            loadChunkFromZK(chunkToLoad);
+        }
+    }
+
+    // starts keeping a chunk up to date without moving the viewport, used by replicas that mirror many chunks at once
+    public Chunk mirrorChunk(int x, int y) {
+
+        Chunk chunk;
+        boolean isNewlyMirrored;
+
+        synchronized (chunkLock) {
+            chunk = canvas.getChunkAtCoords(x, y);
+            if (chunk == null) {
+                chunk = canvas.addNewChunk(x, y);
+            }
+            isNewlyMirrored = visibleChunks.add(chunk);
+        }
+
+        if (isNewlyMirrored) {
+            chunk.setLastReceivedTileNodeNames(null);
+            loadChunkFromZK(chunk);
+        }
+
+        return chunk;
+    }
+
+    // returns true if the chunk is visible in the viewport
+    public boolean isChunkVisible(Chunk chunk) {
+        synchronized (chunkLock) {
+            return visibleChunks.contains(chunk);
+        }
+    }
+
+    // load a chunk's tiles from ZooKeeper
+    // loading never writes, a chunk whose nodes do not exist yet is shown empty until someone paints it
+    public void loadChunkFromZK(Chunk chunk) {
+
+        int x = chunk.xCoord;
+        int y = chunk.yCoord;
+
+        // a relay answers a subscription with the whole chunk followed by its tile updates
+        if (relay != null) {
+            relay.subscribe(x, y);
+            return;
+        }
+        ZooKeeperMonitor chunkZkm = zkmForChunk(x, y);
+
+        try {
+
+            // make sure the reads below see every write the leader has committed so far
+            if (syncBeforeLoad) {
+                chunkZkm.syncSync(chunk.path);
+            }
+
+            updateAllChunkTiles(chunk);
+            errorRetryCounter = 0;
+
+        } catch (KeeperException e) {
+            waitForRetryDueToError();
+            message = String.format("KeeperException: %s", e.getMessage());
+            loadChunkFromZK(chunk);
+        } catch (InterruptedException e) {
+            message = String.format("InterruptedException: %s", e.getMessage());
+        }
+    }
+
+    // creates whichever of a chunk's node, tiles node and tile nodes are missing in a single transaction
+    // once every tile node exists, painting only ever sets data, so watchers never have to list the tiles again
+    // the chunk and tiles nodes are containers like the ones ensureChunkNodes creates
+    public void createChunkSkeleton(ZooKeeperMonitor chunkZkm, int x, int y) throws KeeperException, InterruptedException {
+
+        String chunkPath = Helpers.chunkCoordsToNodePath(x, y);
+        String chunkTilesNodePath = Helpers.tilesPathForChunkCoords(x, y);
+        byte[] defaultColorData = Colorer.colorIndexToData(Palette.defaultColorIndex);
+
+        while (true) {
+
+            List<Op> ops = new ArrayList<Op>();
+            HashSet<String> existingTileNames = new HashSet<String>();
+
+            if (!chunkZkm.syncExists(chunkPath, false)) {
+                ops.add(Op.create(chunkPath, null, Ids.OPEN_ACL_UNSAFE, CreateMode.CONTAINER));
+                ops.add(Op.create(chunkTilesNodePath, null, Ids.OPEN_ACL_UNSAFE, CreateMode.CONTAINER));
+            } else if (!chunkZkm.syncExists(chunkTilesNodePath, false)) {
+                ops.add(Op.create(chunkTilesNodePath, null, Ids.OPEN_ACL_UNSAFE, CreateMode.CONTAINER));
+            } else {
+                existingTileNames.addAll(chunkZkm.syncGetChildren(chunkTilesNodePath, false));
+            }
+
+            for (int tileY = 0; tileY < Chunk.size; tileY++) {
+                for (int tileX = 0; tileX < Chunk.size; tileX++) {
+                    String tilePath = Helpers.tileCoordsToNodePath(x, y, tileX, tileY);
+
+                    if (!existingTileNames.contains(Helpers.tileNameFromPath(tilePath))) {
+                        ops.add(Op.create(tilePath, defaultColorData, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+                    }
+                }
+            }
+
+            if (ops.isEmpty()) {
+                return;
+            }
+
+            try {
+                chunkZkm.syncMulti(ops);
+                return;
+            } catch (KeeperException e) {
+
+                // another client created some of the nodes first, so check what is still missing
+                if (e.code() != Code.NODEEXISTS) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // makes sure a chunk's nodes exist before one of its tiles is written, creating them on the chunk's first write
+    // the chunk and tiles nodes are containers, so the ensemble deletes them again once their last child is gone
+    public void ensureChunkNodes(ZooKeeperMonitor chunkZkm, int x, int y) throws KeeperException, InterruptedException {
+
+        String chunkPath = Helpers.chunkCoordsToNodePath(x, y);
+
+        if (chunksWithNodes.contains(chunkPath)) {
+            return;
+        }
+
+        // the root node is persistent, it is the only node shared by every chunk
+        if (!chunkZkm.syncExists(Helpers.rootNodePath, false)) {
+            try {
+                chunkZkm.syncCreate(Helpers.rootNodePath, false, null);
+            } catch (KeeperException.NodeExistsException e) {
+                // another client created it first
+            }
+        }
+
+        if (precreateChunks) {
+            createChunkSkeleton(chunkZkm, x, y);
+        } else {
+            for (String path : Arrays.asList(chunkPath, Helpers.tilesPathForChunkCoords(x, y))) {
+                try {
+                    chunkZkm.syncCreate(path, null, CreateMode.CONTAINER);
+                } catch (KeeperException.NodeExistsException e) {
+                    // another client created it first
+                }
+            }
+        }
+
+        chunksWithNodes.add(chunkPath);
+    }
+
+    // loads the summaries of the existing chunks around the current chunk and switches the display to the overview
+    public void loadOverviewFromZK(int cellsPerChunk) {
+
+        Chunk chunk;
+
+        synchronized (chunkLock) {
+            chunk = currentChunk;
+        }
+
+        Overview newOverview = Overview.forTerminal(chunk.xCoord, chunk.yCoord, cellsPerChunk);
+        long startTime = System.currentTimeMillis();
+
+        try {
+
+            // one children listing per ensemble tells which chunks exist, then only the small summaries are read
+            List<String> chunkPaths = new ArrayList<String>();
+
+            for (ZooKeeperMonitor shardZkm : shardMonitors.values()) {
+
+                List<String> chunkNames;
+
+                try {
+                    chunkNames = shardZkm.syncGetChildren(Helpers.rootNodePath, false);
+                } catch (KeeperException e) {
+                    if (e.code() != Code.NONODE) {
+                        throw e;
+                    }
+                    continue;
+                }
+
+                for (String chunkName : chunkNames) {
+                    String chunkPath = String.format("%s/%s", Helpers.rootNodePath, chunkName);
+                    int chunkXCoord = Helpers.chunkXCoordFromPath(chunkPath);
+                    int chunkYCoord = Helpers.chunkYCoordFromPath(chunkPath);
+
+                    // skip chunks left behind on an ensemble that no longer stores them
+                    if (chunkName.startsWith("chunk_") && newOverview.containsChunk(chunkXCoord, chunkYCoord) && zkmForChunk(chunkXCoord, chunkYCoord) == shardZkm) {
+                        chunkPaths.add(chunkPath);
+                    }
+                }
+            }
+
+            CountDownLatch summariesReceived = new CountDownLatch(chunkPaths.size());
+
+            for (String chunkPath : chunkPaths) {
+
+                final int chunkXCoord = Helpers.chunkXCoordFromPath(chunkPath);
+                final int chunkYCoord = Helpers.chunkYCoordFromPath(chunkPath);
+
+                zkmForChunk(chunkXCoord, chunkYCoord).asyncGetData(chunkPath, false, (rc, path, ctx, data, stat) -> {
+                    if (Code.get(rc) == Code.OK) {
+                        newOverview.setChunkSummary(chunkXCoord, chunkYCoord, ChunkSummary.deserialize(data));
+                    }
+                    summariesReceived.countDown();
+                }, null);
+            }
+
+            if (!summariesReceived.await(10, TimeUnit.SECONDS)) {
+                message = "error: timed out waiting for chunk summaries, the overview may be incomplete";
+            } else {
+                message = String.format("overview: loaded %d chunks in %d ms", chunkPaths.size(), System.currentTimeMillis() - startTime);
+            }
+
+            synchronized (displayLock) {
+                overview = newOverview;
+                overviewMode = true;
+                hasDrawnDisplayOnce = false;
+            }
+
+            errorRetryCounter = 0;
+
+        } catch (KeeperException e) {
+            waitForRetryDueToError();
+            message = String.format("KeeperException: %s", e.getMessage());
+            loadOverviewFromZK(cellsPerChunk);
+        } catch (InterruptedException e) {
+            message = String.format("InterruptedException: %s", e.getMessage());
+        }
+    }
+
+    // writes the summaries of the chunks this client recently painted to their chunk nodes
+    public void publishChunkSummaries() {
+
+        List<Chunk> chunks;
+
+        synchronized (chunkLock) {
+            chunks = canvas.getAllChunks();
+        }
+
+        long currentTime = System.currentTimeMillis();
+
+        for (Chunk chunk : chunks) {
+
+            // other clients' summaries are left to them, so each change is only published by the clients painting the chunk
+            if (currentTime - chunk.lastLocalWriteTime > summaryPublishWindow) {
+                continue;
+            }
+
+            byte[] summaryData = chunk.getUnpublishedSummary();
+
+            if (summaryData == null) {
+                continue;
+            }
+
+            try {
+                zkmForChunk(chunk.xCoord, chunk.yCoord).syncSetData(chunk.path, summaryData);
+                chunk.setPublishedSummary(summaryData);
+            } catch (KeeperException e) {
+                message = String.format("KeeperException: %s", e.getMessage());
+            } catch (InterruptedException e) {
+                message = String.format("InterruptedException: %s", e.getMessage());
+            }
+        }
+    }
+
+    // makes sure the summaries of chunks written by a batch writer are published, given per chunk as the summary data
+    // or null if the chunk was only partly written
+    // chunks that are kept up to date are left to the summary publisher like chunks painted tile by tile, the others are
+    // published right away, reading the partly written ones back to summarize them
+    public void publishWrittenChunkSummaries(Map<Long, byte[]> summaries) {
+
+        long currentTime = System.currentTimeMillis();
+
+        for (Map.Entry<Long, byte[]> entry : summaries.entrySet()) {
+
+            int chunkX = (int) (entry.getKey() >> 32);
+            int chunkY = (int) (long) entry.getKey();
+            Chunk chunk;
+
+            synchronized (chunkLock) {
+                chunk = canvas.getChunkAtCoords(chunkX, chunkY);
+
+                if (chunk != null && visibleChunks.contains(chunk)) {
+                    chunk.lastLocalWriteTime = currentTime;
+                    continue;
+                }
+            }
+
+            try {
+                byte[] summaryData = entry.getValue();
+
+                if (summaryData == null) {
+
+                    int colors[] = readChunkColorsFromZK(chunkX, chunkY);
+                    ChunkSummary summary = new ChunkSummary();
+
+                    for (int i = 0; i < colors.length; i++) {
+                        summary.updateTile(i % Chunk.size, i / Chunk.size, Palette.defaultColorIndex, colors[i]);
+                    }
+
+                    summaryData = summary.serialize();
+                }
+
+                zkmForChunk(chunkX, chunkY).syncSetData(Helpers.chunkCoordsToNodePath(chunkX, chunkY), summaryData);
+
+            } catch (KeeperException e) {
+                message = String.format("KeeperException: %s", e.getMessage());
+            } catch (InterruptedException e) {
+                message = String.format("InterruptedException: %s", e.getMessage());
+                return;
+            }
+        }
+    }
+
+    // writes the batch of writes recorded since the last flush to the chunk directory
+    public void flushChunkDirectory() {
+        try {
+            directory.flush();
+        } catch (KeeperException e) {
+            message = String.format("KeeperException: %s", e.getMessage());
+        } catch (InterruptedException e) {
+            message = String.format("InterruptedException: %s", e.getMessage());
+        }
+    }
+
+    // starts a background thread that periodically publishes chunk summaries and the chunk directory
+    public void startBackgroundPublisher() {
+
+        Thread publisher = new Thread(() -> {
+
+            long lastDirectoryFlushTime = System.currentTimeMillis();
+
+            while (true) {
+                try {
+                    Thread.sleep(summaryPublishInterval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                publishChunkSummaries();
+
+                if (System.currentTimeMillis() - lastDirectoryFlushTime >= directoryFlushInterval) {
+                    flushChunkDirectory();
+                    lastDirectoryFlushTime = System.currentTimeMillis();
+                }
+            }
+        });
+
+        publisher.setDaemon(true);
+        publisher.start();
+    }
+
+    // gets the data of every tile of a chunk that was not in its last listing from ZooKeeper, leaving a watch on each of
+    // them and on the listing, or a watch for the tiles node to be created if the chunk has none
+    // the tiles are read all at once without waiting for them here, and once every read has completed they are applied
+    // together on the chunk's dispatcher worker, in order with the chunk's other events
+    public void updateAllChunkTiles(Chunk chunk) {
+
+        try {
+
+            // get the list of tileNames
+            String chunkTilesNodePath = Helpers.tilesPathForChunkCoords(chunk.xCoord, chunk.yCoord);
+            ZooKeeperMonitor chunkZkm = zkmForChunk(chunk.xCoord, chunk.yCoord);
+            long startTime = System.currentTimeMillis();
+            boolean isFirstListing = !chunk.hasPreviousList();
+            List<String> tileNames;
+
+            // a chunk nobody has painted yet has no tiles node, so watch for it to be created instead
+            try {
+                tileNames = chunkZkm.syncGetChildren(chunkTilesNodePath, true);
+            } catch (KeeperException.NoNodeException e) {
+                if (!chunkZkm.syncExistsWatched(chunkTilesNodePath)) {
+                    errorRetryCounter = 0;
+                    return;
+                }
+
+                // the node was created in between, so list it again
+                updateAllChunkTiles(chunk);
+                return;
+            }
+
+            // the next listing only has to read the tiles that are not in this one
+            ChunkFetch fetch = new ChunkFetch(chunkZkm, chunk.xCoord, chunk.yCoord, chunk.tilesNotInPreviousList(tileNames), true, config.fetchWindow);
+            chunk.setLastReceivedTileNodeNames(tileNames);
+            chunkFetchesInFlight.incrementAndGet();
+
+            if (fetch.isEmpty()) {
+                finishChunkFetch(chunk, fetch, isFirstListing, startTime);
+            } else {
+                fetch.start(() -> dispatcher.dispatch(chunk.path, () -> finishChunkFetch(chunk, fetch, isFirstListing, startTime)));
+            }
+
+            errorRetryCounter = 0;
+
+        } catch (KeeperException e) {
+            waitForRetryDueToError();
+            message = String.format("KeeperException: %s", e.getMessage());
+            updateAllChunkTiles(chunk);
+        } catch (InterruptedException e) {
+            message = String.format("InterruptedException: %s", e.getMessage());
+        }
+    }
+
+    // applies a completed chunk fetch, and reports the first listing after the chunk was (re)loaded as a message with how
+    // long it took
+    // if a read failed, the chunk's tiles are all read again, since its listing was already recorded
+    void finishChunkFetch(Chunk chunk, ChunkFetch fetch, boolean isFirstListing, long startTime) {
+
+        chunkFetchesInFlight.decrementAndGet();
+
+        try {
+            fetch.throwIfFailed();
+        } catch (KeeperException e) {
+            waitForRetryDueToError();
+            message = String.format("KeeperException: %s", e.getMessage());
+            chunk.setLastReceivedTileNodeNames(null);
+            updateAllChunkTiles(chunk);
+            return;
+        }
+
+        // the message is set first so that the redraw after applying the tiles shows it
+        if (isFirstListing) {
+            message = String.format("loaded chunk (%d, %d): %d tiles in %d ms (%d ms reading tiles)", chunk.xCoord, chunk.yCoord, fetch.numTiles,
+                    System.currentTimeMillis() - startTime, fetch.getElapsedTime());
+        }
+
+        applyChunkFetch(chunk, fetch);
+    }
+
+    // applies every tile read by a chunk fetch to a chunk, dropping tiles that already reflect a newer write, then redraws
+    // the display once if the chunk is visible
+    public void applyChunkFetch(Chunk chunk, ChunkFetch fetch) {
+
+        long receivedTime = System.currentTimeMillis();
+        int numApplied = 0;
+
+        for (int i = 0; i < fetch.colors.length; i++) {
+
+            if (fetch.colors[i] < 0) {
+                continue;
+            }
+
+            int tileXCoord = i % Chunk.size;
+            int tileYCoord = i / Chunk.size;
+
+            if (chunk.setTileColor(tileXCoord, tileYCoord, fetch.colors[i], fetch.versions[i], fetch.mzxids[i])) {
+                numApplied++;
+
+                if (tileUpdateListener != null) {
+                    tileUpdateListener.handleTileUpdate(chunk, tileXCoord, tileYCoord, fetch.colors[i]);
+                }
+            } else {
+                staleUpdatesDropped.incrementAndGet();
+            }
+        }
+
+        updatesApplied.addAndGet(numApplied);
+
+        // headless clients can run indefinitely, so they do not keep the experiment log
+        if (!headless) {
+            synchronized (updateLog) {
+                for (int i = 0; i < fetch.numTiles; i++) {
+                    updateLog.add(receivedTime);
+                }
+            }
+        }
+
+        if (fetch.numTiles > 0 && isChunkVisible(chunk)) {
+            drawDisplay();
+        }
+    }
+
+    // updates a given tile in a chunk
+    public void updateChunkTile(Chunk chunk, String tileName, boolean synchronous) {
+        // System.out.printf("updateChunkTile: tileName: %s\n", tileName);
+
+        int tileXCoord = Helpers.tileXCoordForTileName(tileName);
+        int tileYCoord = Helpers.tileYCoordForTileName(tileName);
+
+        if (tileXCoord < 0 || tileXCoord > Chunk.size || tileYCoord < 0 || tileYCoord > Chunk.size) {
+            message = String.format("error: tried to update tile (%d, %d) which is outside the chunk range", tileXCoord, tileYCoord);
+        } else {
+            updateChunkTile(chunk, tileXCoord, tileYCoord, synchronous);
+        }
+    }
+
+    // updates a given tile in a chunk
+    public void updateChunkTile(Chunk chunk, int tileXCoord, int tileYCoord, boolean synchronous) {
+        // System.out.printf("updateCurrentChunkTile: tile coords (%d, %d)\n", tileXCoord, tileYCoord);
+
+        if (synchronous) {
+            Stat stat = new Stat();
+            int colorIndex = getTileColorFromZKSync(chunk.xCoord, chunk.yCoord, tileXCoord, tileYCoord, stat);
+
+            if (colorIndex >= 0 && !chunk.setTileColor(tileXCoord, tileYCoord, colorIndex, stat.getVersion(), stat.getMzxid())) {
+                staleUpdatesDropped.incrementAndGet();
+            }
+
+            drawTileUpdate(chunk, tileXCoord, tileYCoord);
+
+            errorRetryCounter = 0;
+        } else {
+            getTileColorFromZKAsync(chunk.xCoord, chunk.yCoord, tileXCoord, tileYCoord);
+        }   
+    }
+
+    // given chunk and tile coordinates, get the tile's palette index from ZooKeeper, returns -1 if it could not be read
+    // the tile node's stat is filled in
+    public int getTileColorFromZKSync(int chunkXCoord, int chunkYCoord, int tileXCoord, int tileYCoord, Stat stat) {
+        // System.out.printf("getTileUpdateFromZK: chunk: (%d, %d), tile: (%d, %d)\n", chunkXCoord, chunkYCoord, tileXCoord, tileYCoord);
+
+        try {
+
+            // get the path for the given tile
+            String tilePath = Helpers.tileCoordsToNodePath(chunkXCoord, chunkYCoord, tileXCoord, tileYCoord);
+
+            // get the tile data from ZooKeeper
+            byte[] data = zkmForChunk(chunkXCoord, chunkYCoord).syncGetData(tilePath, true, stat);
+
+            // if data was received, convert it to a palette index
+            if (data != null) {
+                return Colorer.dataToColorIndex(data);
+            }
+            
+            errorRetryCounter = 0;
+        } catch (KeeperException e) {
+            // message = String.format("KeeperException: %s", e.getMessage());
+        } catch (InterruptedException e) {
+            message = String.format("InterruptedException: %s", e.getMessage());
+        }
+        
+        return -1;
+    }
+
+    // given chunk and tile coordinates, get the tile's data from ZooKeeper
+    public void getTileColorFromZKAsync(int chunkXCoord, int chunkYCoord, int tileXCoord, int tileYCoord) {
+        // System.out.printf("getTileUpdateFromZK: chunk: (%d, %d), tile: (%d, %d)\n", chunkXCoord, chunkYCoord, tileXCoord, tileYCoord);
+
+        try {
+
+            // get the path for the given tile
+            String tilePath = Helpers.tileCoordsToNodePath(chunkXCoord, chunkYCoord, tileXCoord, tileYCoord);
+
+            // get the tile data from ZooKeeper
+            zkmForChunk(chunkXCoord, chunkYCoord).asyncGetData(tilePath, true);
+            
+        } catch (KeeperException e) {
+            message = String.format("KeeperException: %s", e.getMessage());
+        } catch (InterruptedException e) {
+            message = String.format("InterruptedException: %s", e.getMessage());
+        }
+    }
+
+    // handle when a watched GetChildren call receives an update
+    public void handleWatchedGetChildren(String path) {
+        // System.out.printf("handle watched get children for path: %s\n", path);
+
+        Chunk chunk;
+        boolean isVisible;
+        
+        synchronized (chunkLock) {
+            chunk = canvas.getChunkWithPath(path);
+            isVisible = visibleChunks.contains(chunk);
+        }
+
+        // check if the update to the list of children was for a chunk being viewed
+        if (isVisible) {
+            updateAllChunkTiles(chunk);
+            drawDisplay();
+        }
+    }
+
+    // handle when a watched GetData call receives an update (meaning the tile color was updated)
+    public void handleWatchedGetData(String path) {
+
+        Chunk chunk;
+        boolean isVisible;
+        
+        synchronized (chunkLock) {
+            chunk = canvas.getChunkWithPath(path);
+            isVisible = visibleChunks.contains(chunk);
+        }
+
+        // only update the chunk if it is being viewed
+        if (isVisible) {
+            String tileName = Helpers.tileNameFromPath(path);
+            updateChunkTile(chunk, tileName, false);
+        }
+    }
+
+    // handle when an asynchronous call to GetData returns its data
+    public void handleGetDataCallback(String path, byte[] data, Stat stat) {
+
+        // callbacks for different chunks are handled on different threads
+        // headless clients can run indefinitely, so they do not keep the experiment log
+        if (!headless) {
+            synchronized (updateLog) {
+                updateLog.add(System.currentTimeMillis());
+            }
+        }
+
+        Chunk chunk;
+        boolean isVisible;
+        
+        synchronized (chunkLock) {
+            chunk = canvas.getChunkWithPath(path);
+            isVisible = visibleChunks.contains(chunk);
+        }
+
+        int tileXCoord = Helpers.tileXCoordFromPath(path);
+        int tileYCoord = Helpers.tileYCoordFromPath(path);
+
+        int colorIndex = Palette.defaultColorIndex;
+        int version = -1;
+        long mzxid = 0;
+
+        if (data != null) {
+            colorIndex = Colorer.dataToColorIndex(data);
+            version = stat.getVersion();
+            mzxid = stat.getMzxid();
+        }
+
+        // a response can arrive after a newer one (e.g. from a write or a sync read), in which case it is dropped
+        if (colorIndex >= 0) {
+            if (chunk.setTileColor(tileXCoord, tileYCoord, colorIndex, version, mzxid)) {
+                updatesApplied.incrementAndGet();
+
+                if (tileUpdateListener != null) {
+                    tileUpdateListener.handleTileUpdate(chunk, tileXCoord, tileYCoord, colorIndex);
+                }
+            } else {
+                staleUpdatesDropped.incrementAndGet();
+            }
+        }
+
+        if (isVisible) {
+            drawTileUpdate(chunk, tileXCoord, tileYCoord);
+        }
+    }
+
+    // applies a tile update received from a relay
+    public void handleRelayTileUpdate(int chunkXCoord, int chunkYCoord, int tileXCoord, int tileYCoord, int colorIndex) {
+
+        Chunk chunk;
+        boolean isVisible;
+
+        synchronized (chunkLock) {
+            chunk = canvas.getChunkAtCoords(chunkXCoord, chunkYCoord);
+            isVisible = visibleChunks.contains(chunk);
+        }
+
+        // the relay already orders each chunk's updates, so they are applied in the order they arrive
+        if (chunk == null || !chunk.setTileColor(tileXCoord, tileYCoord, colorIndex, -1, 0)) {
+            return;
+        }
+
+        updatesApplied.incrementAndGet();
+
+        if (isVisible) {
+            drawTileUpdate(chunk, tileXCoord, tileYCoord);
+        }
+    }
+
+    // applies the full contents of a chunk received from a relay, given as the palette index of every tile row by row
+    public void handleRelayChunk(int chunkXCoord, int chunkYCoord, int colors[]) {
+
+        Chunk chunk;
+        boolean isVisible;
+
+        synchronized (chunkLock) {
+            chunk = canvas.getChunkAtCoords(chunkXCoord, chunkYCoord);
+            isVisible = visibleChunks.contains(chunk);
+        }
+
+        if (chunk == null) {
+            return;
+        }
+
+        for (int y = 0; y < Chunk.size; y++) {
+            for (int x = 0; x < Chunk.size; x++) {
+                chunk.setTileColor(x, y, colors[y * Chunk.size + x], -1, 0);
+            }
+        }
+
+        if (isVisible) {
+            drawDisplay();
+        }
+    }
+
+    // handle when an asynchronous write to a tile completes by recording it in the chunk directory and confirming the pending color
+    public void handleWriteCallback(String path, byte[] data, boolean created, Stat stat) {
+
+        directory.recordWrite(Helpers.chunkXCoordFromPath(path), Helpers.chunkYCoordFromPath(path), created, stat.getMzxid());
+
+        if (data != null) {
+            settlePendingTile(path, Colorer.dataToColorIndex(data), stat.getVersion(), stat.getMzxid());
+        }
+    }
+
+    // handle when an asynchronous write to a tile fails by rolling back its pending color
+    // a write that failed because the chunk's nodes were deleted after it was emptied is sent again once they are recreated
+    public void handleWriteError(String path, byte[] data, Code reasonCode) {
+
+        if (isOverloadError(reasonCode)) {
+            writeLimiter.backOff();
+        }
+
+        if (reasonCode == Code.NONODE) {
+
+            int chunkX = Helpers.chunkXCoordFromPath(path);
+            int chunkY = Helpers.chunkYCoordFromPath(path);
+            ZooKeeperMonitor chunkZkm = zkmForWrite(chunkX, chunkY);
+            chunksWithNodes.remove(Helpers.chunkCoordsToNodePath(chunkX, chunkY));
+
+            try {
+                ensureChunkNodes(chunkZkm, chunkX, chunkY);
+                chunkZkm.asyncUpsert(path, data, false);
+                return;
+            } catch (KeeperException e) {
+                reasonCode = e.code();
+            } catch (InterruptedException e) {
+                message = String.format("InterruptedException: %s", e.getMessage());
+            }
+        }
+
+        message = String.format("error: could not write tile %s: %s", Helpers.tileNameFromPath(path), reasonCode);
+        settlePendingTile(path, -1, -1, 0);
+    }
+
+    // confirms a pending tile color with the version and mzxid it was written as, or cancels it if colorIndex is -1, then redraws the tile
+    public void settlePendingTile(String path, int colorIndex, int version, long mzxid) {
+
+        Chunk chunk;
+
+        synchronized (chunkLock) {
+            chunk = canvas.getChunkWithPath(path);
+        }
+
+        if (chunk == null) {
+            return;
+        }
+
+        int tileXCoord = Helpers.tileXCoordFromPath(path);
+        int tileYCoord = Helpers.tileYCoordFromPath(path);
+
+        if (colorIndex >= 0) {
+            if (!chunk.confirmTileColor(tileXCoord, tileYCoord, colorIndex, version, mzxid)) {
+                staleUpdatesDropped.incrementAndGet();
+            }
+        } else {
+            chunk.cancelTileColor(tileXCoord, tileYCoord);
+        }
+
+        drawTileUpdate(chunk, tileXCoord, tileYCoord);
+    }
+
+    // handle if the ZooKeeper session is no longer valid
+    public void handleSessionClose(Code reasonCode) {
+        System.out.printf("error received from ZooKeeper: %s\n", reasonCode);
+        System.exit(1);
+    }
+
+    // returns true if a request failed because ZooKeeper could not keep up, in which case it can be sent again more slowly
+    public static boolean isOverloadError(Code code) {
+        return code == Code.CONNECTIONLOSS || code == Code.OPERATIONTIMEOUT;
+    }
+
+    // waits before a write that failed because ZooKeeper could not keep up is sent again, where attempt counts the retries
+    // so far: the limiter halves its rate, and the retry also waits a delay that doubles with each attempt, since a limiter
+    // without a limit cannot slow down
+    // after RateLimiter.overloadRetryLimit retries the write waits like any other failed request, so the client gives up
+    // eventually instead of retrying forever
+    public void waitForRetryAfterOverload(RateLimiter limiter, int attempt) throws InterruptedException {
+
+        limiter.backOff();
+
+        if (attempt >= RateLimiter.overloadRetryLimit) {
+            waitForRetryDueToError();
+            return;
+        }
+
+        Thread.sleep((long) RateLimiter.overloadRetryDelay << attempt);
+    }
+
+    // handles when a state change of ZooKeeper was detected and sets the current message
+    public void handleSessionStateUpdate(String stateString) {
+        message = String.format("zookeeper system state was updated: %s", stateString);
+    }
+
+    // queues a new tile color to be set by one of the write threads
+    public void setNewTileColorWithThread(int tileXCoord, int tileYCoord, String colorStr, boolean synchronous) {
+
+        writeExecutor.execute(() -> {
+           setNewTileColor(tileXCoord, tileYCoord, colorStr, synchronous);
+        });
+    } 
+
+    // sends a request to zookeeper to set the color of a given tile
+    public void setNewTileColor(int tileXCoord, int tileYCoord, String colorStr, boolean synchronous) {
+        setNewTileColor(tileXCoord, tileYCoord, colorStr, synchronous, false);
+    }
+
+    // sends a request to zookeeper to set the color of a given tile
+    // if conditional is true, the tile is only overwritten if it has not changed since this client last read it
+    public void setNewTileColor(int tileXCoord, int tileYCoord, String colorStr, boolean synchronous, boolean conditional) {
+        // message = String.format("setting tile (%d, %d) to %s", tileXCoord, tileYCoord, colorStr);
+
+        // makes sure that the tile is in the chunk
+        if (tileXCoord < 0 || tileXCoord >= Chunk.size || tileYCoord < 0 || tileYCoord >= Chunk.size) {
+            message = "error: invalid tile coordinates";
+            return;
+        }
+        
+        int colorIndex = Colorer.stringToColorIndex(colorStr);
+
+        if (colorIndex < 0) {
+            message = "error: invalid color, not setting tile data";
+            return;
+        }
+
+        Chunk chunk;
+
+        synchronized (chunkLock) {
+            chunk = currentChunk;
+        }
+
+        int overloadRetries = 0;
+
+        // a write that failed is sent again until it succeeds, is dropped or the client gives up
+        while (true) {
+
+            // wait until the write fits within the rate limit
+            try {
+                writeLimiter.acquire(1);
+            } catch (InterruptedException e) {
+                message = String.format("InterruptedException: %s", e.getMessage());
+                return;
+            }
+
+            int previousColorIndex = chunk.getTile(tileXCoord, tileYCoord).getColorIndex();
+
+            // show the new color right away, it is confirmed or rolled back once ZooKeeper responds
+            chunk.setPendingTileColor(tileXCoord, tileYCoord, colorIndex);
+            drawTileUpdate(chunk, tileXCoord, tileYCoord);
+
+            // a tile that has been read or written before has a node, so its data can be set directly
+            int knownVersion = chunk.getTileVersion(tileXCoord, tileYCoord);
+
+            try {
+
+                // convert the palette index to bytes to write as the node data
+                byte[] colorData = Colorer.colorIndexToData(colorIndex);
+
+                String tilePath = Helpers.tileCoordsToNodePath(chunk.xCoord, chunk.yCoord, tileXCoord, tileYCoord);
+                ZooKeeperMonitor chunkZkm = zkmForWrite(chunk.xCoord, chunk.yCoord);
+                chunk.lastLocalWriteTime = System.currentTimeMillis();
+
+                // the chunk's nodes are checked even for known tiles, since they may have been deleted after the chunk was emptied
+                ensureChunkNodes(chunkZkm, chunk.xCoord, chunk.yCoord);
+
+                if (synchronous) {
+
+                    Stat stat;
+
+                    if (!conditional) {
+                        stat = chunkZkm.syncUpsert(tilePath, colorData, knownVersion >= 0);
+                    } else if (knownVersion >= 0) {
+                        stat = chunkZkm.syncSetData(tilePath, colorData, knownVersion);
+                    } else {
+                        stat = new Stat();
+                        chunkZkm.syncCreate(tilePath, false, colorData, stat);
+                    }
+
+                    // a new node always starts at version 0
+                    directory.recordWrite(chunk.xCoord, chunk.yCoord, stat.getVersion() == 0, stat.getMzxid());
+
+                    if (!chunk.confirmTileColor(tileXCoord, tileYCoord, colorIndex, stat.getVersion(), stat.getMzxid())) {
+                        staleUpdatesDropped.incrementAndGet();
+                    }
+                    drawTileUpdate(chunk, tileXCoord, tileYCoord);
+
+                    History.Entry entry = new History.Entry(String.format("%s %d %d %s", conditional ? "cas" : "set", tileXCoord, tileYCoord, colorStr));
+                    entry.addTile(chunk.xCoord, chunk.yCoord, tileYCoord * Chunk.size + tileXCoord, previousColorIndex, colorIndex, stat.getVersion());
+                    history.record(entry);
+                } else {
+                    chunkZkm.asyncUpsert(tilePath, colorData, knownVersion >= 0);
+                }
+
+                return;
+
+            } catch (KeeperException e) {
+
+                // roll back the pending color, a retry shows it as pending again
+                chunk.cancelTileColor(tileXCoord, tileYCoord);
+                drawTileUpdate(chunk, tileXCoord, tileYCoord);
+
+                // a known tile whose node was deleted has changed as well
+                if (conditional && (e.code() == Code.BADVERSION || e.code() == Code.NODEEXISTS || (e.code() == Code.NONODE && knownVersion >= 0))) {
+                    message = String.format("tile (%d, %d) was changed by someone else since it was last read, not overwriting it", tileXCoord, tileYCoord);
+                    return;
+                } else if (isOverloadError(e.code())) {
+
+                    // the write is sent again once the slower rate allows it
+                    try {
+                        waitForRetryAfterOverload(writeLimiter, overloadRetries++);
+                    } catch (InterruptedException ie) {
+                        message = String.format("InterruptedException: %s", ie.getMessage());
+                        return;
+                    }
+
+                    message = String.format("ZooKeeper is not keeping up (%s), slowing writes to %.0f per second", e.code(), writeLimiter.getRate());
+                } else if (e.code() != Code.NODEEXISTS) {
+
+                    // the chunk's nodes were deleted after it was emptied, so they are created again by the retry
+                    if (e.code() == Code.NONODE) {
+                        chunksWithNodes.remove(Helpers.chunkCoordsToNodePath(chunk.xCoord, chunk.yCoord));
+                    }
+
+                    waitForRetryDueToError();
+                    message = String.format("KeeperException: %s", e.getMessage());
+                } else {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                chunk.cancelTileColor(tileXCoord, tileYCoord);
+                drawTileUpdate(chunk, tileXCoord, tileYCoord);
+                message = String.format("InterruptedException: %s", e.getMessage());
+                return;
+            }
+        }
+    }
+
+    // reverts the last command in the history that has not been undone, or applies the last undone command again
+    // each tile is only written if nobody else changed it since, so newer edits by others are kept
+    public void undoCommand(boolean redo) {
+
+        History.Entry entry = redo ? history.peekRedo() : history.peekUndo();
+
+        if (entry == null) {
+            message = redo ? "error: there is nothing to redo" : "error: there is nothing to undo";
+            return;
+        }
+
+        History.Entry nextEntry = new History.Entry(entry.command);
+        BatchWriter writer = new BatchWriter(this);
+        int previousColors[] = new int[Chunk.size * Chunk.size];
+        int newColors[] = new int[Chunk.size * Chunk.size];
+        int versions[] = new int[Chunk.size * Chunk.size];
+        int numWritten = 0;
+        int numSkipped = 0;
+
+        try {
+            for (int i = 0; i < entry.getNumChunks(); i++) {
+
+                entry.getChunk(i, previousColors, newColors, versions);
+                int writtenVersions[] = writer.writeChunkConditionally(entry.getChunkX(i), entry.getChunkY(i), redo ? newColors : previousColors, versions);
+
+                for (int k = 0; k < versions.length; k++) {
+                    if (writtenVersions[k] >= 0) {
+                        numWritten++;
+                    } else if (versions[k] >= 0) {
+                        numSkipped++;
+                    }
+                }
+
+                // the tiles that were written can be undone or redone again from the versions they are at now
+                nextEntry.addChunk(entry.getChunkX(i), entry.getChunkY(i), previousColors, newColors, writtenVersions);
+            }
+
+            // the conditional writes are already in, this only publishes the summaries of the chunks they changed
+            writer.flush();
+            errorRetryCounter = 0;
+
+        } catch (KeeperException e) {
+            message = String.format("KeeperException: %s, the %s may be incomplete", e.getMessage(), redo ? "redo" : "undo");
+            return;
+        } catch (InterruptedException e) {
+            message = String.format("InterruptedException: %s", e.getMessage());
+            return;
+        }
+
+        if (redo) {
+            history.finishRedo(entry, nextEntry);
+        } else {
+            history.finishUndo(entry, nextEntry);
+        }
+
+        String skippedStr = numSkipped > 0 ? String.format(", %d skipped because someone else changed them since", numSkipped) : "";
+        message = String.format("%s '%s' (%d tiles%s)", redo ? "redid" : "undid", entry.command, numWritten, skippedStr);
+    }
+
+    // returns a message describing how fast this client may write
+    public String describeWriteLimit() {
+
+        String limitStr = describeLimiter("writes", writeLimiter) + ", " + describeLimiter("batched writes", batchLimiter);
+
+        if (writeQuota != null && writeQuota.getBudget() > 0) {
+            limitStr += String.format(" (%d writers share a budget of %.0f per second)", writeQuota.getNumMembers(), writeQuota.getBudget());
+        }
+
+        return limitStr;
+    }
+
+    // returns a description of a rate limiter, such as "writes are limited to 500 per second"
+    static String describeLimiter(String what, RateLimiter limiter) {
+
+        if (limiter.getMaxRate() <= 0) {
+            return String.format("%s are not limited", what);
+        } else if (limiter.getRate() < limiter.getMaxRate()) {
+            return String.format("%s are limited to %.0f per second, slowed to %.0f while ZooKeeper catches up", what, limiter.getMaxRate(), limiter.getRate());
+        }
+
+        return String.format("%s are limited to %.0f per second", what, limiter.getMaxRate());
+    }
+
+    // queues the tiles painted by rasterized shapes to be written in the background after the shapes queued before them
+    // each chunk's tiles are written as a single transaction, so a shape appears in a chunk all at once, and the command
+    // is added to the history with the colors the tiles had in ZooKeeper right before
+    public void paintRasterized(Rasterizer rasterizer, String command) {
+
+        List<Rasterizer.ChunkTiles> chunkTiles = rasterizer.getChunkTiles();
+
+        batchExecutor.execute(() -> {
+
+            BatchWriter writer = new BatchWriter(this, Chunk.size * Chunk.size, config.maxInFlight * getNumWriteSessions());
+            List<int[]> previousColors = new ArrayList<int[]>();
+            writer.trackVersions();
+
+            try {
+                for (Rasterizer.ChunkTiles tiles : chunkTiles) {
+                    previousColors.add(readPaintedTileColors(tiles));
+                    writer.writeChunk(tiles.chunkX, tiles.chunkY, tiles.colors);
+                }
+
+                message = String.format("painted %d tiles in %d chunks", writer.flush(), chunkTiles.size());
+                errorRetryCounter = 0;
+
+                History.Entry entry = new History.Entry(command);
+
+                for (int i = 0; i < chunkTiles.size(); i++) {
+
+                    Rasterizer.ChunkTiles tiles = chunkTiles.get(i);
+                    int versions[] = writer.getWrittenVersions(tiles.chunkX, tiles.chunkY);
+
+                    if (versions != null) {
+                        entry.addChunk(tiles.chunkX, tiles.chunkY, previousColors.get(i), tiles.colors, versions);
+                    }
+                }
+
+                history.record(entry);
+            } catch (KeeperException e) {
+                message = String.format("KeeperException: %s, some tiles may not have been painted", e.getMessage());
+            } catch (InterruptedException e) {
+                message = String.format("InterruptedException: %s", e.getMessage());
+            }
+        });
+    }
+
+    // returns an error message if a region to import or export does not fit on the canvas or spans more chunks than the
+    // image-chunks setting allows, and null otherwise
+    String checkImageRegion(int originX, int originY, int width, int height) {
+
+        long maxX = (long) originX + width - 1;
+        long maxY = (long) originY + height - 1;
+
+        if (maxX > Integer.MAX_VALUE || maxY > Integer.MAX_VALUE) {
+            return "error: the region does not fit on the canvas";
+        }
+
+        long numChunks = Helpers.chunksSpanned(originX, originY, maxX, maxY);
+
+        if (numChunks > config.imageChunks) {
+            return String.format("error: the region spans %d chunks, more than the limit of %d", numChunks, config.imageChunks);
+        }
+
+        return null;
+    }
+
+    // paints an image onto the canvas with its top left corner at the given canvas-wide tile coordinates
+    // the image is quantized to the palette and written chunk by chunk as batched transactions
+    public void importImage(String fileName, int originX, int originY) {
+
+        long startTime = System.currentTimeMillis();
+        int colors[][];
+
+        try {
+            colors = CanvasImage.read(fileName, Colorer.getPalette(), (long) config.imageChunks * Chunk.size * Chunk.size);
+        } catch (IOException e) {
+            message = String.format("error: could not read %s: %s", fileName, e.getMessage());
+            return;
+        }
+
+        if (colors.length == 0) {
+            message = String.format("error: %s is empty", fileName);
+            return;
+        }
+
+        int height = colors.length;
+        int width = colors[0].length;
+        String error = checkImageRegion(originX, originY, width, height);
 
+        if (error != null) {
+            message = error;
+            return;
         }
 
-        errorRetryCounter++;
-    }
+        BatchWriter writer = new BatchWriter(this);
+        int numChunks = 0;
 
-    // load a chunk from ZooKeeper (create it if necessary) and set it as the current chunk
-    public Chunk getChunkFromZK(int x, int y) {
-        // System.out.printf("get chunk (%d, %d) from ZK\n", x, y);
+        try {
+            for (int chunkY = Math.floorDiv(originY, Chunk.size); chunkY <= Math.floorDiv(originY + height - 1, Chunk.size); chunkY++) {
+                for (int chunkX = Math.floorDiv(originX, Chunk.size); chunkX <= Math.floorDiv(originX + width - 1, Chunk.size); chunkX++) {
 
-        // try to get given chunk from the Canvas, if it does not exist create a new one
-        Chunk chunk;
+                    int chunkColors[] = new int[Chunk.size * Chunk.size];
+                    boolean hasTiles = false;
+                    Arrays.fill(chunkColors, CanvasImage.transparent);
 
-        synchronized (chunkLock) {
-            chunk = canvas.getChunkAtCoords(x, y);
-            if (chunk == null) {
-                chunk = canvas.addNewChunk(x, y);
-            }
-            currentChunk = chunk;
-        }
+                    for (int tileY = 0; tileY < Chunk.size; tileY++) {
 
-        try {
-            
-            // check if the root node exists in zookeeper
-            boolean rootExists = zkm.syncExists(Helpers.rootNodePath, false);
+                        int imageY = chunkY * Chunk.size + tileY - originY;
 
-            // if it doesn't, create it
-            if (!rootExists) {
-                zkm.syncCreate(Helpers.rootNodePath, false, null);
-            }
-            
-            // check if the given chunk exists in zookeeper
-            String chunkPath = Helpers.chunkCoordsToNodePath(x, y);
-            boolean chunkExists = zkm.syncExists(chunkPath, false);
+                        for (int tileX = 0; tileX < Chunk.size; tileX++) {
 
-            // if it doesn't, create it
-            if (!chunkExists) {
-                zkm.syncCreate(chunkPath, false, null);
-            }
+                            int imageX = chunkX * Chunk.size + tileX - originX;
 
-            // check if the given chunk has a child called "tiles"
-            String chunkTilesNodePath = Helpers.tilesPathForChunkCoords(x, y);
-            boolean chunkTilesNodeExists = zkm.syncExists(chunkTilesNodePath, false);
+                            if (imageY >= 0 && imageY < height && imageX >= 0 && imageX < width && colors[imageY][imageX] != CanvasImage.transparent) {
+                                chunkColors[tileY * Chunk.size + tileX] = colors[imageY][imageX];
+                                hasTiles = true;
+                            }
+                        }
+                    }
 
-            // if it doesn't, create it
-            if (!chunkTilesNodeExists) {
-                zkm.syncCreate(chunkTilesNodePath, false, null);
+                    if (hasTiles) {
+                        writer.writeChunk(chunkX, chunkY, chunkColors);
+                        numChunks++;
+                    }
+                }
             }
 
-            updateAllChunkTiles(chunk, false);
+            int tilesWritten = writer.flush();
+            message = String.format("imported %d tiles into %d chunks in %d ms", tilesWritten, numChunks, System.currentTimeMillis() - startTime);
             errorRetryCounter = 0;
 
         } catch (KeeperException e) {
-            waitForRetryDueToError();
-            message = String.format("KeeperException: %s", e.getMessage());
-            getChunkFromZK(x, y);
+            message = String.format("KeeperException: %s, the import may be incomplete", e.getMessage());
         } catch (InterruptedException e) {
             message = String.format("InterruptedException: %s", e.getMessage());
         }
-
-        return chunk;
     }
 
-    // gets all tile data for a chunk from ZooKeeper
-    public void updateAllChunkTiles(Chunk chunk, boolean synchronous) {
-        // System.out.println("updateAllChunkTiles");
+    // paints every command of a script without drawing anything, printing the results instead of showing them as messages
+    // the whole script is parsed before anything is written, and the tiles of all of its commands are merged into one plan
+    // in which a tile painted by several commands is written once (with the color of the last one), which is then written
+    // chunk by chunk through a batch writer
+    // the commands are set, rect, checker, circle, line and poly, with coordinates relative to the chunk picked by the last
+    // 'view x y' line (chunk (0, 0) at first), and blank lines and lines starting with # are skipped
+    // returns true if the script was valid and every write succeeded
+    public boolean runScript(BufferedReader scriptReader, String scriptName) throws IOException {
+
+        long startTime = System.currentTimeMillis();
+        Rasterizer rasterizer = new Rasterizer();
+        int originX = 0;
+        int originY = 0;
+        int numCommands = 0;
+        int lineNum = 0;
+        String line;
+
+        while ((line = scriptReader.readLine()) != null) {
+
+            lineNum++;
+            line = line.trim().toLowerCase();
+
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
 
-        try {
+            String parts[] = line.split("\\s+");
 
-            // get the list of tileNames
-            String chunkTilesNodePath = Helpers.tilesPathForChunkCoords(chunk.xCoord, chunk.yCoord);
-            List<String> tileNames = zkm.syncGetChildren(chunkTilesNodePath, true);
-            
-            tileNames.sort((String tileName1, String tileName2) -> {
-                
-                int tile1XCoord = Helpers.tileXCoordForTileName(tileName1);
-                int tile1YCoord = Helpers.tileYCoordForTileName(tileName1);
+            try {
+                if (parts[0].equals("view")) {
 
-                int tile2XCoord = Helpers.tileXCoordForTileName(tileName2);
-                int tile2YCoord = Helpers.tileYCoordForTileName(tileName2);
+                    if (parts.length != 3) {
+                        throw new IllegalArgumentException("usage: 'view x y' (x and y are chunk coordinates)");
+                    }
 
-                if (tile1YCoord < tile2YCoord) {
-                    return -1;
-                } else if (tile1YCoord > tile2YCoord) {
-                    return 1;
+                    try {
+                        originX = Integer.parseInt(parts[1]) * Chunk.size;
+                        originY = Integer.parseInt(parts[2]) * Chunk.size;
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("error: invalid chunk coordinates");
+                    }
                 } else {
-                    if (tile1XCoord < tile2XCoord) {
-                        return -1;
-                    } else if (tile1XCoord > tile2XCoord) {
-                        return 1;
-                    } else {
-                        return 0;
+
+                    String warning = rasterizeCommand(parts, originX, originY, config.shapeChunks, rasterizer);
+
+                    if (warning != null) {
+                        System.out.printf("%s:%d: %s\n", scriptName, lineNum, warning);
                     }
-                }
-            });
 
-            // update each tile in the chunk that was not previously updated
-            for (int i = 0; i < tileNames.size(); i++) {
-                String tileName = tileNames.get(i);
-                if (!chunk.tileWasInPreviousList(tileName)) {
-                    updateChunkTile(chunk, tileName, synchronous);
+                    numCommands++;
                 }
+            } catch (IllegalArgumentException e) {
+                System.out.printf("%s:%d: %s, nothing was painted\n", scriptName, lineNum, e.getMessage());
+                return false;
             }
+        }
 
-            chunk.setLastReceivedTileNodeNames(tileNames);
+        // the chunks are written in row order, so that the script paints the canvas the same way every time it is run
+        List<Rasterizer.ChunkTiles> chunkTiles = rasterizer.getChunkTiles();
+        chunkTiles.sort((tiles1, tiles2) -> tiles1.chunkY != tiles2.chunkY ? Integer.compare(tiles1.chunkY, tiles2.chunkY) : Integer.compare(tiles1.chunkX, tiles2.chunkX));
+
+        long planTime = System.currentTimeMillis();
+        System.out.printf("%s: %d commands painting %d tiles, merged into %d tile writes in %d chunks (planned in %d ms)\n", scriptName, numCommands,
+                rasterizer.getNumPainted(), rasterizer.getNumTiles(), chunkTiles.size(), planTime - startTime);
+
+        BatchWriter writer = new BatchWriter(this);
+
+        try {
+            for (Rasterizer.ChunkTiles tiles : chunkTiles) {
+                writer.writeChunk(tiles.chunkX, tiles.chunkY, tiles.colors);
+            }
 
+            int tilesWritten = writer.flush();
+            long writeTime = Math.max(1, System.currentTimeMillis() - planTime);
+            String limitStr = describeLimiter("batched writes", batchLimiter);
+            System.out.printf("%s: wrote %d tiles in %d ms (%.0f tiles per second, %s)\n", scriptName, tilesWritten, writeTime, tilesWritten * 1000.0 / writeTime, limitStr);
             errorRetryCounter = 0;
 
         } catch (KeeperException e) {
-            waitForRetryDueToError();
-            message = String.format("KeeperException: %s", e.getMessage());
-            updateAllChunkTiles(chunk, synchronous);
+            System.out.printf("%s: KeeperException: %s, the script may not have been painted completely\n", scriptName, e.getMessage());
+            return false;
         } catch (InterruptedException e) {
-            message = String.format("InterruptedException: %s", e.getMessage());
+            System.out.printf("%s: InterruptedException: %s\n", scriptName, e.getMessage());
+            return false;
         }
+
+        // the chunk directory is normally flushed in the background, which a script does not wait for
+        flushChunkDirectory();
+        return true;
     }
 
-    // updates a given tile in a chunk
-    public void updateChunkTile(Chunk chunk, String tileName, boolean synchronous) {
-        // System.out.printf("updateChunkTile: tileName: %s\n", tileName);
+    // saves a rectangle of the canvas given in canvas-wide tile coordinates to an image file, reading its chunks in parallel
+    public void exportImage(String fileName, int originX, int originY, int width, int height) {
 
-        int tileXCoord = Helpers.tileXCoordForTileName(tileName);
-        int tileYCoord = Helpers.tileYCoordForTileName(tileName);
+        String error = checkImageRegion(originX, originY, width, height);
 
-        if (tileXCoord < 0 || tileXCoord > Chunk.size || tileYCoord < 0 || tileYCoord > Chunk.size) {
-            message = String.format("error: tried to update tile (%d, %d) which is outside the chunk range", tileXCoord, tileYCoord);
-        } else {
-            updateChunkTile(chunk, tileXCoord, tileYCoord, synchronous);
+        if (error != null) {
+            message = error;
+            return;
         }
-    }
-
-    // updates a given tile in a chunk
-    public void updateChunkTile(Chunk chunk, int tileXCoord, int tileYCoord, boolean synchronous) {
-        // System.out.printf("updateCurrentChunkTile: tile coords (%d, %d)\n", tileXCoord, tileYCoord);
 
-        if (synchronous) {
-            Colorer.Color color = getTileColorFromZKSync(chunk.xCoord, chunk.yCoord, tileXCoord, tileYCoord);
+        long startTime = System.currentTimeMillis();
+        int colors[][] = new int[height][width];
+        List<int[]> chunkCoords = new ArrayList<int[]>();
 
-            if (color != null) {
-                chunk.setTileColor(tileXCoord, tileYCoord, color);
+        for (int chunkY = Math.floorDiv(originY, Chunk.size); chunkY <= Math.floorDiv(originY + height - 1, Chunk.size); chunkY++) {
+            for (int chunkX = Math.floorDiv(originX, Chunk.size); chunkX <= Math.floorDiv(originX + width - 1, Chunk.size); chunkX++) {
+                chunkCoords.add(new int[] { chunkX, chunkY });
             }
+        }
 
-            drawTileUpdate(tileXCoord, tileYCoord);
+        ExecutorService readers = Executors.newFixedThreadPool(Math.min(chunkCoords.size(), 8));
+        List<Future<?>> reads = new ArrayList<Future<?>>();
 
-            errorRetryCounter = 0;
-        } else {
-            getTileColorFromZKAsync(chunk.xCoord, chunk.yCoord, tileXCoord, tileYCoord);
-        }   
-    }
+        for (int coords[] : chunkCoords) {
+            reads.add(readers.submit(() -> {
 
-    // given chunk and tile coordinates, get the tile's data from ZooKeeper
-    public Colorer.Color getTileColorFromZKSync(int chunkXCoord, int chunkYCoord, int tileXCoord, int tileYCoord) {
-        // System.out.printf("getTileUpdateFromZK: chunk: (%d, %d), tile: (%d, %d)\n", chunkXCoord, chunkYCoord, tileXCoord, tileYCoord);
+                int chunkColors[] = readChunkColorsFromZK(coords[0], coords[1]);
 
-        try {
+                // each chunk fills its own part of the image
+                for (int tileY = 0; tileY < Chunk.size; tileY++) {
 
-            // get the path for the given tile
-            String tilePath = Helpers.tileCoordsToNodePath(chunkXCoord, chunkYCoord, tileXCoord, tileYCoord);
+                    int imageY = coords[1] * Chunk.size + tileY - originY;
 
-            // get the tile data from ZooKeeper
-            byte[] data = zkm.syncGetData(tilePath, true);
+                    for (int tileX = 0; tileX < Chunk.size; tileX++) {
 
-            // if data was received, convert it to color enum
-            if (data != null) {
-                return Colorer.stringToColor(Helpers.bytesToASCII(data));
-            }
-            
-            errorRetryCounter = 0;
-        } catch (KeeperException e) {
-            // message = String.format("KeeperException: %s", e.getMessage());
-        } catch (InterruptedException e) {
-            message = String.format("InterruptedException: %s", e.getMessage());
+                        int imageX = coords[0] * Chunk.size + tileX - originX;
+
+                        if (imageY >= 0 && imageY < height && imageX >= 0 && imageX < width) {
+                            colors[imageY][imageX] = chunkColors[tileY * Chunk.size + tileX];
+                        }
+                    }
+                }
+
+                return null;
+            }));
         }
-        
-        return null;
-    }
 
-    // given chunk and tile coordinates, get the tile's data from ZooKeeper
-    public void getTileColorFromZKAsync(int chunkXCoord, int chunkYCoord, int tileXCoord, int tileYCoord) {
-        // System.out.printf("getTileUpdateFromZK: chunk: (%d, %d), tile: (%d, %d)\n", chunkXCoord, chunkYCoord, tileXCoord, tileYCoord);
+        readers.shutdown();
 
         try {
+            for (Future<?> read : reads) {
+                read.get();
+            }
 
-            // get the path for the given tile
-            String tilePath = Helpers.tileCoordsToNodePath(chunkXCoord, chunkYCoord, tileXCoord, tileYCoord);
+            CanvasImage.write(fileName, colors, Colorer.getPalette());
+            message = String.format("exported %d chunks to %s in %d ms", chunkCoords.size(), fileName, System.currentTimeMillis() - startTime);
 
-            // get the tile data from ZooKeeper
-            zkm.asyncGetData(tilePath, true);
-            
-        } catch (KeeperException e) {
-            message = String.format("KeeperException: %s", e.getMessage());
+        } catch (ExecutionException e) {
+            message = String.format("error: could not read the canvas: %s", e.getCause().getMessage());
+        } catch (IOException e) {
+            message = String.format("error: could not write %s: %s", fileName, e.getMessage());
         } catch (InterruptedException e) {
             message = String.format("InterruptedException: %s", e.getMessage());
         }
     }
 
-    // handle when a watched GetChildren call receives an update
-    public void handleWatchedGetChildren(String path) {
-        // System.out.printf("handle watched get children for path: %s\n", path);
+    // returns the palette index of every tile of a chunk row by row, from the canvas if the chunk is visible (and so kept up
+    // to date) and otherwise from ZooKeeper
+    public int[] readChunkColors(int chunkX, int chunkY) throws KeeperException, InterruptedException {
 
         Chunk chunk;
-        boolean isCurrentChunk;
-        
+
         synchronized (chunkLock) {
-            chunk = canvas.getChunkWithPath(path);
-            isCurrentChunk = chunk == currentChunk;
+            chunk = canvas.getChunkAtCoords(chunkX, chunkY);
         }
 
-        // check if the update to the list of children was for the current chunk being viewed
-        if (isCurrentChunk) {
-            updateAllChunkTiles(chunk, false);
-            drawDisplay();
+        if (chunk == null || !isChunkVisible(chunk)) {
+            return readChunkColorsFromZK(chunkX, chunkY);
         }
-    }
 
-    // handle when a watched GetData call receives an update (meaning the tile color was updated)
-    public void handleWatchedGetData(String path) {
+        int colors[] = new int[Chunk.size * Chunk.size];
 
-        Chunk chunk;
-        boolean isCurrentChunk;
-        
-        synchronized (chunkLock) {
-            chunk = canvas.getChunkWithPath(path);
-            isCurrentChunk = chunk == currentChunk;
+        for (int y = 0; y < Chunk.size; y++) {
+            for (int x = 0; x < Chunk.size; x++) {
+                colors[y * Chunk.size + x] = chunk.getTile(x, y).getColorIndex();
+            }
         }
 
-        // only update the chunk if it is the current chunk
-        if (isCurrentChunk) {
-            String tileName = Helpers.tileNameFromPath(path);
-            updateChunkTile(chunk, tileName, false);
-        }
+        return colors;
     }
 
-    // handle when an asynchronous call to GetData returns its data
-    public void handleGetDataCallback(String path, byte[] data) {
-
-        updateLog.add(System.currentTimeMillis());
-
-        Chunk chunk;
-        boolean isCurrentChunk;
-        
-        synchronized (chunkLock) {
-            chunk = canvas.getChunkWithPath(path);
-            isCurrentChunk = chunk == currentChunk;
-        }
+    // reads the palette index of every tile of a chunk row by row, without watching it
+    public int[] readChunkColorsFromZK(int chunkX, int chunkY) throws KeeperException, InterruptedException {
 
-        int tileXCoord = Helpers.tileXCoordFromPath(path);
-        int tileYCoord = Helpers.tileYCoordFromPath(path);
+        ZooKeeperMonitor chunkZkm = zkmForChunk(chunkX, chunkY);
+        int colors[] = new int[Chunk.size * Chunk.size];
+        List<String> tileNames;
 
-        Colorer.Color color = Colorer.Color.WHITE;
+        Arrays.fill(colors, Palette.defaultColorIndex);
 
-        if (data != null) {
-            color = Colorer.stringToColor(Helpers.bytesToASCII(data));
+        try {
+            tileNames = chunkZkm.syncGetChildren(Helpers.tilesPathForChunkCoords(chunkX, chunkY), false);
+        } catch (KeeperException.NoNodeException e) {
+            return colors;
         }
 
-        chunk.setTileColor(tileXCoord, tileYCoord, color);
+        ChunkFetch fetch = new ChunkFetch(chunkZkm, chunkX, chunkY, tileNames, false, config.fetchWindow);
+        fetch.fetch();
 
-        if (isCurrentChunk) {
-            drawTileUpdate(tileXCoord, tileYCoord);
+        for (int i = 0; i < colors.length; i++) {
+            if (fetch.colors[i] >= 0) {
+                colors[i] = fetch.colors[i];
+            }
         }
-    }
-
-    // handle if the ZooKeeper session is no longer valid
-    public void handleSessionClose(Code reasonCode) {
-        System.out.printf("error received from ZooKeeper: %s\n", reasonCode);
-        System.exit(1);
-    }
 
-    // handles when a state change of ZooKeeper was detected and sets the current message
-    public void handleSessionStateUpdate(String stateString) {
-        message = String.format("zookeeper system state was updated: %s", stateString);
+        return colors;
     }
 
-    // uses a thread to set a new tile color
-    public void setNewTileColorWithThread(int tileXCoord, int tileYCoord, String colorStr, boolean synchronous) {
-
-        new Thread(() -> {
-           setNewTileColor(tileXCoord, tileYCoord, colorStr, synchronous);
-        }).start();
-    } 
-
-    // sends a request to zookeeper to set the color of a given tile
-    public void setNewTileColor(int tileXCoord, int tileYCoord, String colorStr, boolean synchronous) {
-        // message = String.format("setting tile (%d, %d) to %s", tileXCoord, tileYCoord, colorStr);
+    // returns the palette index that every tile a shape paints in a chunk has in ZooKeeper right now, row by row, with the
+    // tiles the shape leaves alone set to transparent
+    // the tiles are read through the session that writes to the chunk, so the colors include the writes of the shapes
+    // queued before this one, which the tiles shown on the canvas may not have caught up with yet
+    int[] readPaintedTileColors(Rasterizer.ChunkTiles tiles) throws KeeperException, InterruptedException {
 
-        // makes sure that the tile is in the chunk
-        if (tileXCoord < 0 || tileXCoord >= Chunk.size || tileYCoord < 0 || tileYCoord >= Chunk.size) {
-            message = "error: invalid tile coordinates";
-            return;
-        }
-        
-        Colorer.Color color = Colorer.stringToColor(colorStr);
+        ZooKeeperMonitor chunkZkm = zkmForWrite(tiles.chunkX, tiles.chunkY);
+        int colors[] = new int[Chunk.size * Chunk.size];
+        List<String> paintedTileNames = new ArrayList<String>();
 
-        if (color == null) {
-            message = "error: invalid color, not setting tile data";
-            return;
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = tiles.colors[i] == CanvasImage.transparent ? CanvasImage.transparent : Palette.defaultColorIndex;
         }
 
         try {
+            for (String tileName : chunkZkm.syncGetChildren(Helpers.tilesPathForChunkCoords(tiles.chunkX, tiles.chunkY), false)) {
 
-            Chunk chunk;
-
-            synchronized (chunkLock) {
-                chunk = currentChunk;
-            }
-
-            // convert the color to bytes to write as the node data
-            byte[] colorData = colorStr.getBytes(StandardCharsets.UTF_8);
-
-            String tilePath = Helpers.tileCoordsToNodePath(chunk.xCoord, chunk.yCoord, tileXCoord, tileYCoord);
-
-            if (synchronous) {
-                
-                // make a call to ZooKeeper checking the current tile exists
-                boolean tileExists = zkm.syncExists(tilePath, false);
+                int tileX = Helpers.tileXCoordForTileName(tileName);
+                int tileY = Helpers.tileYCoordForTileName(tileName);
 
-                // check if the tile exists or not and set the data or create a new node accordingly
-                if (tileExists) {
-                    zkm.syncSetData(tilePath, colorData);
-                } else {
-                    zkm.syncCreate(tilePath, true, colorData);
+                if (tileX >= 0 && tileX < Chunk.size && tileY >= 0 && tileY < Chunk.size && tiles.colors[tileY * Chunk.size + tileX] != CanvasImage.transparent) {
+                    paintedTileNames.add(tileName);
                 }
-
-                drawTileUpdate(tileXCoord, tileYCoord);
-            } else {
-
-                zkm.asyncCreate(tilePath, true, colorData);
-                zkm.asyncSetData(tilePath, colorData);
-            }
-            
-        } catch (KeeperException e) {
-            if (e.code() != Code.NODEEXISTS) {
-                waitForRetryDueToError();
-                message = String.format("KeeperException: %s", e.getMessage());
-                setNewTileColor(tileXCoord, tileYCoord, colorStr, synchronous);
             }
-        } catch (InterruptedException e) {
-            message = String.format("InterruptedException: %s", e.getMessage());
+        } catch (KeeperException.NoNodeException e) {
+            return colors;
         }
-    }
-
-    // fills the octant of drawing a circle part with bresenham's algorithm
-    public void fillCirclePart(int xCenter, int yCenter, int xEdge, int yEdge, String colorStr) {
 
-        int minX = Math.min(xCenter, xEdge);
-        int maxX = Math.max(xCenter, xEdge);
-        int minY = Math.min(yCenter, yEdge);
-        int maxY = Math.max(yCenter, yEdge);
+        ChunkFetch fetch = new ChunkFetch(chunkZkm, tiles.chunkX, tiles.chunkY, paintedTileNames, false, config.fetchWindow);
+        fetch.fetch();
 
-        for (int y = minY; y <= maxY; y++) {
-            for (int x = minX; x <= maxX; x++) {
-                // setNewTileColor(x, y, colorStr, false);
-                setNewTileColorWithThread(x, y, colorStr, true);
+        for (int i = 0; i < colors.length; i++) {
+            if (fetch.colors[i] >= 0) {
+                colors[i] = fetch.colors[i];
             }
         }
-    }
-
-    // bresenham's algorithm calculates 1 point and then reflects it over 8 octants of the circle
-    public void drawCirclePart(int xCenter, int yCenter, int xOffset, int yOffset, boolean fill, String colorStr) {
-
-        // set the circle outline
-        setNewTileColorWithThread(xCenter+xOffset, yCenter+yOffset, colorStr, true);
-        setNewTileColorWithThread(xCenter-xOffset, yCenter+yOffset, colorStr, true);
-        setNewTileColorWithThread(xCenter+xOffset, yCenter-yOffset, colorStr, true);
-        setNewTileColorWithThread(xCenter-xOffset, yCenter-yOffset, colorStr, true);
-        setNewTileColorWithThread(xCenter+yOffset, yCenter+xOffset, colorStr, true);
-        setNewTileColorWithThread(xCenter-yOffset, yCenter+xOffset, colorStr, true);
-        setNewTileColorWithThread(xCenter+yOffset, yCenter-xOffset, colorStr, true);
-        setNewTileColorWithThread(xCenter-yOffset, yCenter-xOffset, colorStr, true);
-        
-        if (fill) {
-            // some parts do overlap, so the same tile will be drawn multiple times to the same color
-            fillCirclePart(xCenter, yCenter, xCenter+xOffset, yCenter+yOffset, colorStr);
-            fillCirclePart(xCenter, yCenter, xCenter-xOffset, yCenter+yOffset, colorStr);
-            fillCirclePart(xCenter, yCenter, xCenter+xOffset, yCenter-yOffset, colorStr);
-            fillCirclePart(xCenter, yCenter, xCenter-xOffset, yCenter-yOffset, colorStr);
-            fillCirclePart(xCenter, yCenter, xCenter+yOffset, yCenter+xOffset, colorStr);
-            fillCirclePart(xCenter, yCenter, xCenter-yOffset, yCenter+xOffset, colorStr);
-            fillCirclePart(xCenter, yCenter, xCenter+yOffset, yCenter-xOffset, colorStr);
-            fillCirclePart(xCenter, yCenter, xCenter-yOffset, yCenter-xOffset, colorStr);
-        }
-    }
-
-    // draw's a circle using bresenham's algorithm
-    public void drawBresenhamCircle(int xCenter, int yCenter, int radius, boolean fill, String colorStr) {
-        
-        int xOffset = 0;
-        int yOffset = radius;
-        int d = 3 - 2 * radius;
-
-        drawCirclePart(xCenter, yCenter, xOffset, yOffset, fill, colorStr);
-        while (yOffset >= xOffset) { 
-            xOffset++;
-     
-            if (d > 0) {
-                yOffset--;
-                d = d + 4 * (xOffset - yOffset) + 10;
-            } else {
-                d = d + 4 * xOffset + 6;
-            }
 
-            drawCirclePart(xCenter, yCenter, xOffset, yOffset, fill, colorStr);
-        }
+        return colors;
     }
 
     // stores the current update log to file for data analysis
@@ -476,8 +1786,10 @@ public class Client implements ZooKeeperMonitor.ZooKeeperMonitorListener
 
             StringBuilder content = new StringBuilder();
 
-            for (int i = 0; i < updateLog.size(); i++) {
-                content.append(String.format("%d,%s\n", i+1, updateLog.get(i).toString()));
+            synchronized (updateLog) {
+                for (int i = 0; i < updateLog.size(); i++) {
+                    content.append(String.format("%d,%s\n", i+1, updateLog.get(i).toString()));
+                }
             }
 
             file.createNewFile();
@@ -504,32 +1816,172 @@ public class Client implements ZooKeeperMonitor.ZooKeeperMonitorListener
                 }
             }
 
-            if (writesDone == numWrites) {
-                break;
-            }
+            if (writesDone == numWrites) {
+                break;
+            }
+        }
+
+        try {
+            File outputDir = new File("experiment_output");
+            if (!outputDir.exists()) {
+                outputDir.mkdir();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        try {
+            String fileName = String.format("experiment_output/write_%d_%d.txt", numWrites, experimentNum);
+            File file = new File(fileName);
+            FileWriter fileWriter = new FileWriter(fileName);
+
+            file.createNewFile();
+            fileWriter.write(Long.toString(System.currentTimeMillis()));
+            fileWriter.close();
+            
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // adds the tiles of a set, rect, checker, circle, line or poly command to a rasterizer, with the command's tile
+    // coordinates offset by the given canvas-wide origin
+    // returns a warning to show about the command or null, and throws an IllegalArgumentException with the message to show
+    // if the command is invalid or its bounding box spans more than maxChunks chunks, in which case nothing is added
+    public static String rasterizeCommand(String parts[], int originX, int originY, int maxChunks, Rasterizer rasterizer) {
+
+        String commandType = parts[0];
+        String usage;
+        int numCoords;
+        int firstCoord = 1;
+
+        switch (commandType) {
+        case "set":
+            usage = "usage: 'set x y color'";
+            numCoords = 2;
+            break;
+        case "rect":
+            usage = "usage: 'rect x1 y1 x2 y2 color (x1, y1 = tile1 coords and x2, y2 = tile2 coords)";
+            numCoords = 4;
+            break;
+        case "checker":
+            usage = "usage: 'checker x1 y1 x2 y2 color1 color2 (x1, y1 = tile1 coords and x2, y2 = tile2 coords)";
+            numCoords = 4;
+            break;
+        case "circle":
+            usage = "usage: 'circle x y r fill_type color (x, y = tile coords, r = radius, fill_type = fill or line)";
+            numCoords = 2;
+            break;
+        case "line":
+            usage = "usage: 'line x1 y1 x2 y2 color (x1, y1 = tile1 coords and x2, y2 = tile2 coords)";
+            numCoords = 4;
+            break;
+        case "poly":
+            usage = "usage: 'poly color x1 y1 x2 y2 x3 y3 ...' (the tile coords of at least 3 corners)";
+            numCoords = parts.length - 2;
+            firstCoord = 2;
+            break;
+        default:
+            throw new IllegalArgumentException(String.format("error: '%s' is not a painting command", commandType));
+        }
+
+        int expectedLength = commandType.equals("checker") ? 7 : commandType.equals("circle") ? 6 : numCoords + 2;
+
+        if (parts.length != expectedLength || (commandType.equals("poly") && (numCoords < 6 || numCoords % 2 != 0))) {
+            throw new IllegalArgumentException(usage);
+        }
+
+        // try to parse the inputted tile coordinates, which are offset to canvas-wide coordinates
+        int coords[] = new int[numCoords];
+        int radius = 0;
+
+        try {
+            for (int i = 0; i < numCoords; i++) {
+
+                long coord = Long.parseLong(parts[firstCoord + i]) + (i % 2 == 0 ? originX : originY);
+
+                if (coord != (int) coord) {
+                    throw new NumberFormatException();
+                }
+
+                coords[i] = (int) coord;
+            }
+
+            if (commandType.equals("circle")) {
+                radius = Integer.parseInt(parts[3]);
+            }
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(commandType.equals("circle") ? "error: invalid tile coordinates or radius" : "error: invalid tile coordinates");
+        }
+
+        if (commandType.equals("circle") && radius < 1) {
+            throw new IllegalArgumentException("error: invalid radius, please enter a postive integer");
         }
 
-        try {
-            File outputDir = new File("experiment_output");
-            if (!outputDir.exists()) {
-                outputDir.mkdir();
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+        // the bounding box is checked before anything is painted, so a typo cannot allocate and queue millions of tiles
+        long minX = Long.MAX_VALUE;
+        long minY = Long.MAX_VALUE;
+        long maxX = Long.MIN_VALUE;
+        long maxY = Long.MIN_VALUE;
+
+        for (int i = 0; i < numCoords; i += 2) {
+            minX = Math.min(minX, (long) coords[i] - radius);
+            maxX = Math.max(maxX, (long) coords[i] + radius);
+            minY = Math.min(minY, (long) coords[i + 1] - radius);
+            maxY = Math.max(maxY, (long) coords[i + 1] + radius);
         }
 
-        try {
-            String fileName = String.format("experiment_output/write_%d_%d.txt", numWrites, experimentNum);
-            File file = new File(fileName);
-            FileWriter fileWriter = new FileWriter(fileName);
+        if (minX < Integer.MIN_VALUE || minY < Integer.MIN_VALUE || maxX > Integer.MAX_VALUE || maxY > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("error: invalid tile coordinates or radius");
+        }
 
-            file.createNewFile();
-            fileWriter.write(Long.toString(System.currentTimeMillis()));
-            fileWriter.close();
-            
-        } catch (IOException e) {
-            e.printStackTrace();
+        long numChunks = Helpers.chunksSpanned(minX, minY, maxX, maxY);
+
+        if (numChunks > maxChunks) {
+            throw new IllegalArgumentException(String.format("error: the %s spans %d chunks, more than the limit of %d", commandType, numChunks, maxChunks));
+        }
+
+        // poly starts with its color, checker ends with two colors and every other command ends with its color
+        int colorIndex = Colorer.stringToColorIndex(commandType.equals("poly") ? parts[1] : commandType.equals("checker") ? parts[5] : parts[expectedLength - 1]);
+        int colorIndex2 = commandType.equals("checker") ? Colorer.stringToColorIndex(parts[6]) : 0;
+
+        if (colorIndex < 0 || colorIndex2 < 0) {
+            throw new IllegalArgumentException("error: invalid color, not setting tile data");
+        }
+
+        String warning = null;
+
+        switch (commandType) {
+        case "set":
+            rasterizer.point(coords[0], coords[1], colorIndex);
+            break;
+        case "rect":
+            rasterizer.rect(coords[0], coords[1], coords[2], coords[3], colorIndex);
+            break;
+        case "checker":
+            // the pattern is aligned to the canvas, so tiles whose canvas-wide x + y is even get color1
+            rasterizer.checker(coords[0], coords[1], coords[2], coords[3], colorIndex, colorIndex2);
+            break;
+        case "circle":
+
+            String fillType = parts[4];
+            boolean shouldFill = fillType.equals("solid") || fillType.equals("fill");
+
+            if (!shouldFill && !fillType.equals("line")) {
+                warning = "invalid fill_type, defaulting to 'line'";
+            }
+
+            rasterizer.circle(coords[0], coords[1], radius, shouldFill, colorIndex);
+            break;
+        case "line":
+            rasterizer.line(coords[0], coords[1], coords[2], coords[3], colorIndex);
+            break;
+        case "poly":
+            rasterizer.polygon(coords, colorIndex);
+            break;
         }
+
+        return warning;
     }
 
     // handle a user inputted command
@@ -547,6 +1999,22 @@ public class Client implements ZooKeeperMonitor.ZooKeeperMonitorListener
             chunk = currentChunk;
         }
 
+        // shapes are drawn in canvas-wide tile coordinates, so the current chunk's coordinates are offset by its top left tile
+        int originX = chunk.xCoord * Chunk.size;
+        int originY = chunk.yCoord * Chunk.size;
+
+        // viewers cannot paint
+        if (isViewer && Arrays.asList("set", "cas", "rect", "checker", "circle", "line", "poly", "fill", "undo", "redo", "write_test", "import", "rate", "quota").contains(commandType)) {
+            message = "error: this client was started as a viewer and cannot paint";
+            return;
+        }
+
+        // a relay only forwards the tiles of chunks, so the commands that read other nodes need ZooKeeper
+        if (relay != null && (Arrays.asList("hot", "overview", "export").contains(commandType) || command.equals("view hot"))) {
+            message = "error: this command is not available through a relay";
+            return;
+        }
+
         // check the type of command
         if (commandType.equals("set")) {
 
@@ -572,6 +2040,28 @@ public class Client implements ZooKeeperMonitor.ZooKeeperMonitorListener
 
             setNewTileColor(tileXCoord, tileYCoord, colorStr, true);
 
+        } else if (commandType.equals("cas")) {
+
+            if (parts.length != 4) {
+                message = "usage: 'cas x y color' (only sets the tile if nobody changed it since it was last displayed)";
+                return;
+            }
+
+            int tileXCoord = -1;
+            int tileYCoord = -1;
+
+            // try to parse the inputted tile coordinates
+            try{
+                tileXCoord = Integer.parseInt(parts[1]);
+                tileYCoord = Integer.parseInt(parts[2]);
+            }
+            catch (NumberFormatException ex){
+                message = "error: invalid tile coordinates";
+                return;
+            }
+
+            setNewTileColor(tileXCoord, tileYCoord, parts[3], true, true);
+
         } else if (commandType.equals("move")) {
 
             if (parts.length != 2) {
@@ -602,6 +2092,53 @@ public class Client implements ZooKeeperMonitor.ZooKeeperMonitorListener
             // set the current chunk to the given coordinates and get the data from ZooKeeper
             getChunkFromZK(newChunkXCoord, newChunkYCoord);
             
+        } else if (commandType.equals("view") && parts.length == 2 && parts[1].equals("hot")) {
+
+            // jump to the chunk with the most recent writes
+            List<ChunkDirectory.Entry> hottestEntries = readHottestChunks(1);
+
+            if (hottestEntries == null) {
+                return;
+            } else if (hottestEntries.isEmpty()) {
+                message = "error: the chunk directory is empty";
+                return;
+            }
+
+            getChunkFromZK(hottestEntries.get(0).chunkX, hottestEntries.get(0).chunkY);
+
+        } else if (commandType.equals("hot")) {
+
+            int numChunks = 5;
+
+            if (parts.length > 2) {
+                message = "usage: 'hot [n]' (n = number of chunks to list)";
+                return;
+            }
+
+            try {
+                if (parts.length == 2) {
+                    numChunks = Integer.parseInt(parts[1]);
+                }
+            } catch (NumberFormatException ex) {
+                message = "error: invalid number of chunks";
+                return;
+            }
+
+            List<ChunkDirectory.Entry> hottestEntries = readHottestChunks(numChunks);
+
+            if (hottestEntries == null) {
+                return;
+            }
+
+            StringBuilder hotStr = new StringBuilder("hot chunks:");
+            long currentTime = System.currentTimeMillis();
+
+            for (ChunkDirectory.Entry entry : hottestEntries) {
+                hotStr.append(String.format(" (%d, %d) %.1f writes, %d tiles;", entry.chunkX, entry.chunkY, entry.recentWritesAt(currentTime), entry.tileCount));
+            }
+
+            message = hotStr.toString();
+
         } else if (commandType.equals("view")) {
             
             if (parts.length != 3) {
@@ -625,141 +2162,198 @@ public class Client implements ZooKeeperMonitor.ZooKeeperMonitorListener
             // set the current chunk to the given coordinates and get the data from ZooKeeper
             getChunkFromZK(chunkXCoord, chunkYCoord);
 
-        } else if (commandType.equals("rect")) {
+        } else if (Arrays.asList("rect", "checker", "circle", "line", "poly").contains(commandType)) {
 
-            if (parts.length != 6) {
-                message = "usage: 'rect x1 y1 x2 y2 color (x1, y1 = tile1 coords and x2, y2 = tile2 coords)";
+            // tiles outside the current chunk are painted in the neighboring chunks
+            Rasterizer rasterizer = new Rasterizer();
+
+            try {
+                String warning = rasterizeCommand(parts, originX, originY, config.shapeChunks, rasterizer);
+
+                if (warning != null) {
+                    message = warning;
+                }
+            } catch (IllegalArgumentException e) {
+                message = e.getMessage();
                 return;
             }
 
-            String colorStr = parts[5];
+            paintRasterized(rasterizer, command);
 
-            int tile1XCoord = -1;
-            int tile1YCoord = -1;
+        } else if (commandType.equals("fill")) {
 
-            int tile2XCoord = -1;
-            int tile2YCoord = -1;
-            
-            // try to parse the inputted tile coordinates
-            try{
-                tile1XCoord = Integer.parseInt(parts[1]);
-                tile1YCoord = Integer.parseInt(parts[2]);
-                tile2XCoord = Integer.parseInt(parts[3]);
-                tile2YCoord = Integer.parseInt(parts[4]);
+            if (parts.length != 4) {
+                message = "usage: 'fill x y color' (paints the area of the same color around tile x, y)";
+                return;
             }
-            catch (NumberFormatException ex){
+
+            int tileXCoord = -1;
+            int tileYCoord = -1;
+
+            try {
+                tileXCoord = Integer.parseInt(parts[1]);
+                tileYCoord = Integer.parseInt(parts[2]);
+            } catch (NumberFormatException ex) {
                 message = "error: invalid tile coordinates";
                 return;
             }
 
-            int topLeftX = Math.min(tile1XCoord, tile2XCoord);
-            int topLeftY = Math.min(tile1YCoord, tile2YCoord);
-            int bottomRightX = Math.max(tile1XCoord, tile2XCoord);
-            int bottomRightY = Math.max(tile1YCoord, tile2YCoord);
+            if (tileXCoord < 0 || tileXCoord >= Chunk.size || tileYCoord < 0 || tileYCoord >= Chunk.size) {
+                message = "error: invalid tile coordinates";
+                return;
+            }
 
-            for (int y = topLeftY; y <= bottomRightY; y++) {
-                for (int x = topLeftX; x <= bottomRightX; x++) {
-                    setNewTileColorWithThread(x, y, colorStr, true);
-                }
+            int colorIndex = Colorer.stringToColorIndex(parts[3]);
+
+            if (colorIndex < 0) {
+                message = "error: invalid color, not setting tile data";
+                return;
+            }
+
+            // the area is found from the tiles this client already has, only reading the chunks it spreads into from ZooKeeper
+            FloodFill floodFill = new FloodFill((x, y) -> readChunkColors(x, y), chunk.xCoord, chunk.yCoord, config.fillRadius);
+            int numTiles;
+
+            try {
+                numTiles = floodFill.search(originX + tileXCoord, originY + tileYCoord);
+                errorRetryCounter = 0;
+            } catch (KeeperException e) {
+                message = String.format("KeeperException: %s", e.getMessage());
+                return;
+            } catch (InterruptedException e) {
+                message = String.format("InterruptedException: %s", e.getMessage());
+                return;
             }
-            
-        } else if (commandType.equals("checker")) {
 
-            if (parts.length != 7) {
-                message = "usage: 'checker x1 y1 x2 y2 color1 color2 (x1, y1 = tile1 coords and x2, y2 = tile2 coords)";
+            if (numTiles < 0) {
+                message = String.format("error: the area spreads more than %d chunks away, not filling it", config.fillRadius);
                 return;
             }
 
-            String colorStr1 = parts[5];
-            String colorStr2 = parts[6];
+            Rasterizer rasterizer = new Rasterizer();
+            floodFill.paint(rasterizer, colorIndex);
+            paintRasterized(rasterizer, command);
 
-            int tile1XCoord = -1;
-            int tile1YCoord = -1;
+        } else if (commandType.equals("undo") || commandType.equals("redo")) {
 
-            int tile2XCoord = -1;
-            int tile2YCoord = -1;
-            
-            // try to parse the inputted tile coordinates
-            try{
-                tile1XCoord = Integer.parseInt(parts[1]);
-                tile1YCoord = Integer.parseInt(parts[2]);
-                tile2XCoord = Integer.parseInt(parts[3]);
-                tile2YCoord = Integer.parseInt(parts[4]);
+            if (parts.length != 1) {
+                message = "usage: 'undo' or 'redo'";
+                return;
             }
-            catch (NumberFormatException ex){
-                message = "error: invalid tile coordinates";
+
+            // runs after any shapes that are still being written, so it sees their tiles
+            boolean redo = commandType.equals("redo");
+            batchExecutor.execute(() -> undoCommand(redo));
+
+        } else if (commandType.equals("viewport")) {
+
+            if (parts.length != 2 || !(parts[1].equals("on") || parts[1].equals("off"))) {
+                message = "usage: 'viewport on|off' (on = fill the terminal with the chunks around the current chunk)";
                 return;
             }
 
-            int topLeftX = Math.min(tile1XCoord, tile2XCoord);
-            int topLeftY = Math.min(tile1YCoord, tile2YCoord);
-            int bottomRightX = Math.max(tile1XCoord, tile2XCoord);
-            int bottomRightY = Math.max(tile1YCoord, tile2YCoord);
+            // redraw from scratch since the size of the display changes
+            synchronized (displayLock) {
+                viewportMode = parts[1].equals("on");
+                hasDrawnDisplayOnce = false;
+            }
 
-            for (int y = topLeftY; y <= bottomRightY; y++) {
-                for (int x = topLeftX; x <= bottomRightX; x++) {
+            updateViewport();
 
-                    // alternate colors in a checkboard pattern
-                    String colorStr;
-                    if (y % 2 == 0) {
-                        if (x % 2 == 0) {
-                            colorStr = colorStr1;
-                        } else {
-                            colorStr = colorStr2;
-                        }
-                    } else {
-                        if (x % 2 == 0) {
-                            colorStr = colorStr2;
-                        } else {
-                            colorStr = colorStr1;
-                        }
-                    }
+        } else if (commandType.equals("pending")) {
 
-                    setNewTileColorWithThread(x, y, colorStr, true);
-                }
+            if (parts.length != 2 || !(parts[1].equals("on") || parts[1].equals("off"))) {
+                message = "usage: 'pending on|off' (on = draw tiles that ZooKeeper has not acknowledged yet as shaded)";
+                return;
             }
-            
-        } else if (commandType.equals("circle")) {
 
-            if (parts.length != 6) {
-                message = "usage: 'circle x y r fill_type color (x, y = tile coords, r = radius, fill_type = fill or line)";
+            Tile.markPending = parts[1].equals("on");
+
+            synchronized (displayLock) {
+                hasDrawnDisplayOnce = false;
+            }
+
+        } else if (commandType.equals("rate")) {
+
+            if (parts.length > 3) {
+                message = "usage: 'rate [writes_per_second [batch_writes_per_second]]' (0 = no limit, leave out to show the current limits)";
                 return;
             }
 
-            int tileXCoord = -1;
-            int tileYCoord = -1;
-            int radius = -1;
-            
-            // try to parse the inputted tile coordinates
-            try{
-                tileXCoord = Integer.parseInt(parts[1]);
-                tileYCoord = Integer.parseInt(parts[2]);
-                radius = Integer.parseInt(parts[3]);
+            if (parts.length >= 2) {
+
+                double rate;
+                double batchRate;
+
+                try {
+                    rate = Double.parseDouble(parts[1]);
+                    batchRate = parts.length == 3 ? Double.parseDouble(parts[2]) : (writeQuota != null ? writeQuota.localBatchRate : batchLimiter.getMaxRate());
+                } catch (NumberFormatException ex) {
+                    message = "error: invalid rate";
+                    return;
+                }
+
+                if (writeQuota != null) {
+                    writeQuota.setLocalRates(rate, batchRate);
+                } else {
+                    writeLimiter.setMaxRate(rate);
+                    batchLimiter.setMaxRate(batchRate);
+                }
             }
-            catch (NumberFormatException ex){
-                message = "error: invalid tile coordinates or radius";
+
+            message = describeWriteLimit();
+
+        } else if (commandType.equals("quota")) {
+
+            double budget;
+
+            try {
+                budget = Double.parseDouble(parts.length == 2 ? parts[1] : "");
+            } catch (NumberFormatException ex) {
+                message = "usage: 'quota writes_per_second' (the budget shared by all writers started with --quota, 0 = no budget)";
                 return;
             }
 
-            if (radius < 1) {
-                message = "error: invalid radius, please enter a postive integer";
+            // setting the budget also makes this client share it
+            if (writeQuota == null) {
+                writeQuota = new WriteQuota(this, zkm);
+                writeQuota.join();
+            }
+
+            try {
+                writeQuota.setBudget(budget);
+                errorRetryCounter = 0;
+            } catch (KeeperException e) {
+                message = String.format("KeeperException: %s", e.getMessage());
+                return;
+            } catch (InterruptedException e) {
+                message = String.format("InterruptedException: %s", e.getMessage());
                 return;
             }
 
-            String colorStr = parts[5];
-            String fillType = parts[4];
-            boolean shouldFill = false;
+            // the watch on the quota node applies the new share, this only reports it
+            message = String.format("set the shared write budget to %.0f per second", Math.max(0, budget));
 
-            if (fillType.equals("solid") || fillType.equals("fill")) {
-                shouldFill = true;
-            } else if (fillType.equals("line")) {
-                shouldFill = false;
-            } else {
-                message = "invalid fill_type, defaulting to 'line'";
-                shouldFill = false;
+        } else if (commandType.equals("overview")) {
+
+            if (parts.length > 2) {
+                message = "usage: 'overview [small|off]' (small = one color per chunk)";
+                return;
             }
 
-            drawBresenhamCircle(tileXCoord, tileYCoord, radius, shouldFill, colorStr);
+            if (parts.length == 1) {
+                loadOverviewFromZK(ChunkSummary.gridSize);
+            } else if (parts[1].equals("small")) {
+                loadOverviewFromZK(1);
+            } else if (parts[1].equals("off")) {
+                synchronized (displayLock) {
+                    overviewMode = false;
+                    hasDrawnDisplayOnce = false;
+                }
+            } else {
+                message = "usage: 'overview [small|off]' (small = one color per chunk)";
+                return;
+            }
 
         } else if (commandType.equals("write_test")) {
 
@@ -782,6 +2376,35 @@ public class Client implements ZooKeeperMonitor.ZooKeeperMonitorListener
 
             performWriteExperimentAndSaveLog(experiment_num, num_writes);
 
+        } else if (commandType.equals("import") || commandType.equals("export")) {
+
+            // file names keep their case
+            String originalParts[] = commandInput.trim().split(" ");
+
+            if ((commandType.equals("import") && originalParts.length != 4) || (commandType.equals("export") && originalParts.length != 6)) {
+                message = "usage: 'import file x y' or 'export file x y width height' (x and y are canvas-wide tile coordinates of the top left corner)";
+                return;
+            }
+
+            int coords[] = new int[originalParts.length - 2];
+
+            try {
+                for (int i = 0; i < coords.length; i++) {
+                    coords[i] = Integer.parseInt(originalParts[i + 2]);
+                }
+            } catch (NumberFormatException ex) {
+                message = "error: invalid tile coordinates";
+                return;
+            }
+
+            if (commandType.equals("import")) {
+                importImage(originalParts[1], coords[0], coords[1]);
+            } else if (coords[2] <= 0 || coords[3] <= 0) {
+                message = "error: the width and height must be positive";
+            } else {
+                exportImage(originalParts[1], coords[0], coords[1], coords[2], coords[3]);
+            }
+
         } else if (commandType.equals("store")) {
 
             if (parts.length != 4) {
@@ -806,7 +2429,8 @@ public class Client implements ZooKeeperMonitor.ZooKeeperMonitorListener
             saveUpdateLog(server, experiment_num, updates_expected);
 
         } else {
-            message = "error: invalid command, please use 'set', 'move', 'view', 'rect', 'checker', or 'circle'";
+            message = "error: invalid command, please use 'set', 'cas', 'rect', 'checker', 'circle', 'line', 'poly', 'fill', 'undo', 'redo', 'move', 'view', 'viewport', "
+                    + "'overview', 'hot', 'pending', 'rate', 'quota', 'import', or 'export'";
         } 
 
         drawDisplay();
@@ -814,18 +2438,37 @@ public class Client implements ZooKeeperMonitor.ZooKeeperMonitorListener
         }).start();     
     }
 
+    // reads the chunk directory and returns the chunks with the most recent writes, or null if it could not be read
+    public List<ChunkDirectory.Entry> readHottestChunks(int numChunks) {
+        try {
+            List<ChunkDirectory.Entry> hottestEntries = ChunkDirectory.hottest(directory.readAll(), numChunks);
+            errorRetryCounter = 0;
+            return hottestEntries;
+        } catch (KeeperException e) {
+            message = String.format("KeeperException: %s", e.getMessage());
+        } catch (InterruptedException e) {
+            message = String.format("InterruptedException: %s", e.getMessage());
+        }
+
+        return null;
+    }
+
     // draws an individual tile to the display
-    public void drawTileUpdate(int tileXCoord, int tileYCoord) {
+    public void drawTileUpdate(Chunk chunk, int tileXCoord, int tileYCoord) {
+
+        if (headless) {
+            return;
+        }
 
         synchronized (displayLock) {
 
-            Chunk chunk;
+            Viewport currentViewport;
 
             synchronized (chunkLock) {
-                chunk = currentChunk;
+                currentViewport = viewport;
             }
 
-            if (chunk == null) {
+            if (chunk == null || currentViewport == null) {
                 return;
             }
 
@@ -833,7 +2476,15 @@ public class Client implements ZooKeeperMonitor.ZooKeeperMonitorListener
                 return;
             }
 
-            if (!hasDrawnDisplayOnce) {
+            // only the tiles inside the viewport are drawn
+            int row = currentViewport.rowForTile(chunk.yCoord, tileYCoord);
+            int column = currentViewport.columnForTile(chunk.xCoord, tileXCoord);
+
+            if (row < 0 || column < 0) {
+                return;
+            }
+
+            if (!hasDrawnDisplayOnce || overviewMode) {
                 return;
             }
             
@@ -842,7 +2493,7 @@ public class Client implements ZooKeeperMonitor.ZooKeeperMonitorListener
             int numDisplayedLines = lastDisplayStr.length() - lastDisplayStr.toString().replace("\n", "").length();
 
             // heavily dependent on the number of lines used to display, kinda wishy washy
-            int numUps = numDisplayedLines - tileYCoord - 1;
+            int numUps = numDisplayedLines - row - 1;
 
             // moving the cursor up
             for (int i = 0; i < numUps; i++) {
@@ -852,7 +2503,7 @@ public class Client implements ZooKeeperMonitor.ZooKeeperMonitorListener
             displayStr.append("\r");
 
             // moving the cursor right
-            for (int i = 0; i < tileXCoord * 2; i++) {
+            for (int i = 0; i < column * 2; i++) {
                 displayStr.append("\u001B[C");
             }
 
@@ -873,6 +2524,10 @@ public class Client implements ZooKeeperMonitor.ZooKeeperMonitorListener
     // prints the current display to console
     public void drawDisplay() {
 
+        if (headless) {
+            return;
+        }
+
         synchronized (displayLock) {
 
             if (!hasDrawnDisplayOnce) {
@@ -882,15 +2537,31 @@ public class Client implements ZooKeeperMonitor.ZooKeeperMonitorListener
             }
             
             Chunk chunk;
+            Viewport currentViewport;
+            String viewportStr;
+
             synchronized (chunkLock) {
                 chunk = currentChunk;
+                currentViewport = viewport;
+                viewportStr = overviewMode ? overview.render() : viewport.render(canvas);
             }
             StringBuilder displayStr = new StringBuilder();
 
             displayStr.append("\n");
-            displayStr.append(chunk.toString());
+            displayStr.append(viewportStr);
             displayStr.append("                                                                                                        \r");
-            displayStr.append(String.format("displaying: chunk (%d, %d)                                       \n", chunk.xCoord, chunk.yCoord));
+
+            if (overviewMode) {
+                int lastChunkX = overview.originChunkX + overview.widthInChunks - 1;
+                int lastChunkY = overview.originChunkY + overview.heightInChunks - 1;
+                displayStr.append(String.format("overview: chunks (%d, %d) to (%d, %d), use 'view x y' to open a chunk          \n", overview.originChunkX, overview.originChunkY, lastChunkX, lastChunkY));
+            } else if (viewportMode) {
+                int lastChunkX = Math.floorDiv(currentViewport.originX + currentViewport.width - 1, Chunk.size);
+                int lastChunkY = Math.floorDiv(currentViewport.originY + currentViewport.height - 1, Chunk.size);
+                displayStr.append(String.format("displaying: chunks (%d, %d) to (%d, %d), current chunk (%d, %d)          \n", chunk.xCoord, chunk.yCoord, lastChunkX, lastChunkY, chunk.xCoord, chunk.yCoord));
+            } else {
+                displayStr.append(String.format("displaying: chunk (%d, %d)                                       \n", chunk.xCoord, chunk.yCoord));
+            }
             displayStr.append("                                                                                                        \r");
             displayStr.append(String.format("message: %s\n", message));
         
@@ -924,6 +2595,9 @@ public class Client implements ZooKeeperMonitor.ZooKeeperMonitorListener
     // execute the main loop of the client
     public void run() {
         
+        loadPaletteFromZK();
+        startBackgroundPublisher();
+
         // start off by viewing chunk (0,0)
         getChunkFromZK(0, 0);
         drawDisplay();
@@ -949,13 +2623,130 @@ public class Client implements ZooKeeperMonitor.ZooKeeperMonitorListener
     // main method called on application launch
     public static void main(String[] args) throws KeeperException, IOException, InterruptedException {
 
+        String usage = "usage: Client [--role writer|viewer] [--observers <connect string>] [--config <settings file>] [--<setting> <value>] [--sync] [--precreate] [--quota] [--script <file or - for stdin>] (<connect string> | --shards <shard map file> | --relay <host>:<port>)";
+        ShardMap shardMap = null;
+        String observerConnectString = null;
+        boolean isViewer = false;
+        String configFileName = null;
+        List<String[]> settings = new ArrayList<String[]>(); // the settings given as flags, which override the settings file
+        String relayAddress = null;
+        String scriptName = null;
+
         // handle argument checking
-        if (args.length < 1) {
-            System.out.printf("error: please enter a ZooKeeper server to connect to\n");
+        for (int i = 0; i < args.length; i++) {
+
+            if (args[i].equals("--role") && i + 1 < args.length && (args[i + 1].equals("writer") || args[i + 1].equals("viewer"))) {
+                isViewer = args[++i].equals("viewer");
+            } else if (args[i].equals("--observers") && i + 1 < args.length) {
+                observerConnectString = args[++i];
+            } else if (args[i].equals("--script") && i + 1 < args.length) {
+                scriptName = args[++i];
+            } else if (args[i].equals("--config") && i + 1 < args.length) {
+                configFileName = args[++i];
+            } else if (args[i].startsWith("--") && Config.switchNames.contains(args[i].substring(2))) {
+                settings.add(new String[] { args[i].substring(2), "true" });
+            } else if (args[i].startsWith("--") && Config.names.contains(args[i].substring(2)) && i + 1 < args.length) {
+                settings.add(new String[] { args[i].substring(2), args[++i] });
+            } else if (args[i].equals("--relay") && i + 1 < args.length) {
+                relayAddress = args[++i];
+            } else if (args[i].equals("--shards") && i + 1 < args.length) {
+                try {
+                    shardMap = ShardMap.loadFromFile(args[++i]);
+                } catch (IOException e) {
+                    System.out.printf("error: could not load shard map: %s\n", e.getMessage());
+                    return;
+                }
+            } else if (!args[i].startsWith("--") && shardMap == null) {
+                shardMap = new ShardMap(args[i], null);
+            } else {
+                System.out.println(usage);
+                return;
+            }
+        }
+
+        // viewers of a relay do not connect to ZooKeeper at all
+        if (relayAddress != null) {
+
+            int portIndex = relayAddress.lastIndexOf(':');
+            Client client;
+
+            try {
+                client = new Client(relayAddress.substring(0, portIndex), Integer.parseInt(relayAddress.substring(portIndex + 1)));
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                System.out.println("error: the relay address must be <host>:<port>");
+                return;
+            } catch (IOException e) {
+                System.out.printf("error: could not connect to the relay: %s\n", e.getMessage());
+                return;
+            }
+
+            client.run();
             return;
-        }        
-        
-        Client client = new Client(args[0]);
+        }
+
+        if (shardMap == null) {
+            System.out.printf("error: please enter a ZooKeeper server to connect to, or '--shards <shard map file>'\n");
+            System.out.println(usage);
+            return;
+        }
+
+        if (observerConnectString != null) {
+            shardMap.defaultObserverConnectString = observerConnectString;
+        }
+
+        Config config = new Config();
+
+        try {
+            if (configFileName != null) {
+                config.loadFromFile(configFileName);
+            }
+
+            for (String setting[] : settings) {
+                config.set(setting[0], setting[1]);
+            }
+        } catch (IOException e) {
+            System.out.printf("error: could not load settings: %s\n", e.getMessage());
+            return;
+        } catch (IllegalArgumentException e) {
+            System.out.printf("error: %s\n", e.getMessage());
+            return;
+        }
+
+        System.out.printf("settings:\n%s", config.describe());
+
+        if (scriptName != null && isViewer) {
+            System.out.println("error: viewers cannot run scripts since they cannot paint");
+            return;
+        }
+
+        Client client = new Client(shardMap, isViewer, config);
+
+        // viewers never write, so they do not take a share of the budget
+        if (config.joinQuota && !isViewer) {
+            client.writeQuota = new WriteQuota(client, client.zkm);
+            client.writeQuota.join();
+        }
+
+        // a script is painted without drawing the canvas, and the client exits once it is done
+        if (scriptName != null) {
+
+            BufferedReader scriptReader;
+
+            try {
+                scriptReader = new BufferedReader(scriptName.equals("-") ? new InputStreamReader(System.in) : new FileReader(scriptName));
+            } catch (IOException e) {
+                System.out.printf("error: could not open %s: %s\n", scriptName, e.getMessage());
+                System.exit(1);
+                return;
+            }
+
+            client.headless = true;
+            client.loadPaletteFromZK();
+            boolean succeeded = client.runScript(scriptReader, scriptName.equals("-") ? "stdin" : scriptName);
+            scriptReader.close();
+            System.exit(succeeded ? 0 : 1);
+        }
+
         client.run();
     }
 }
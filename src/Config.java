@@ -0,0 +1,247 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+// class containing the settings a client can be tuned with, read from a file and from command line flags
+// every setting has a name that is used both as a 'name = value' line in the file and as a '--name value' flag
+// (or a bare '--name' flag for on/off settings), and the flags override the file
+public class Config {
+
+    // the names of the settings in the order they are printed
+    public static final List<String> names = Arrays.asList("sessions", "session-timeout", "batch-size", "max-in-flight", "rate", "burst",
+            "batch-rate", "quota", "retry-limit", "retry-delay", "fill-radius", "shape-chunks", "image-chunks", "history-size", "fetch-window", "sync", "precreate");
+
+    // the settings that are switched on by a bare flag
+    public static final List<String> switchNames = Arrays.asList("quota", "sync", "precreate");
+
+    public int writeSessions; // ZooKeeper sessions per ensemble that tile writes are spread over
+    public int sessionTimeout; // milliseconds a session may be disconnected before the ensemble expires it
+    public int batchSize; // tile writes per transaction of imports and undo
+    public int maxInFlight; // transactions waiting for a response at once, per write session
+    public double writeRate; // tile writes per second, 0 for no limit
+    public double writeBurst; // tile writes that can be saved up while idle and sent at once
+    public double batchRate; // tile writes per second of imports, shapes, fills, undo and scripts, 0 for no limit
+    public boolean joinQuota; // true if this client takes a share of the write budget shared by all writers
+    public int retryLimit; // times a failed request is retried in a row before the client gives up
+    public int retryDelay; // milliseconds to wait before retrying a failed request
+    public int fillRadius; // chunks on each side of the starting chunk that a fill may spread into
+    public int shapeChunks; // chunks the bounding box of a shape may span
+    public int imageChunks; // chunks an imported or exported region may span
+    public int historySize; // painting commands kept for undo and redo
+    public int fetchWindow; // tile reads waiting for a response at once while a chunk is loaded
+    public boolean syncBeforeLoad; // true if the ZooKeeper server should catch up with the leader before a chunk is loaded
+    public boolean precreateChunks; // true if every tile node of a chunk is created when the chunk is first written
+
+    public Config() {
+        this.writeSessions = 1;
+        this.sessionTimeout = ZooKeeperMonitor.defaultSessionTimeout;
+        this.batchSize = BatchWriter.defaultBatchSize;
+        this.maxInFlight = BatchWriter.defaultMaxInFlight;
+        this.writeRate = 500;
+        this.writeBurst = 100;
+        this.batchRate = 20000;
+        this.joinQuota = false;
+        this.retryLimit = 5;
+        this.retryDelay = 5000;
+        this.fillRadius = FloodFill.defaultChunkRadius;
+        this.shapeChunks = Rasterizer.defaultMaxChunks;
+        this.imageChunks = CanvasImage.defaultMaxChunks;
+        this.historySize = History.defaultCapacity;
+        this.fetchWindow = ChunkFetch.defaultWindow;
+        this.syncBeforeLoad = false;
+        this.precreateChunks = false;
+    }
+
+    // loads the settings in a file containing 'name = value' lines (lines starting with # are ignored) on top of the
+    // current ones
+    public void loadFromFile(String fileName) throws IOException {
+
+        BufferedReader reader = new BufferedReader(new FileReader(fileName));
+        String line;
+        int lineNum = 0;
+
+        try {
+            while ((line = reader.readLine()) != null) {
+
+                lineNum++;
+                line = line.trim();
+
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                int equalsIndex = line.indexOf('=');
+
+                if (equalsIndex < 0) {
+                    throw new IOException(String.format("%s:%d: expected 'name = value'", fileName, lineNum));
+                }
+
+                try {
+                    set(line.substring(0, equalsIndex).trim(), line.substring(equalsIndex + 1).trim());
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(String.format("%s:%d: %s", fileName, lineNum, e.getMessage()));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    // changes a setting, throwing an IllegalArgumentException describing the problem if the name or value is invalid
+    public void set(String name, String value) {
+
+        try {
+            switch (name) {
+            case "sessions":
+                writeSessions = parseInt(name, value, 1, 64);
+                break;
+            case "session-timeout":
+                sessionTimeout = parseInt(name, value, 1000, 600000);
+                break;
+            case "batch-size":
+                batchSize = parseInt(name, value, 1, Chunk.size * Chunk.size);
+                break;
+            case "max-in-flight":
+                maxInFlight = parseInt(name, value, 1, 1024);
+                break;
+            case "rate":
+                writeRate = parseDouble(name, value, 0);
+                break;
+            case "burst":
+                writeBurst = parseDouble(name, value, 1);
+                break;
+            case "batch-rate":
+                batchRate = parseDouble(name, value, 0);
+                break;
+            case "quota":
+                joinQuota = parseBoolean(name, value);
+                break;
+            case "retry-limit":
+                retryLimit = parseInt(name, value, 0, 1000);
+                break;
+            case "retry-delay":
+                retryDelay = parseInt(name, value, 0, 600000);
+                break;
+            case "fill-radius":
+                fillRadius = parseInt(name, value, 0, 20);
+                break;
+            case "shape-chunks":
+                shapeChunks = parseInt(name, value, 1, 10000);
+                break;
+            case "image-chunks":
+                imageChunks = parseInt(name, value, 1, 10000);
+                break;
+            case "history-size":
+                historySize = parseInt(name, value, 1, 10000);
+                break;
+            case "fetch-window":
+                fetchWindow = parseInt(name, value, 1, Chunk.size * Chunk.size);
+                break;
+            case "sync":
+                syncBeforeLoad = parseBoolean(name, value);
+                break;
+            case "precreate":
+                precreateChunks = parseBoolean(name, value);
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("unknown setting '%s'", name));
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("%s must be a number", name));
+        }
+    }
+
+    static int parseInt(String name, String value, int min, int max) {
+
+        int number = Integer.parseInt(value);
+
+        if (number < min || number > max) {
+            throw new IllegalArgumentException(String.format("%s must be between %d and %d", name, min, max));
+        }
+
+        return number;
+    }
+
+    static double parseDouble(String name, String value, double min) {
+
+        double number = Double.parseDouble(value);
+
+        if (!(number >= min) || Double.isInfinite(number)) {
+            throw new IllegalArgumentException(String.format("%s must be a number of at least %s", name, formatNumber(min)));
+        }
+
+        return number;
+    }
+
+    static boolean parseBoolean(String name, String value) {
+
+        if (value.equals("true") || value.equals("on")) {
+            return true;
+        } else if (value.equals("false") || value.equals("off")) {
+            return false;
+        }
+
+        throw new IllegalArgumentException(String.format("%s must be true or false", name));
+    }
+
+    // returns the current value of a setting as it would be written in a file
+    public String get(String name) {
+
+        switch (name) {
+        case "sessions":
+            return Integer.toString(writeSessions);
+        case "session-timeout":
+            return Integer.toString(sessionTimeout);
+        case "batch-size":
+            return Integer.toString(batchSize);
+        case "max-in-flight":
+            return Integer.toString(maxInFlight);
+        case "rate":
+            return formatNumber(writeRate);
+        case "burst":
+            return formatNumber(writeBurst);
+        case "batch-rate":
+            return formatNumber(batchRate);
+        case "quota":
+            return Boolean.toString(joinQuota);
+        case "retry-limit":
+            return Integer.toString(retryLimit);
+        case "retry-delay":
+            return Integer.toString(retryDelay);
+        case "fill-radius":
+            return Integer.toString(fillRadius);
+        case "shape-chunks":
+            return Integer.toString(shapeChunks);
+        case "image-chunks":
+            return Integer.toString(imageChunks);
+        case "history-size":
+            return Integer.toString(historySize);
+        case "fetch-window":
+            return Integer.toString(fetchWindow);
+        case "sync":
+            return Boolean.toString(syncBeforeLoad);
+        case "precreate":
+            return Boolean.toString(precreateChunks);
+        default:
+            return null;
+        }
+    }
+
+    static String formatNumber(double number) {
+        return number == Math.rint(number) ? String.format("%.0f", number) : Double.toString(number);
+    }
+
+    // returns every setting as a 'name = value' line, in the format loadFromFile reads
+    public String describe() {
+
+        StringBuilder description = new StringBuilder();
+
+        for (String name : names) {
+            description.append(String.format("%s = %s\n", name, get(name)));
+        }
+
+        return description.toString();
+    }
+}
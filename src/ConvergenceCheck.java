@@ -0,0 +1,169 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.zookeeper.KeeperException;
+
+// tool that checks that several clients painting the same chunk at the same time all end up showing what is stored in ZooKeeper
+// each client writes random colors to random tiles of a small area (mixing synchronous and asynchronous writes) so that
+// writes to the same tile race, then every client's copy of the chunk is compared against ZooKeeper once things settle
+public class ConvergenceCheck {
+
+    static final int areaSize = 8; // height and width in tiles of the area the clients write to, small so writes collide
+    static final int numColors = 16; // the writes only use the basic colors
+    static final long settleTimeout = 30000; // milliseconds to wait for the clients to finish handling responses
+    static final long settleQuietTime = 1000; // milliseconds that no client may change for it to count as settled
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length != 3 && args.length != 5) {
+            System.out.println("usage: ConvergenceCheck <connect string> <number of clients> <writes per client> [<chunk x> <chunk y>]");
+            System.exit(2);
+        }
+
+        String connectString = args[0];
+        int numClients = Integer.parseInt(args[1]);
+        int numWrites = Integer.parseInt(args[2]);
+        int chunkX = args.length == 5 ? Integer.parseInt(args[3]) : 0;
+        int chunkY = args.length == 5 ? Integer.parseInt(args[4]) : 0;
+
+        List<Client> clients = new ArrayList<Client>();
+
+        for (int i = 0; i < numClients; i++) {
+            Client client = new Client(connectString);
+            client.headless = true;
+            client.getChunkFromZK(chunkX, chunkY);
+            clients.add(client);
+        }
+
+        // run the randomized workload on every client at once
+        long startTime = System.currentTimeMillis();
+        List<Thread> writerThreads = new ArrayList<Thread>();
+
+        for (int i = 0; i < numClients; i++) {
+
+            Client client = clients.get(i);
+            Random random = new Random(startTime + i);
+
+            Thread writerThread = new Thread(() -> {
+                for (int w = 0; w < numWrites; w++) {
+                    client.setNewTileColor(random.nextInt(areaSize), random.nextInt(areaSize), Integer.toString(random.nextInt(numColors)), random.nextBoolean());
+                }
+            });
+
+            writerThreads.add(writerThread);
+            writerThread.start();
+        }
+
+        for (Thread writerThread : writerThreads) {
+            writerThread.join();
+        }
+
+        System.out.printf("%d clients made %d writes in %d ms\n", numClients, numClients * numWrites, System.currentTimeMillis() - startTime);
+
+        if (!waitUntilSettled(clients)) {
+            System.out.printf("clients did not settle within %d ms, comparing anyway\n", settleTimeout);
+        }
+
+        // the colors stored in ZooKeeper are what every client should show
+        int storedColors[][] = readStoredColors(clients.get(0), chunkX, chunkY);
+        int numMismatches = 0;
+
+        for (int i = 0; i < numClients; i++) {
+
+            Chunk chunk = clients.get(i).canvas.getChunkAtCoords(chunkX, chunkY);
+            int clientMismatches = 0;
+
+            for (int y = 0; y < Chunk.size; y++) {
+                for (int x = 0; x < Chunk.size; x++) {
+                    if (chunk.getTile(x, y).getColorIndex() != storedColors[y][x]) {
+                        clientMismatches++;
+
+                        if (clientMismatches <= 5) {
+                            System.out.printf("client %d: tile (%d, %d) shows %d but ZooKeeper has %d\n", i, x, y, chunk.getTile(x, y).getColorIndex(), storedColors[y][x]);
+                        }
+                    }
+                }
+            }
+
+            System.out.printf("client %d: %d mismatched tiles, %d stale responses dropped\n", i, clientMismatches, clients.get(i).staleUpdatesDropped.get());
+            numMismatches += clientMismatches;
+        }
+
+        if (numMismatches == 0) {
+            System.out.println("all clients converged");
+            System.exit(0);
+        } else {
+            System.out.printf("clients diverged: %d mismatched tiles in total\n", numMismatches);
+            System.exit(1);
+        }
+    }
+
+    // waits until no client has queued events, chunk fetches or pending writes and no tile changes for settleQuietTime
+    // returns false if that did not happen within settleTimeout
+    static boolean waitUntilSettled(List<Client> clients) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + settleTimeout;
+        String lastState = null;
+        long lastChangeTime = System.currentTimeMillis();
+
+        while (System.currentTimeMillis() < deadline) {
+
+            boolean busy = false;
+            StringBuilder state = new StringBuilder();
+
+            for (Client client : clients) {
+
+                busy |= client.dispatcher.getQueuedEventCount() > 0 || client.chunkFetchesInFlight.get() > 0;
+
+                List<Chunk> chunks;
+
+                synchronized (client.chunkLock) {
+                    chunks = client.canvas.getAllChunks();
+                }
+
+                for (Chunk chunk : chunks) {
+                    for (int y = 0; y < Chunk.size; y++) {
+                        for (int x = 0; x < Chunk.size; x++) {
+                            Tile tile = chunk.getTile(x, y);
+                            busy |= tile.isPending();
+                            state.append(tile.getColorIndex()).append(',');
+                        }
+                    }
+                }
+            }
+
+            if (busy || !state.toString().equals(lastState)) {
+                lastState = state.toString();
+                lastChangeTime = System.currentTimeMillis();
+            } else if (System.currentTimeMillis() - lastChangeTime >= settleQuietTime) {
+                return true;
+            }
+
+            Thread.sleep(100);
+        }
+
+        return false;
+    }
+
+    // reads the color of every tile of a chunk straight from ZooKeeper, after catching the server up with the leader
+    static int[][] readStoredColors(Client client, int chunkX, int chunkY) throws KeeperException, InterruptedException {
+
+        ZooKeeperMonitor chunkZkm = client.zkmForChunk(chunkX, chunkY);
+        chunkZkm.syncSync(Helpers.chunkCoordsToNodePath(chunkX, chunkY));
+
+        int colors[][] = new int[Chunk.size][Chunk.size];
+
+        for (int y = 0; y < Chunk.size; y++) {
+            for (int x = 0; x < Chunk.size; x++) {
+                try {
+                    colors[y][x] = Colorer.dataToColorIndex(chunkZkm.syncGetData(Helpers.tileCoordsToNodePath(chunkX, chunkY, x, y), false));
+                } catch (KeeperException.NoNodeException e) {
+                    colors[y][x] = Palette.defaultColorIndex;
+                }
+            }
+        }
+
+        return colors;
+    }
+}
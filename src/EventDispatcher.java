@@ -0,0 +1,82 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// class that runs the listener code of ZooKeeper events on a pool of worker threads instead of ZooKeeper's single event thread
+// events for the same chunk always go to the same worker so they are handled in the order they arrived,
+// while events for different chunks are handled in parallel
+public class EventDispatcher {
+
+    public static final int defaultQueueCapacity = 4096; // events each worker can have waiting before dispatching blocks
+
+    BlockingQueue<Runnable> workerQueues[];
+    Thread workers[];
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public EventDispatcher(int numWorkers, int queueCapacity) {
+
+        numWorkers = Math.max(1, numWorkers);
+        this.workerQueues = new BlockingQueue[numWorkers];
+        this.workers = new Thread[numWorkers];
+
+        for (int i = 0; i < numWorkers; i++) {
+            BlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(queueCapacity);
+            workerQueues[i] = queue;
+
+            workers[i] = new Thread(() -> {
+                while (true) {
+                    try {
+                        queue.take().run();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (RuntimeException e) {
+                        // one failed event should not stop the events queued behind it
+                        System.out.printf("error while handling a ZooKeeper event: %s\n", e);
+                    }
+                }
+            }, String.format("event-dispatcher-%d", i));
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    // creates a dispatcher with one worker per available processor
+    public EventDispatcher() {
+        this(Runtime.getRuntime().availableProcessors(), defaultQueueCapacity);
+    }
+
+    // queues an event to be handled by the worker responsible for the path's chunk
+    // if that worker is too far behind, this waits for room so that an update storm cannot use unbounded memory
+    public void dispatch(String path, Runnable event) {
+
+        BlockingQueue<Runnable> queue = workerQueues[Math.floorMod(orderingKey(path).hashCode(), workerQueues.length)];
+
+        try {
+            queue.put(event);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // returns the part of a path that events must be ordered by: the chunk node for anything inside a chunk, otherwise the whole path
+    static String orderingKey(String path) {
+
+        if (path == null || !path.startsWith(Helpers.rootNodePath + "/chunk_")) {
+            return path == null ? "" : path;
+        }
+
+        int chunkEnd = path.indexOf('/', Helpers.rootNodePath.length() + 1);
+        return chunkEnd < 0 ? path : path.substring(0, chunkEnd);
+    }
+
+    // returns the number of events waiting to be handled
+    public int getQueuedEventCount() {
+
+        int count = 0;
+
+        for (BlockingQueue<Runnable> queue : workerQueues) {
+            count += queue.size();
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,118 @@
+import java.util.BitSet;
+
+import org.apache.zookeeper.KeeperException;
+
+// class that finds the region of same colored tiles connected to a starting tile, used by the paint bucket
+// the search is limited to a square window of chunks around the starting chunk, whose tile colors are only fetched once
+// the search reaches them, and a region that reaches the edge of the window is treated as too large to fill
+public class FloodFill {
+
+    public static final int defaultChunkRadius = 2; // chunks on each side of the starting chunk that a fill may spread into
+
+    // interface for getting the palette index of every tile of a chunk row by row
+    public interface ChunkColorSource {
+        int[] getChunkColors(int chunkX, int chunkY) throws KeeperException, InterruptedException;
+    }
+
+    ChunkColorSource source;
+    int windowChunkX; // the chunk at the top left of the window
+    int windowChunkY;
+    int windowChunks; // height and width of the window in chunks
+    int windowSize; // height and width of the window in tiles
+    int chunkColors[][]; // the colors of each chunk in the window row by row, null until the search reaches the chunk
+    BitSet filled; // the tiles of the region, indexed by their position in the window row by row
+
+    public FloodFill(ChunkColorSource source, int chunkX, int chunkY, int chunkRadius) {
+        this.source = source;
+        this.windowChunkX = chunkX - chunkRadius;
+        this.windowChunkY = chunkY - chunkRadius;
+        this.windowChunks = 2 * chunkRadius + 1;
+        this.windowSize = windowChunks * Chunk.size;
+        this.chunkColors = new int[windowChunks * windowChunks][];
+        this.filled = new BitSet(windowSize * windowSize);
+    }
+
+    // returns the color of a tile given by its position in the window, fetching its chunk the first time
+    int colorAt(int windowX, int windowY) throws KeeperException, InterruptedException {
+
+        int chunkIndex = (windowY / Chunk.size) * windowChunks + windowX / Chunk.size;
+
+        if (chunkColors[chunkIndex] == null) {
+            chunkColors[chunkIndex] = source.getChunkColors(windowChunkX + windowX / Chunk.size, windowChunkY + windowY / Chunk.size);
+        }
+
+        return chunkColors[chunkIndex][(windowY % Chunk.size) * Chunk.size + windowX % Chunk.size];
+    }
+
+    // finds the region connected to a tile given in canvas-wide coordinates through its 4 neighbors
+    // returns the number of tiles in the region, or -1 if the region reaches the edge of the window
+    public int search(int startX, int startY) throws KeeperException, InterruptedException {
+
+        int originX = windowChunkX * Chunk.size;
+        int originY = windowChunkY * Chunk.size;
+        int x = startX - originX;
+        int y = startY - originY;
+
+        if (x < 0 || y < 0 || x >= windowSize || y >= windowSize) {
+            return -1;
+        }
+
+        int targetColor = colorAt(x, y);
+
+        // every tile is queued at most once, as its position in the window
+        int queue[] = new int[windowSize * windowSize];
+        int head = 0;
+        int tail = 0;
+
+        filled.set(y * windowSize + x);
+        queue[tail++] = y * windowSize + x;
+
+        while (head < tail) {
+
+            int index = queue[head++];
+            x = index % windowSize;
+            y = index / windowSize;
+
+            // the region is unbounded as far as the window can tell
+            if (x == 0 || y == 0 || x == windowSize - 1 || y == windowSize - 1) {
+                filled.clear();
+                return -1;
+            }
+
+            tail = visit(index - 1, targetColor, queue, tail);
+            tail = visit(index + 1, targetColor, queue, tail);
+            tail = visit(index - windowSize, targetColor, queue, tail);
+            tail = visit(index + windowSize, targetColor, queue, tail);
+        }
+
+        return tail;
+    }
+
+    // adds a tile to the region and queues it if it has the region's color, returns the new end of the queue
+    int visit(int index, int targetColor, int queue[], int tail) throws KeeperException, InterruptedException {
+
+        if (!filled.get(index) && colorAt(index % windowSize, index / windowSize) == targetColor) {
+            filled.set(index);
+            queue[tail++] = index;
+        }
+
+        return tail;
+    }
+
+    // paints the region found by search as one span per run of tiles in each row
+    public void paint(Rasterizer rasterizer, int colorIndex) {
+
+        int originX = windowChunkX * Chunk.size;
+        int originY = windowChunkY * Chunk.size;
+        int start = filled.nextSetBit(0);
+
+        while (start >= 0) {
+
+            // runs end at the edge of their row, since the region never touches the edge of the window
+            int end = filled.nextClearBit(start);
+            int y = start / windowSize;
+            rasterizer.span(originY + y, originX + start % windowSize, originX + (end - 1) % windowSize, 1, colorIndex);
+            start = filled.nextSetBit(end);
+        }
+    }
+}
@@ -5,6 +5,20 @@ public class Helpers {
     // the root path where the canvas is stored
     public static final String rootNodePath = "/canvas";
 
+    // the path where the canvas's color palette is stored
+    public static final String paletteNodePath = rootNodePath + "/palette";
+
+    // the path where the directory of chunks and their activity is stored
+    public static final String directoryNodePath = rootNodePath + "/directory";
+
+    // the path where the write budget shared by all writers and the writers sharing it are stored
+    public static final String quotaNodePath = rootNodePath + "/quota";
+
+    // converts x and y coordinates of a region to the path of its directory node
+    public static String regionCoordsToNodePath(int x, int y) {
+        return String.format("%s/region_%d,%d", directoryNodePath, x, y);
+    }
+
     // converts x and y coordinates to a chunk path
     public static String chunkCoordsToNodePath(int x, int y) {
         return String.format("%s/chunk_%d,%d", rootNodePath, x, y);
@@ -20,6 +34,12 @@ public class Helpers {
         return String.format("%s/tile_%d,%d", tilesPathForChunkCoords(chunkX, chunkY), tileX, tileY);
     }
 
+    // returns how many chunks the rectangle between two canvas-wide tile coordinates (inclusive) spans
+    // the coordinates are longs, so the corners of a region can be checked before they are known to fit in an int
+    public static long chunksSpanned(long minX, long minY, long maxX, long maxY) {
+        return (Math.floorDiv(maxX, Chunk.size) - Math.floorDiv(minX, Chunk.size) + 1) * (Math.floorDiv(maxY, Chunk.size) - Math.floorDiv(minY, Chunk.size) + 1);
+    }
+
     // converts a byte array into a string
     public static String bytesToASCII(byte[] data) {
         try {
@@ -0,0 +1,179 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// class that keeps the most recent painting commands of this client so they can be undone and redone
+// each entry stores the tiles a command changed as runs of tiles (in row by row order within a chunk) that share their
+// previous color, new color and the version their node was left at, so a command that paints a whole chunk in one color
+// usually takes a single run, and the oldest entries are dropped once the history is full
+public class History {
+
+    public static final int defaultCapacity = 50;
+
+    // class containing the tiles changed by one command
+    public static class Entry {
+
+        public String command;
+        List<int[]> chunkCoords; // { chunk x, chunk y } of each chunk the command changed
+        List<int[]> chunkRuns; // the runs of each chunk, 4 ints per run: first tile, length, previous color << 16 | new color, version
+
+        public Entry(String command) {
+            this.command = command;
+            this.chunkCoords = new ArrayList<int[]>();
+            this.chunkRuns = new ArrayList<int[]>();
+        }
+
+        // adds the tiles of a chunk, given as full chunk arrays row by row where tiles that were not written have a version of -1
+        public void addChunk(int chunkX, int chunkY, int previousColors[], int newColors[], int versions[]) {
+
+            int runs[] = new int[16];
+            int numInts = 0;
+
+            for (int i = 0; i < versions.length; i++) {
+
+                if (versions[i] < 0) {
+                    continue;
+                }
+
+                int colors = (previousColors[i] << 16) | (newColors[i] & 0xffff);
+
+                // extend the last run if the tile continues it
+                if (numInts > 0 && runs[numInts - 4] + runs[numInts - 3] == i && runs[numInts - 2] == colors && runs[numInts - 1] == versions[i]) {
+                    runs[numInts - 3]++;
+                    continue;
+                }
+
+                if (numInts == runs.length) {
+                    int grownRuns[] = new int[runs.length * 2];
+                    System.arraycopy(runs, 0, grownRuns, 0, numInts);
+                    runs = grownRuns;
+                }
+
+                runs[numInts++] = i;
+                runs[numInts++] = 1;
+                runs[numInts++] = colors;
+                runs[numInts++] = versions[i];
+            }
+
+            if (numInts == 0) {
+                return;
+            }
+
+            int trimmedRuns[] = new int[numInts];
+            System.arraycopy(runs, 0, trimmedRuns, 0, numInts);
+            chunkCoords.add(new int[] { chunkX, chunkY });
+            chunkRuns.add(trimmedRuns);
+        }
+
+        // adds a single tile of a chunk
+        public void addTile(int chunkX, int chunkY, int tileIndex, int previousColor, int newColor, int version) {
+            chunkCoords.add(new int[] { chunkX, chunkY });
+            chunkRuns.add(new int[] { tileIndex, 1, (previousColor << 16) | (newColor & 0xffff), version });
+        }
+
+        public int getNumChunks() {
+            return chunkCoords.size();
+        }
+
+        public int getChunkX(int chunk) {
+            return chunkCoords.get(chunk)[0];
+        }
+
+        public int getChunkY(int chunk) {
+            return chunkCoords.get(chunk)[1];
+        }
+
+        // fills full chunk arrays with the tiles of a chunk, setting the version of tiles that were not written to -1
+        public void getChunk(int chunk, int previousColors[], int newColors[], int versions[]) {
+
+            int runs[] = chunkRuns.get(chunk);
+
+            Arrays.fill(versions, -1);
+
+            for (int r = 0; r < runs.length; r += 4) {
+                for (int i = runs[r]; i < runs[r] + runs[r + 1]; i++) {
+                    previousColors[i] = runs[r + 2] >>> 16;
+                    newColors[i] = runs[r + 2] & 0xffff;
+                    versions[i] = runs[r + 3];
+                }
+            }
+        }
+
+        // returns the number of tiles the command changed
+        public int getNumTiles() {
+
+            int numTiles = 0;
+
+            for (int runs[] : chunkRuns) {
+                for (int r = 0; r < runs.length; r += 4) {
+                    numTiles += runs[r + 1];
+                }
+            }
+
+            return numTiles;
+        }
+    }
+
+    Entry entries[]; // ring buffer of entries from oldest to newest, starting at firstEntry
+    int firstEntry;
+    int numEntries;
+    int numApplied; // the entries that have not been undone, the ones after them can be redone
+
+    public History(int capacity) {
+        this.entries = new Entry[Math.max(1, capacity)];
+        this.firstEntry = 0;
+        this.numEntries = 0;
+        this.numApplied = 0;
+    }
+
+    public History() {
+        this(defaultCapacity);
+    }
+
+    // adds the entry of a new command, which can no longer be followed by a redo of the entries undone before it
+    public synchronized void record(Entry entry) {
+
+        if (entry.getNumChunks() == 0) {
+            return;
+        }
+
+        numEntries = numApplied;
+
+        if (numEntries == entries.length) {
+            entries[firstEntry] = null;
+            firstEntry = (firstEntry + 1) % entries.length;
+            numEntries--;
+            numApplied--;
+        }
+
+        entries[(firstEntry + numEntries) % entries.length] = entry;
+        numEntries++;
+        numApplied++;
+    }
+
+    // returns the entry that undo would revert, or null if there is none
+    public synchronized Entry peekUndo() {
+        return numApplied > 0 ? entries[(firstEntry + numApplied - 1) % entries.length] : null;
+    }
+
+    // returns the entry that redo would apply again, or null if there is none
+    public synchronized Entry peekRedo() {
+        return numApplied < numEntries ? entries[(firstEntry + numApplied) % entries.length] : null;
+    }
+
+    // replaces the entry returned by peekUndo with the entry for redoing it, once it has been undone
+    public synchronized void finishUndo(Entry undoneEntry, Entry redoEntry) {
+        if (peekUndo() == undoneEntry) {
+            numApplied--;
+            entries[(firstEntry + numApplied) % entries.length] = redoEntry;
+        }
+    }
+
+    // replaces the entry returned by peekRedo with the entry for undoing it again, once it has been redone
+    public synchronized void finishRedo(Entry redoneEntry, Entry undoEntry) {
+        if (peekRedo() == redoneEntry) {
+            entries[(firstEntry + numApplied) % entries.length] = undoEntry;
+            numApplied++;
+        }
+    }
+}
@@ -0,0 +1,577 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.Adler32;
+import java.util.zip.CheckedInputStream;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.DataNode;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.TxnLogEntry;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.server.persistence.Util;
+import org.apache.zookeeper.server.util.SerializeUtils;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.DeleteTxn;
+import org.apache.zookeeper.txn.MultiTxn;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.Txn;
+import org.apache.zookeeper.txn.CreateContainerTxn;
+import org.apache.zookeeper.txn.CreateTTLTxn;
+
+// offline tool that rebuilds the canvas as it was at any zxid or time from a ZooKeeper server's data directory
+// it starts from the newest snapshot taken before that point and replays the transaction logs after it, reading the logs
+// through memory mapped buffers, and never connects to the ensemble
+// the result can be exported as an image, or written as a timelapse of images taken at a fixed interval of log time
+public class LogReplay {
+
+    static final int logFileHeaderSize = 16; // magic, version and database id at the start of every log file
+    static final int txnHeaderZxidOffset = 12; // the zxid and time are read from a transaction's header without decoding it
+    static final int txnHeaderTimeOffset = 20;
+
+    File logDir; // the version-2 directory holding the snapshots and logs
+    HashMap<Long, int[]> chunkColors; // the palette index of every tile row by row of each chunk that exists
+    Palette palette;
+    long lastZxid; // the zxid of the last transaction applied
+    long lastTime; // the time of the last transaction applied
+    long txnsApplied;
+    int maxRegionChunks; // chunks a drawn region may span, so drawing a canvas spread far apart cannot run out of memory
+
+    public LogReplay(File dataDir) throws IOException {
+
+        // both the data directory and its version-2 directory are accepted
+        File versionDir = new File(dataDir, "version-2");
+        this.logDir = versionDir.isDirectory() ? versionDir : dataDir;
+
+        if (!logDir.isDirectory()) {
+            throw new IOException(String.format("%s is not a directory", dataDir));
+        }
+
+        this.chunkColors = new HashMap<Long, int[]>();
+        this.palette = Palette.createDefault();
+        this.lastZxid = 0;
+        this.lastTime = 0;
+        this.txnsApplied = 0;
+        this.maxRegionChunks = CanvasImage.defaultMaxChunks;
+    }
+
+    // returns the snapshot files from oldest to newest
+    public static List<File> findSnapshots(File logDir) {
+        return Util.sortDataDir(logDir.listFiles(), "snapshot", true);
+    }
+
+    // loads a snapshot file into a data tree
+    public static DataTree loadSnapshot(File snapshotFile) throws IOException {
+
+        DataTree dataTree = new DataTree();
+
+        try (InputStream in = new CheckedInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)), new Adler32())) {
+            new FileSnap(snapshotFile.getParentFile()).deserialize(dataTree, new HashMap<Long, Integer>(), BinaryInputArchive.getArchive(in));
+        }
+
+        return dataTree;
+    }
+
+    // rebuilds the canvas up to and including the last transaction with a zxid of at most toZxid and a time of at most toTime
+    // if framesDir is not null, an image of the region is written there every frameInterval milliseconds of log time
+    public void replay(long toZxid, long toTime, File framesDir, long frameInterval, int region[]) throws IOException {
+
+        List<File> logFiles = Util.sortDataDir(logDir.listFiles(), "log", true);
+
+        // a time is turned into a zxid first, so the right snapshot can be picked
+        if (toTime < Long.MAX_VALUE) {
+            toZxid = Math.min(toZxid, findLastZxidBefore(logFiles, toTime));
+        }
+
+        File snapshotFile = null;
+
+        for (File file : findSnapshots(logDir)) {
+            if (Util.getZxidFromName(file.getName(), "snapshot") <= toZxid) {
+                snapshotFile = file;
+            }
+        }
+
+        if (snapshotFile != null) {
+            loadCanvas(loadSnapshot(snapshotFile));
+            lastZxid = Util.getZxidFromName(snapshotFile.getName(), "snapshot");
+            System.out.printf("loaded %s (%d chunks)\n", snapshotFile.getName(), chunkColors.size());
+        }
+
+        long nextFrameTime = -1;
+        int frameNumber = 0;
+
+        // only the last log that starts at or before the snapshot and the logs after it hold newer transactions
+        for (int i = 0; i < logFiles.size(); i++) {
+
+            long logStartZxid = Util.getZxidFromName(logFiles.get(i).getName(), "log");
+
+            if (logStartZxid > toZxid) {
+                break;
+            }
+            if (i + 1 < logFiles.size() && Util.getZxidFromName(logFiles.get(i + 1).getName(), "log") <= lastZxid + 1) {
+                continue;
+            }
+
+            try (RandomAccessFile file = new RandomAccessFile(logFiles.get(i), "r"); FileChannel channel = file.getChannel()) {
+
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                buffer.position(logFileHeaderSize);
+                byte txnBytes[];
+
+                while ((txnBytes = nextTxn(buffer)) != null) {
+
+                    long zxid = ByteBuffer.wrap(txnBytes, txnHeaderZxidOffset, 8).getLong();
+                    long time = ByteBuffer.wrap(txnBytes, txnHeaderTimeOffset, 8).getLong();
+
+                    // snapshots are fuzzy, so transactions up to their zxid are already included
+                    if (zxid <= lastZxid) {
+                        continue;
+                    }
+                    if (zxid > toZxid) {
+                        break;
+                    }
+
+                    if (framesDir != null) {
+
+                        if (nextFrameTime < 0) {
+                            nextFrameTime = time;
+                        }
+
+                        // a frame shows the canvas before the first transaction past its time, and stretches of the log
+                        // without any transactions are skipped rather than repeated frame after frame
+                        if (time >= nextFrameTime) {
+                            CanvasImage.write(new File(framesDir, String.format("frame_%05d.ppm", frameNumber++)).getPath(), getRegionColors(region), palette);
+                            nextFrameTime += ((time - nextFrameTime) / frameInterval + 1) * frameInterval;
+                        }
+                    }
+
+                    TxnLogEntry entry = SerializeUtils.deserializeTxn(txnBytes);
+                    applyTxn(entry.getTxn());
+                    lastZxid = zxid;
+                    lastTime = time;
+                    txnsApplied++;
+                }
+            }
+        }
+
+        if (framesDir != null) {
+            CanvasImage.write(new File(framesDir, String.format("frame_%05d.ppm", frameNumber++)).getPath(), getRegionColors(region), palette);
+            System.out.printf("wrote %d frames to %s\n", frameNumber, framesDir);
+        }
+    }
+
+    // returns the next transaction of a log, or null at the end of the log or at a transaction that was only partly written
+    // each transaction is stored as its checksum, its length, its bytes and an end of record marker
+    static byte[] nextTxn(ByteBuffer buffer) {
+
+        if (buffer.remaining() < 12) {
+            return null;
+        }
+
+        long checksum = buffer.getLong();
+        int length = buffer.getInt();
+
+        // logs are preallocated with zeros past the last transaction
+        if (length <= 0 || length + 1 > buffer.remaining()) {
+            return null;
+        }
+
+        byte txnBytes[] = new byte[length];
+        buffer.get(txnBytes);
+        buffer.get();
+
+        Adler32 adler = new Adler32();
+        adler.update(txnBytes, 0, length);
+
+        return adler.getValue() == checksum ? txnBytes : null;
+    }
+
+    // returns the zxid of the last transaction at or before a time, reading only the transactions' headers
+    static long findLastZxidBefore(List<File> logFiles, long toTime) throws IOException {
+
+        long lastZxid = 0;
+
+        for (File logFile : logFiles) {
+            try (RandomAccessFile file = new RandomAccessFile(logFile, "r"); FileChannel channel = file.getChannel()) {
+
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                buffer.position(logFileHeaderSize);
+                byte txnBytes[];
+
+                while ((txnBytes = nextTxn(buffer)) != null) {
+
+                    if (ByteBuffer.wrap(txnBytes, txnHeaderTimeOffset, 8).getLong() > toTime) {
+                        return lastZxid;
+                    }
+
+                    lastZxid = ByteBuffer.wrap(txnBytes, txnHeaderZxidOffset, 8).getLong();
+                }
+            }
+        }
+
+        return lastZxid;
+    }
+
+    // copies the palette and the tiles of every chunk out of a snapshot's data tree
+    void loadCanvas(DataTree dataTree) {
+
+        DataNode paletteNode = dataTree.getNode(Helpers.paletteNodePath);
+
+        if (paletteNode != null) {
+            setPalette(paletteNode.getData());
+        }
+
+        DataNode rootNode = dataTree.getNode(Helpers.rootNodePath);
+
+        if (rootNode == null) {
+            return;
+        }
+
+        for (String chunkName : rootNode.getChildren()) {
+
+            if (!chunkName.startsWith("chunk_")) {
+                continue;
+            }
+
+            String chunkPath = String.format("%s/%s", Helpers.rootNodePath, chunkName);
+            int colors[] = colorsForChunk(Helpers.chunkXCoordFromPath(chunkPath), Helpers.chunkYCoordFromPath(chunkPath), true);
+            DataNode tilesNode = dataTree.getNode(String.format("%s/tiles", chunkPath));
+
+            if (tilesNode == null) {
+                continue;
+            }
+
+            for (String tileName : tilesNode.getChildren()) {
+
+                int tileX = Helpers.tileXCoordForTileName(tileName);
+                int tileY = Helpers.tileYCoordForTileName(tileName);
+                DataNode tileNode = dataTree.getNode(String.format("%s/tiles/%s", chunkPath, tileName));
+
+                if (tileNode != null && tileX >= 0 && tileX < Chunk.size && tileY >= 0 && tileY < Chunk.size) {
+                    setTile(colors, tileX, tileY, tileNode.getData());
+                }
+            }
+        }
+    }
+
+    // applies a transaction from the log, unpacking the transactions of a multi
+    void applyTxn(Record txn) throws IOException {
+
+        if (txn instanceof CreateTxn) {
+            applyWrite(((CreateTxn) txn).getPath(), ((CreateTxn) txn).getData());
+        } else if (txn instanceof CreateContainerTxn) {
+            applyWrite(((CreateContainerTxn) txn).getPath(), ((CreateContainerTxn) txn).getData());
+        } else if (txn instanceof CreateTTLTxn) {
+            applyWrite(((CreateTTLTxn) txn).getPath(), ((CreateTTLTxn) txn).getData());
+        } else if (txn instanceof SetDataTxn) {
+            applyWrite(((SetDataTxn) txn).getPath(), ((SetDataTxn) txn).getData());
+        } else if (txn instanceof DeleteTxn) {
+            applyDelete(((DeleteTxn) txn).getPath());
+        } else if (txn instanceof MultiTxn) {
+            for (Txn subTxn : ((MultiTxn) txn).getTxns()) {
+
+                Record record = recordForType(subTxn.getType());
+
+                if (record != null) {
+                    record.deserialize(BinaryInputArchive.getArchive(new ByteArrayInputStream(subTxn.getData())), "txn");
+                    applyTxn(record);
+                }
+            }
+        }
+    }
+
+    // returns an empty record for the transactions of a multi that can change the canvas
+    static Record recordForType(int type) {
+        switch (type) {
+            case OpCode.create:
+            case OpCode.create2:
+                return new CreateTxn();
+            case OpCode.createContainer:
+                return new CreateContainerTxn();
+            case OpCode.createTTL:
+                return new CreateTTLTxn();
+            case OpCode.setData:
+                return new SetDataTxn();
+            case OpCode.delete:
+            case OpCode.deleteContainer:
+                return new DeleteTxn();
+            default:
+                return null;
+        }
+    }
+
+    // applies a node being created or having its data set
+    void applyWrite(String path, byte data[]) {
+
+        if (path.equals(Helpers.paletteNodePath)) {
+            setPalette(data);
+            return;
+        }
+
+        int coords[] = parseCanvasPath(path);
+
+        // creating a chunk's node creates the chunk, filled with the default color
+        if (coords != null && coords.length == 2) {
+            colorsForChunk(coords[0], coords[1], true);
+        } else if (coords != null) {
+            setTile(colorsForChunk(coords[0], coords[1], true), coords[2], coords[3], data);
+        }
+    }
+
+    // applies a node being deleted
+    void applyDelete(String path) {
+
+        int coords[] = parseCanvasPath(path);
+
+        if (coords != null && coords.length == 2) {
+            chunkColors.remove(chunkKey(coords[0], coords[1]));
+        } else if (coords != null) {
+            int colors[] = colorsForChunk(coords[0], coords[1], false);
+            if (colors != null) {
+                colors[coords[3] * Chunk.size + coords[2]] = Palette.defaultColorIndex;
+            }
+        }
+    }
+
+    void setPalette(byte data[]) {
+
+        Palette newPalette = Palette.deserialize(data);
+
+        if (newPalette != null) {
+            palette = newPalette;
+        }
+    }
+
+    static void setTile(int colors[], int tileX, int tileY, byte data[]) {
+
+        int colorIndex = Colorer.dataToColorIndex(data);
+        colors[tileY * Chunk.size + tileX] = colorIndex >= 0 ? colorIndex : Palette.defaultColorIndex;
+    }
+
+    static long chunkKey(int chunkX, int chunkY) {
+        return ((long) chunkX << 32) | (chunkY & 0xffffffffL);
+    }
+
+    // returns the tiles of a chunk, creating the chunk if it does not exist and create is true
+    int[] colorsForChunk(int chunkX, int chunkY, boolean create) {
+
+        int colors[] = chunkColors.get(chunkKey(chunkX, chunkY));
+
+        if (colors == null && create) {
+            colors = new int[Chunk.size * Chunk.size];
+            Arrays.fill(colors, Palette.defaultColorIndex);
+            chunkColors.put(chunkKey(chunkX, chunkY), colors);
+        }
+
+        return colors;
+    }
+
+    // parses the path of a chunk node into { chunk x, chunk y } or of a tile node into { chunk x, chunk y, tile x, tile y }
+    // returns null for any other node, including a chunk's tiles node
+    static int[] parseCanvasPath(String path) {
+
+        if (!path.startsWith(Helpers.rootNodePath + "/chunk_")) {
+            return null;
+        }
+
+        String parts[] = path.split("/");
+
+        try {
+            String chunkCoords[] = parts[2].substring("chunk_".length()).split(",");
+
+            if (parts.length == 3) {
+                return new int[] { Integer.parseInt(chunkCoords[0]), Integer.parseInt(chunkCoords[1]) };
+            }
+            if (parts.length != 5 || !parts[4].startsWith("tile_")) {
+                return null;
+            }
+
+            String tileCoords[] = parts[4].substring("tile_".length()).split(",");
+            int tileX = Integer.parseInt(tileCoords[0]);
+            int tileY = Integer.parseInt(tileCoords[1]);
+
+            if (tileX < 0 || tileX >= Chunk.size || tileY < 0 || tileY >= Chunk.size) {
+                return null;
+            }
+
+            return new int[] { Integer.parseInt(chunkCoords[0]), Integer.parseInt(chunkCoords[1]), tileX, tileY };
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    // returns the colors of a rectangle of the canvas given as { x, y, width, height } in canvas-wide tile coordinates
+    // as [y][x], with the bounding box of every chunk used if region is null
+    // a region spanning more than maxRegionChunks chunks is not drawn, and an exception says how to pick a smaller one
+    int[][] getRegionColors(int region[]) throws IOException {
+
+        long bounds[] = region != null ? new long[] { region[0], region[1], region[2], region[3] } : getBounds();
+        checkRegionSize(bounds[0], bounds[1], bounds[2], bounds[3], region == null);
+
+        int colors[][] = new int[(int) bounds[3]][(int) bounds[2]];
+
+        for (int y = 0; y < bounds[3]; y++) {
+            for (int x = 0; x < bounds[2]; x++) {
+
+                long canvasX = bounds[0] + x;
+                long canvasY = bounds[1] + y;
+                int chunk[] = colorsForChunk((int) Math.floorDiv(canvasX, Chunk.size), (int) Math.floorDiv(canvasY, Chunk.size), false);
+
+                colors[y][x] = chunk == null ? Palette.defaultColorIndex : chunk[Math.floorMod(canvasY, Chunk.size) * Chunk.size + Math.floorMod(canvasX, Chunk.size)];
+            }
+        }
+
+        return colors;
+    }
+
+    // throws an exception if a region spans more than maxRegionChunks chunks, wholeCanvas tells if it is the bounding box
+    // of every chunk rather than a region that was asked for
+    void checkRegionSize(long x, long y, long width, long height, boolean wholeCanvas) throws IOException {
+
+        long numChunks = Helpers.chunksSpanned(x, y, x + width - 1, y + height - 1);
+
+        if (numChunks > maxRegionChunks && wholeCanvas) {
+            throw new IOException(String.format("the canvas spans %d chunks, more than the limit of %d, pass --region to pick the part to draw or raise --max-chunks", numChunks, maxRegionChunks));
+        } else if (numChunks > maxRegionChunks) {
+            throw new IOException(String.format("the region spans %d chunks, more than the limit of %d, pass a smaller --region or raise --max-chunks", numChunks, maxRegionChunks));
+        }
+    }
+
+    // returns the rectangle covering every chunk as { x, y, width, height } in canvas-wide tile coordinates
+    // the values are longs, since chunks at both ends of the canvas are further apart than an int can hold
+    long[] getBounds() {
+
+        if (chunkColors.isEmpty()) {
+            return new long[] { 0, 0, Chunk.size, Chunk.size };
+        }
+
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+
+        for (long key : chunkColors.keySet()) {
+            minX = Math.min(minX, (int) (key >> 32));
+            maxX = Math.max(maxX, (int) (key >> 32));
+            minY = Math.min(minY, (int) key);
+            maxY = Math.max(maxY, (int) key);
+        }
+
+        return new long[] { (long) minX * Chunk.size, (long) minY * Chunk.size, ((long) maxX - minX + 1) * Chunk.size, ((long) maxY - minY + 1) * Chunk.size };
+    }
+
+    // parses a time given as milliseconds since the epoch or as an ISO-8601 instant (e.g. 2024-05-01T12:00:00Z)
+    static long parseTime(String timeStr) {
+        try {
+            return Long.parseLong(timeStr);
+        } catch (NumberFormatException e) {
+            return Instant.parse(timeStr).toEpochMilli();
+        }
+    }
+
+    // main method called on application launch
+    public static void main(String[] args) throws IOException {
+
+        String usage = "usage: LogReplay [--zxid <zxid>] [--time <ms since epoch or ISO-8601 time>] [--export <file>] [--timelapse <directory> <seconds per frame>] [--region <x> <y> <width> <height>] [--max-chunks <n>] <data directory>";
+        long toZxid = Long.MAX_VALUE;
+        long toTime = Long.MAX_VALUE;
+        String exportFileName = null;
+        String framesDirName = null;
+        long frameInterval = 0;
+        int region[] = null;
+        int maxRegionChunks = CanvasImage.defaultMaxChunks;
+        String dataDirName = null;
+
+        // handle argument checking
+        for (int i = 0; i < args.length; i++) {
+
+            try {
+                if (args[i].equals("--zxid") && i + 1 < args.length) {
+                    toZxid = Long.decode(args[++i]);
+                } else if (args[i].equals("--time") && i + 1 < args.length) {
+                    toTime = parseTime(args[++i]);
+                } else if (args[i].equals("--export") && i + 1 < args.length) {
+                    exportFileName = args[++i];
+                } else if (args[i].equals("--timelapse") && i + 2 < args.length) {
+                    framesDirName = args[++i];
+                    frameInterval = (long) (Double.parseDouble(args[++i]) * 1000);
+                } else if (args[i].equals("--region") && i + 4 < args.length) {
+                    region = new int[] { Integer.parseInt(args[i + 1]), Integer.parseInt(args[i + 2]), Integer.parseInt(args[i + 3]), Integer.parseInt(args[i + 4]) };
+                    i += 4;
+                } else if (args[i].equals("--max-chunks") && i + 1 < args.length) {
+                    maxRegionChunks = Integer.parseInt(args[++i]);
+                } else if (!args[i].startsWith("--") && dataDirName == null) {
+                    dataDirName = args[i];
+                } else {
+                    System.out.println(usage);
+                    return;
+                }
+            } catch (NumberFormatException | DateTimeParseException e) {
+                System.out.println(usage);
+                return;
+            }
+        }
+
+        if (dataDirName == null || (framesDirName != null && frameInterval <= 0) || (region != null && (region[2] <= 0 || region[3] <= 0)) || maxRegionChunks <= 0) {
+            System.out.println(usage);
+            return;
+        }
+
+        File framesDir = null;
+
+        if (framesDirName != null) {
+            framesDir = new File(framesDirName);
+            if (!framesDir.isDirectory() && !framesDir.mkdirs()) {
+                System.out.printf("error: could not create %s\n", framesDirName);
+                return;
+            }
+        }
+
+        long startTime = System.currentTimeMillis();
+        LogReplay replay = new LogReplay(new File(dataDirName));
+        replay.maxRegionChunks = maxRegionChunks;
+
+        // an explicit region is checked before the replay, the bounds of the whole canvas are only known once it has run
+        if (region != null) {
+            try {
+                replay.checkRegionSize(region[0], region[1], region[2], region[3], false);
+            } catch (IOException e) {
+                System.out.printf("error: %s\n", e.getMessage());
+                return;
+            }
+        }
+
+        try {
+            replay.replay(toZxid, toTime, framesDir, frameInterval, region);
+        } catch (IOException e) {
+            System.out.printf("error: %s\n", e.getMessage());
+            return;
+        }
+
+        System.out.printf("replayed %d transactions in %d ms, the canvas is at zxid 0x%x (%s) with %d chunks\n", replay.txnsApplied, System.currentTimeMillis() - startTime,
+                replay.lastZxid, replay.lastTime > 0 ? Instant.ofEpochMilli(replay.lastTime) : "no transactions", replay.chunkColors.size());
+
+        if (exportFileName != null) {
+            try {
+                CanvasImage.write(exportFileName, replay.getRegionColors(region), replay.palette);
+                System.out.printf("exported the canvas to %s\n", exportFileName);
+            } catch (IOException e) {
+                System.out.printf("error: %s\n", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import java.util.Arrays;
+import java.util.HashMap;
+
+// class used to draw a zoomed out view of many chunks using only their summaries
+public class Overview {
+
+    public int originChunkX; // x coordinate of the top left chunk
+    public int originChunkY; // y coordinate of the top left chunk
+    public int widthInChunks;
+    public int heightInChunks;
+    public int cellsPerChunk; // either the full summary grid size or 1 (a single color per chunk)
+    HashMap<String, int[]> chunkCells; // the cell colors of each chunk that exists, keyed by chunk name
+    Object overviewLock = new Object();
+
+    public Overview(int originChunkX, int originChunkY, int widthInChunks, int heightInChunks, int cellsPerChunk) {
+        this.originChunkX = originChunkX;
+        this.originChunkY = originChunkY;
+        this.widthInChunks = Math.max(1, widthInChunks);
+        this.heightInChunks = Math.max(1, heightInChunks);
+        this.cellsPerChunk = cellsPerChunk;
+        this.chunkCells = new HashMap<String, int[]>();
+    }
+
+    // creates an overview centered on a chunk that is sized to fill the terminal
+    public static Overview forTerminal(int centerChunkX, int centerChunkY, int cellsPerChunk) {
+
+        int terminalSize[] = Viewport.detectTerminalSize();
+
+        // each cell is two characters wide
+        int widthInChunks = (terminalSize[1] - 1) / (2 * cellsPerChunk);
+        int heightInChunks = (terminalSize[0] - Viewport.statusLineCount) / cellsPerChunk;
+
+        return new Overview(centerChunkX - widthInChunks / 2, centerChunkY - heightInChunks / 2, widthInChunks, heightInChunks, cellsPerChunk);
+    }
+
+    // returns true if the chunk is inside the overview
+    public boolean containsChunk(int chunkX, int chunkY) {
+        return chunkX >= originChunkX && chunkX < originChunkX + widthInChunks
+            && chunkY >= originChunkY && chunkY < originChunkY + heightInChunks;
+    }
+
+    // records that a chunk exists, along with its summary cell colors (null if it has no summary yet)
+    public void setChunkSummary(int chunkX, int chunkY, int cellColors[]) {
+
+        if (cellColors == null) {
+            cellColors = new int[ChunkSummary.gridSize * ChunkSummary.gridSize];
+            Arrays.fill(cellColors, Palette.defaultColorIndex);
+        }
+
+        synchronized (overviewLock) {
+            chunkCells.put(String.format("%d,%d", chunkX, chunkY), cellColors);
+        }
+    }
+
+    // build a string of the overview, leaving chunks that do not exist blank
+    public String render() {
+
+        StringBuilder str = new StringBuilder();
+        String blankCellStr = "  ";
+
+        synchronized (overviewLock) {
+
+            for (int chunkRow = 0; chunkRow < heightInChunks; chunkRow++) {
+                for (int cellRow = 0; cellRow < cellsPerChunk; cellRow++) {
+                    for (int chunkColumn = 0; chunkColumn < widthInChunks; chunkColumn++) {
+
+                        int cellColors[] = chunkCells.get(String.format("%d,%d", originChunkX + chunkColumn, originChunkY + chunkRow));
+
+                        for (int cellColumn = 0; cellColumn < cellsPerChunk; cellColumn++) {
+
+                            if (cellColors == null) {
+                                str.append(blankCellStr);
+                            } else if (cellsPerChunk == 1) {
+                                str.append(new Tile(ChunkSummary.dominantColor(cellColors)).toString());
+                            } else {
+                                str.append(new Tile(cellColors[cellRow * ChunkSummary.gridSize + cellColumn]).toString());
+                            }
+                        }
+                    }
+
+                    str.append("\n");
+                }
+            }
+        }
+
+        return str.toString();
+    }
+}
@@ -0,0 +1,265 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+// class containing the list of colors that tiles can be set to
+// tiles only store an index into the palette, so the palette itself is stored once under the root node
+public class Palette {
+
+    public static final int maxSize = 65536; // indices must fit in two bytes of tile data
+    public static final int terminalPaletteSize = 256; // indices below this are drawn with the terminal's own palette
+    public static final int defaultColorIndex = 7; // WHITE, the color of a tile that has never been set
+
+    // names of the basic colors, in the order of their terminal palette index
+    public static final String basicColorNames[] = {"BLACK", "RED", "GREEN", "YELLOW", "BLUE", "PURPLE", "CYAN", "WHITE"};
+
+    int rgb[]; // the 24-bit color value of each palette entry
+    HashMap<String, Integer> nameToIndex; // named palette entries
+    HashMap<Integer, Integer> rgbToIndex; // first palette entry with a given 24-bit value
+    String escapeCodes[]; // cached escape sequence for each entry, filled in as entries are drawn
+
+    public Palette(int rgb[], HashMap<String, Integer> nameToIndex) {
+        this.rgb = rgb;
+        this.nameToIndex = nameToIndex;
+        this.rgbToIndex = new HashMap<Integer, Integer>();
+        this.escapeCodes = new String[rgb.length];
+
+        for (int i = rgb.length - 1; i >= 0; i--) {
+            rgbToIndex.put(rgb[i], i);
+        }
+    }
+
+    // creates the default palette: the 256 xterm colors followed by a 15-bit (32x32x32) 24-bit color cube
+    public static Palette createDefault() {
+
+        int rgb[] = new int[terminalPaletteSize + 32 * 32 * 32];
+
+        // the 16 system colors
+        int systemColors[] = {
+            0x000000, 0x800000, 0x008000, 0x808000, 0x000080, 0x800080, 0x008080, 0xc0c0c0,
+            0x808080, 0xff0000, 0x00ff00, 0xffff00, 0x0000ff, 0xff00ff, 0x00ffff, 0xffffff
+        };
+        System.arraycopy(systemColors, 0, rgb, 0, systemColors.length);
+
+        // the 6x6x6 color cube
+        int cubeLevels[] = {0x00, 0x5f, 0x87, 0xaf, 0xd7, 0xff};
+        for (int i = 0; i < 216; i++) {
+            int r = cubeLevels[i / 36];
+            int g = cubeLevels[(i / 6) % 6];
+            int b = cubeLevels[i % 6];
+            rgb[16 + i] = (r << 16) | (g << 8) | b;
+        }
+
+        // the grayscale ramp
+        for (int i = 0; i < 24; i++) {
+            int level = 8 + i * 10;
+            rgb[232 + i] = (level << 16) | (level << 8) | level;
+        }
+
+        // the 24-bit entries, 5 bits per channel scaled up to 8 bits
+        for (int i = 0; i < 32 * 32 * 32; i++) {
+            int r = ((i >> 10) & 31) * 255 / 31;
+            int g = ((i >> 5) & 31) * 255 / 31;
+            int b = (i & 31) * 255 / 31;
+            rgb[terminalPaletteSize + i] = (r << 16) | (g << 8) | b;
+        }
+
+        HashMap<String, Integer> nameToIndex = new HashMap<String, Integer>();
+        for (int i = 0; i < basicColorNames.length; i++) {
+            nameToIndex.put(basicColorNames[i], i);
+        }
+
+        return new Palette(rgb, nameToIndex);
+    }
+
+    // returns the number of entries in the palette
+    public int size() {
+        return rgb.length;
+    }
+
+    // returns the escape sequence used to draw the entry at the given index
+    public String escapeCodeForIndex(int index) {
+
+        if (index < 0 || index >= rgb.length) {
+            return Colorer.ANSI_RESET;
+        }
+
+        String code = escapeCodes[index];
+
+        if (code == null) {
+            if (index < 8) {
+                code = String.format("\u001B[%dm", 30 + index);
+            } else if (index < 16) {
+                code = String.format("\u001B[%dm", 90 + index - 8);
+            } else if (index < terminalPaletteSize) {
+                code = String.format("\u001B[38;5;%dm", index);
+            } else {
+                int color = rgb[index];
+                code = String.format("\u001B[38;2;%d;%d;%dm", (color >> 16) & 0xff, (color >> 8) & 0xff, color & 0xff);
+            }
+
+            // racing threads compute the same string, so no lock is needed
+            escapeCodes[index] = code;
+        }
+
+        return code;
+    }
+
+    // converts user input (a color name, palette index, or #rrggbb value) to a palette index, returns -1 if invalid
+    public int parseColor(String input) {
+
+        input = input.trim().toUpperCase();
+
+        Integer namedIndex = nameToIndex.get(input);
+        if (namedIndex != null) {
+            return namedIndex;
+        }
+
+        try {
+            if (input.startsWith("#") && input.length() == 7) {
+                return indexForRGB(Integer.parseInt(input.substring(1), 16));
+            }
+
+            int index = Integer.parseInt(input);
+            return index >= 0 && index < rgb.length ? index : -1;
+
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // returns the index of the palette entry closest to a 24-bit color
+    public int indexForRGB(int color) {
+
+        Integer exactIndex = rgbToIndex.get(color);
+        if (exactIndex != null) {
+            return exactIndex;
+        }
+
+        int bestIndex = 0;
+        int bestDistance = Integer.MAX_VALUE;
+
+        for (int i = 0; i < rgb.length; i++) {
+            int dr = ((rgb[i] >> 16) & 0xff) - ((color >> 16) & 0xff);
+            int dg = ((rgb[i] >> 8) & 0xff) - ((color >> 8) & 0xff);
+            int db = (rgb[i] & 0xff) - (color & 0xff);
+            int distance = dr * dr + dg * dg + db * db;
+
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                bestIndex = i;
+            }
+        }
+
+        return bestIndex;
+    }
+
+    // returns the 24-bit color value of a palette entry
+    public int rgbForIndex(int index) {
+        return rgb[index];
+    }
+
+    // returns a printable name for a palette entry
+    public String nameForIndex(int index) {
+
+        for (String name : nameToIndex.keySet()) {
+            if (nameToIndex.get(name) == index) {
+                return name;
+            }
+        }
+
+        return String.format("%d", index);
+    }
+
+    // converts a palette index to the data stored in a tile node (one byte when possible, otherwise two)
+    public static byte[] encodeIndex(int index) {
+
+        if (index < 256) {
+            return new byte[] {(byte) index};
+        } else {
+            return new byte[] {(byte) (index >> 8), (byte) index};
+        }
+    }
+
+    // converts the data stored in a tile node to a palette index, returns -1 if invalid
+    public int decodeIndex(byte[] data) {
+
+        if (data == null || data.length == 0) {
+            return -1;
+        } else if (data.length == 1) {
+            return data[0] & 0xff;
+        } else if (data.length == 2) {
+            return ((data[0] & 0xff) << 8) | (data[1] & 0xff);
+        } else {
+            // tiles written before palette indices were stored as color names
+            Integer namedIndex = nameToIndex.get(Helpers.bytesToASCII(data).trim().toUpperCase());
+            return namedIndex == null ? -1 : namedIndex;
+        }
+    }
+
+    // converts the palette to the data stored in the palette node
+    // format: entry count, 3 bytes per entry, name count, then (index, name length, name) for each name
+    public byte[] serialize() {
+
+        int namesLength = 0;
+        for (String name : nameToIndex.keySet()) {
+            namesLength += 3 + name.length();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 + rgb.length * 3 + 2 + namesLength);
+        buffer.putInt(rgb.length);
+
+        for (int i = 0; i < rgb.length; i++) {
+            buffer.put((byte) (rgb[i] >> 16));
+            buffer.put((byte) (rgb[i] >> 8));
+            buffer.put((byte) rgb[i]);
+        }
+
+        buffer.putShort((short) nameToIndex.size());
+
+        for (String name : nameToIndex.keySet()) {
+            byte nameBytes[] = name.getBytes(StandardCharsets.US_ASCII);
+            buffer.putShort((short) (int) nameToIndex.get(name));
+            buffer.put((byte) nameBytes.length);
+            buffer.put(nameBytes);
+        }
+
+        return buffer.array();
+    }
+
+    // creates a palette from the data stored in the palette node, returns null if the data is invalid
+    public static Palette deserialize(byte[] data) {
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            int size = buffer.getInt();
+
+            if (size <= 0 || size > maxSize) {
+                return null;
+            }
+
+            int rgb[] = new int[size];
+            for (int i = 0; i < size; i++) {
+                rgb[i] = ((buffer.get() & 0xff) << 16) | ((buffer.get() & 0xff) << 8) | (buffer.get() & 0xff);
+            }
+
+            HashMap<String, Integer> nameToIndex = new HashMap<String, Integer>();
+            int numNames = buffer.getShort() & 0xffff;
+
+            for (int i = 0; i < numNames; i++) {
+                int index = buffer.getShort() & 0xffff;
+                byte nameBytes[] = new byte[buffer.get() & 0xff];
+                buffer.get(nameBytes);
+
+                if (index < size) {
+                    nameToIndex.put(new String(nameBytes, StandardCharsets.US_ASCII), index);
+                }
+            }
+
+            return new Palette(rgb, nameToIndex);
+
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+}
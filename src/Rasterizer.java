@@ -0,0 +1,282 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+// class that turns shapes in canvas-wide tile coordinates into the tiles to paint, grouped by chunk
+// every shape is drawn as horizontal spans of tiles, and each span is split at chunk boundaries and filled into a
+// palette index array per chunk, so tiles painted more than once by a shape are only written once (the last color wins)
+// the arrays are the format BatchWriter.writeChunk takes, with CanvasImage.transparent for tiles that are not painted
+public class Rasterizer {
+
+    public static final int defaultMaxChunks = 100; // chunks in the bounding box of a single painting command
+
+    // class containing the tiles of one chunk painted by the shapes
+    public static class ChunkTiles {
+
+        public int chunkX;
+        public int chunkY;
+        public int colors[]; // the palette index of every tile row by row, transparent if the tile is not painted
+        public int numTiles; // the number of tiles that are painted
+
+        ChunkTiles(int chunkX, int chunkY) {
+            this.chunkX = chunkX;
+            this.chunkY = chunkY;
+            this.colors = new int[Chunk.size * Chunk.size];
+            this.numTiles = 0;
+            Arrays.fill(colors, CanvasImage.transparent);
+        }
+    }
+
+    HashMap<Long, ChunkTiles> chunkTiles;
+    ChunkTiles lastChunkTiles; // the chunk of the last span, since shapes paint long runs of spans in the same chunk
+    long numPainted; // the tiles painted by every span, counting a tile again each time it is painted over
+
+    public Rasterizer() {
+        this.chunkTiles = new HashMap<Long, ChunkTiles>();
+        this.lastChunkTiles = null;
+        this.numPainted = 0;
+    }
+
+    // returns the painted tiles of every chunk a shape touched
+    public List<ChunkTiles> getChunkTiles() {
+        return new ArrayList<ChunkTiles>(chunkTiles.values());
+    }
+
+    // returns the total number of tiles painted
+    public int getNumTiles() {
+
+        int numTiles = 0;
+
+        for (ChunkTiles tiles : chunkTiles.values()) {
+            numTiles += tiles.numTiles;
+        }
+
+        return numTiles;
+    }
+
+    // returns the number of tiles painted by the shapes, including tiles that were painted over by a later shape
+    public long getNumPainted() {
+        return numPainted;
+    }
+
+    // returns the painted tiles of a chunk, creating them if the chunk has not been painted yet
+    ChunkTiles chunkTilesFor(int chunkX, int chunkY) {
+
+        if (lastChunkTiles != null && lastChunkTiles.chunkX == chunkX && lastChunkTiles.chunkY == chunkY) {
+            return lastChunkTiles;
+        }
+
+        long key = ((long) chunkX << 32) | (chunkY & 0xffffffffL);
+        ChunkTiles tiles = chunkTiles.get(key);
+
+        if (tiles == null) {
+            tiles = new ChunkTiles(chunkX, chunkY);
+            chunkTiles.put(key, tiles);
+        }
+
+        lastChunkTiles = tiles;
+        return tiles;
+    }
+
+    // paints every step-th tile of row y from x1 to x2 (inclusive), starting at x1
+    // x is a long, so a span that ends at the largest int coordinate does not wrap around and never end
+    public void span(int y, int x1, int x2, int step, int colorIndex) {
+
+        if (x1 > x2) {
+            return;
+        }
+
+        int chunkY = Math.floorDiv(y, Chunk.size);
+        int rowStart = Math.floorMod(y, Chunk.size) * Chunk.size;
+        long x = x1;
+
+        // each pass paints the part of the span that lies in one chunk
+        while (x <= x2) {
+
+            int chunkX = (int) Math.floorDiv(x, Chunk.size);
+            long chunkStart = (long) chunkX * Chunk.size;
+            long chunkEnd = Math.min(x2, chunkStart + Chunk.size - 1);
+            ChunkTiles tiles = chunkTilesFor(chunkX, chunkY);
+            int colors[] = tiles.colors;
+            int start = rowStart + (int) (x - chunkStart);
+            int end = rowStart + (int) (chunkEnd - chunkStart);
+
+            for (int i = start; i <= end; i += step) {
+                if (colors[i] == CanvasImage.transparent) {
+                    tiles.numTiles++;
+                }
+                colors[i] = colorIndex;
+                numPainted++;
+            }
+
+            // the next chunk starts at the first tile of the pattern past this chunk
+            x += ((chunkEnd - x) / step + 1) * step;
+        }
+    }
+
+    // paints a single tile
+    public void point(int x, int y, int colorIndex) {
+        span(y, x, x, 1, colorIndex);
+    }
+
+    // paints a filled rectangle between two corners
+    public void rect(int x1, int y1, int x2, int y2, int colorIndex) {
+
+        for (long y = Math.min(y1, y2); y <= Math.max(y1, y2); y++) {
+            span((int) y, Math.min(x1, x2), Math.max(x1, x2), 1, colorIndex);
+        }
+    }
+
+    // paints a rectangle between two corners in a checkerboard pattern, with colorIndex1 on tiles whose x + y is even
+    public void checker(int x1, int y1, int x2, int y2, int colorIndex1, int colorIndex2) {
+
+        int minX = Math.min(x1, x2);
+        int maxX = Math.max(x1, x2);
+
+        for (long y = Math.min(y1, y2); y <= Math.max(y1, y2); y++) {
+
+            // the first tile of the row gets colorIndex1 if it lies on an even square
+            boolean evenFirst = Math.floorMod(minX + y, 2) == 0;
+            span((int) y, minX, maxX, 2, evenFirst ? colorIndex1 : colorIndex2);
+            if (minX < maxX) {
+                span((int) y, minX + 1, maxX, 2, evenFirst ? colorIndex2 : colorIndex1);
+            }
+        }
+    }
+
+    // paints a line between two tiles using Bresenham's algorithm
+    public void line(int x1, int y1, int x2, int y2, int colorIndex) {
+
+        int dx = Math.abs(x2 - x1);
+        int dy = -Math.abs(y2 - y1);
+        int stepX = x1 < x2 ? 1 : -1;
+        int stepY = y1 < y2 ? 1 : -1;
+        int error = dx + dy;
+        int x = x1;
+        int y = y1;
+
+        while (true) {
+
+            point(x, y, colorIndex);
+
+            if (x == x2 && y == y2) {
+                break;
+            }
+
+            int doubleError = 2 * error;
+
+            if (doubleError >= dy) {
+                error += dy;
+                x += stepX;
+            }
+            if (doubleError <= dx) {
+                error += dx;
+                y += stepY;
+            }
+        }
+    }
+
+    // paints a circle using Bresenham's algorithm, either only its outline or filled in
+    public void circle(int xCenter, int yCenter, int radius, boolean fill, int colorIndex) {
+
+        // with fill, halfWidths[d] is how far the circle reaches to each side on the rows d above and below the center
+        int halfWidths[] = fill ? new int[radius + 2] : null;
+        int xOffset = 0;
+        int yOffset = radius;
+        int d = 3 - 2 * radius;
+
+        while (true) {
+
+            if (fill) {
+                halfWidths[yOffset] = Math.max(halfWidths[yOffset], xOffset);
+                halfWidths[xOffset] = Math.max(halfWidths[xOffset], yOffset);
+            } else {
+                point(xCenter + xOffset, yCenter + yOffset, colorIndex);
+                point(xCenter - xOffset, yCenter + yOffset, colorIndex);
+                point(xCenter + xOffset, yCenter - yOffset, colorIndex);
+                point(xCenter - xOffset, yCenter - yOffset, colorIndex);
+                point(xCenter + yOffset, yCenter + xOffset, colorIndex);
+                point(xCenter - yOffset, yCenter + xOffset, colorIndex);
+                point(xCenter + yOffset, yCenter - xOffset, colorIndex);
+                point(xCenter - yOffset, yCenter - xOffset, colorIndex);
+            }
+
+            if (yOffset < xOffset) {
+                break;
+            }
+
+            xOffset++;
+
+            if (d > 0) {
+                yOffset--;
+                d = d + 4 * (xOffset - yOffset) + 10;
+            } else {
+                d = d + 4 * xOffset + 6;
+            }
+        }
+
+        if (!fill) {
+            return;
+        }
+
+        // a row is at least as wide as every row further from the center, which fills in the circle's inside
+        for (int dy = radius; dy >= 0; dy--) {
+            halfWidths[dy] = Math.max(halfWidths[dy], halfWidths[dy + 1]);
+            span(yCenter + dy, xCenter - halfWidths[dy], xCenter + halfWidths[dy], 1, colorIndex);
+            if (dy > 0) {
+                span(yCenter - dy, xCenter - halfWidths[dy], xCenter + halfWidths[dy], 1, colorIndex);
+            }
+        }
+    }
+
+    // paints a filled polygon given as { x1, y1, x2, y2, ... }, using the even-odd rule for the inside
+    // the edges are painted as lines too, so thin parts of the polygon do not disappear between tile centers
+    public void polygon(int coords[], int colorIndex) {
+
+        int numPoints = coords.length / 2;
+
+        if (numPoints == 0) {
+            return;
+        }
+
+        int minY = Integer.MAX_VALUE;
+        int maxY = Integer.MIN_VALUE;
+
+        for (int i = 0; i < numPoints; i++) {
+            minY = Math.min(minY, coords[2 * i + 1]);
+            maxY = Math.max(maxY, coords[2 * i + 1]);
+        }
+
+        double crossings[] = new double[numPoints];
+
+        for (long row = minY; row <= maxY; row++) {
+
+            int y = (int) row;
+            int numCrossings = 0;
+
+            // the x coordinates where the edges cross the center of the row, counting each vertex for only one of its edges
+            for (int i = 0; i < numPoints; i++) {
+
+                int xa = coords[2 * i];
+                int ya = coords[2 * i + 1];
+                int xb = coords[(2 * i + 2) % coords.length];
+                int yb = coords[(2 * i + 3) % coords.length];
+
+                if ((ya <= y && yb > y) || (yb <= y && ya > y)) {
+                    crossings[numCrossings++] = xa + (double) (y - ya) * (xb - xa) / (yb - ya);
+                }
+            }
+
+            Arrays.sort(crossings, 0, numCrossings);
+
+            for (int i = 0; i + 1 < numCrossings; i += 2) {
+                span(y, (int) Math.ceil(crossings[i]), (int) Math.floor(crossings[i + 1]), 1, colorIndex);
+            }
+        }
+
+        for (int i = 0; i < numPoints; i++) {
+            line(coords[2 * i], coords[2 * i + 1], coords[(2 * i + 2) % coords.length], coords[(2 * i + 3) % coords.length], colorIndex);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+// class that limits how many writes a client sends per second using a token bucket
+// writes over the limit wait for tokens instead of failing, and the rate is halved whenever ZooKeeper shows signs of
+// overload, then grows back to the configured rate as long as the errors stop
+public class RateLimiter {
+
+    public static final double recoveryPerSecond = 0.1; // fraction of the configured rate regained each second after backing off
+    public static final int overloadRetryDelay = 50; // milliseconds before the first retry of a write that failed from overload, doubled for each retry after it
+    public static final int overloadRetryLimit = 5; // retries of such a write before it waits like any other failed request
+
+    double maxRate; // the configured writes per second, 0 or less for no limit
+    double rate; // the writes per second currently allowed, below maxRate while backing off
+    double burst; // the most tokens that can be saved up while idle
+    double tokens;
+    long lastRefillTime;
+
+    public RateLimiter(double maxRate, double burst) {
+        this.maxRate = maxRate;
+        this.rate = maxRate;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.lastRefillTime = System.nanoTime();
+    }
+
+    // changes the configured rate, e.g. when this client's share of a coordinated quota changes
+    public synchronized void setMaxRate(double maxRate) {
+        refill();
+
+        // a limiter that is backing off keeps recovering from its slower rate
+        boolean backingOff = this.maxRate > 0 && rate < this.maxRate;
+        this.maxRate = maxRate;
+        this.rate = maxRate > 0 && backingOff ? Math.min(rate, maxRate) : maxRate;
+    }
+
+    // returns the configured writes per second
+    public synchronized double getMaxRate() {
+        return maxRate;
+    }
+
+    // returns the writes per second currently allowed
+    public synchronized double getRate() {
+        refill();
+        return rate;
+    }
+
+    // waits until the given number of writes can be sent
+    // more writes than the burst size are let through once the bucket is full, leaving it in debt for the writes after them
+    public void acquire(int permits) throws InterruptedException {
+
+        while (true) {
+
+            long waitNanos;
+
+            synchronized (this) {
+
+                if (maxRate <= 0) {
+                    return;
+                }
+
+                refill();
+
+                double needed = Math.min(permits, burst);
+
+                if (tokens >= needed) {
+                    tokens -= permits;
+                    return;
+                }
+
+                waitNanos = (long) ((needed - tokens) / rate * 1e9);
+            }
+
+            Thread.sleep(Math.max(1, waitNanos / 1000000), (int) (waitNanos % 1000000));
+        }
+    }
+
+    // halves the allowed rate after a request failed because ZooKeeper could not keep up
+    public synchronized void backOff() {
+        if (maxRate > 0) {
+            refill();
+            rate = Math.max(1, rate / 2);
+        }
+    }
+
+    // adds the tokens earned since the last refill and recovers the rate after backing off
+    void refill() {
+
+        long time = System.nanoTime();
+        double elapsedSeconds = (time - lastRefillTime) / 1e9;
+        lastRefillTime = time;
+
+        if (maxRate <= 0) {
+            return;
+        }
+
+        tokens = Math.min(burst, tokens + elapsedSeconds * rate);
+        rate = Math.min(maxRate, rate + maxRate * recoveryPerSecond * elapsedSeconds);
+    }
+}
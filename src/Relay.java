@@ -0,0 +1,438 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.zookeeper.KeeperException;
+
+// class that lets many viewers share one ZooKeeper session: it subscribes to each chunk a viewer asks for once,
+// and forwards every update of the chunk to all of the viewers subscribed to it as small binary messages
+//
+// every message starts with a one byte type, all numbers are big endian
+// viewer to relay:
+//   subscribe    <chunk x: int> <chunk y: int>
+//   unsubscribe  <chunk x: int> <chunk y: int>
+// relay to viewer:
+//   palette      <length: int> <serialized palette>
+//   chunk        <chunk x: int> <chunk y: int> <number of runs: short> (<length: short> <palette index: short>)...
+//   tile         <chunk x: int> <chunk y: int> <tile x: byte> <tile y: byte> <palette index: short>
+public class Relay implements Client.TileUpdateListener {
+
+    public static final byte messageSubscribe = 1;
+    public static final byte messageUnsubscribe = 2;
+    public static final byte messagePalette = 1;
+    public static final byte messageChunk = 2;
+    public static final byte messageTile = 3;
+    public static final int subscriptionMessageSize = 9;
+    public static final int tileMessageSize = 13;
+    public static final int defaultPort = 2290;
+    public static final int maxQueuedBytes = 4 * 1024 * 1024; // viewers that fall further behind than this are disconnected
+
+    // class containing the state of one connected viewer
+    class ViewerConnection {
+
+        SocketChannel channel;
+        ByteBuffer readBuffer;
+        Queue<ByteBuffer> outgoing; // messages waiting to be written, filled from any thread and drained by the selector thread
+        AtomicInteger queuedBytes;
+        HashSet<String> subscribedChunks; // only used while holding subscriptionLock
+
+        ViewerConnection(SocketChannel channel) {
+            this.channel = channel;
+            this.readBuffer = ByteBuffer.allocate(subscriptionMessageSize * 64);
+            this.outgoing = new ConcurrentLinkedQueue<ByteBuffer>();
+            this.queuedBytes = new AtomicInteger(0);
+            this.subscribedChunks = new HashSet<String>();
+        }
+
+        // queues a message to be written, returns false if the viewer is too far behind to take it
+        boolean send(ByteBuffer message) {
+
+            if (queuedBytes.addAndGet(message.remaining()) > maxQueuedBytes) {
+                return false;
+            }
+
+            outgoing.add(message);
+            return true;
+        }
+    }
+
+    Client client;
+    int port;
+    Selector selector;
+    HashMap<SocketChannel, ViewerConnection> connections; // only used by the selector thread
+    HashMap<String, HashSet<ViewerConnection>> subscribers; // the viewers subscribed to each chunk, keyed by chunk name
+    Queue<ViewerConnection> connectionsToClose; // viewers that fell behind, closed by the selector thread
+    AtomicBoolean wakeupPending; // true if the selector has already been woken up to write queued messages
+    AtomicLong messagesSent;
+    Object subscriptionLock = new Object();
+
+    public Relay(ShardMap shardMap, int port) throws KeeperException, IOException {
+        this.client = new Client(shardMap, true, false, false);
+        this.client.headless = true;
+        this.client.tileUpdateListener = this;
+        this.port = port;
+        this.connections = new HashMap<SocketChannel, ViewerConnection>();
+        this.subscribers = new HashMap<String, HashSet<ViewerConnection>>();
+        this.connectionsToClose = new ConcurrentLinkedQueue<ViewerConnection>();
+        this.wakeupPending = new AtomicBoolean(false);
+        this.messagesSent = new AtomicLong(0);
+    }
+
+    // handle a tile update from ZooKeeper by forwarding it to every viewer subscribed to its chunk
+    // this runs on the chunk's dispatcher thread, so each chunk's updates are forwarded in order
+    public void handleTileUpdate(Chunk chunk, int tileXCoord, int tileYCoord, int colorIndex) {
+
+        // the message is encoded once and shared by every viewer, each getting its own position
+        ByteBuffer message = ByteBuffer.allocate(tileMessageSize);
+        message.put(messageTile).putInt(chunk.xCoord).putInt(chunk.yCoord).put((byte) tileXCoord).put((byte) tileYCoord).putShort((short) colorIndex);
+        message.flip();
+
+        boolean queued = false;
+
+        synchronized (subscriptionLock) {
+
+            HashSet<ViewerConnection> chunkSubscribers = subscribers.get(chunkKey(chunk.xCoord, chunk.yCoord));
+
+            if (chunkSubscribers == null) {
+                return;
+            }
+
+            for (ViewerConnection connection : chunkSubscribers) {
+                queueMessage(connection, message.asReadOnlyBuffer());
+                queued = true;
+            }
+        }
+
+        if (queued) {
+            wakeSelector();
+        }
+    }
+
+    // subscribes a viewer to a chunk, sending it the whole chunk before any of the chunk's updates
+    // this runs on the chunk's dispatcher thread so that no update of the chunk can be forwarded in between
+    // a chunk that is mirrored for the first time is still loading, so its tiles follow as updates once they are read
+    void subscribe(ViewerConnection connection, int chunkX, int chunkY) {
+
+        Chunk chunk = client.mirrorChunk(chunkX, chunkY);
+
+        synchronized (subscriptionLock) {
+
+            // the viewer may have disconnected while the chunk was loading
+            if (!connection.channel.isOpen() || !connection.subscribedChunks.add(chunkKey(chunkX, chunkY))) {
+                return;
+            }
+
+            subscribers.computeIfAbsent(chunkKey(chunkX, chunkY), (key) -> new HashSet<ViewerConnection>()).add(connection);
+
+            int colors[] = new int[Chunk.size * Chunk.size];
+
+            for (int y = 0; y < Chunk.size; y++) {
+                for (int x = 0; x < Chunk.size; x++) {
+                    colors[y * Chunk.size + x] = chunk.getTile(x, y).getColorIndex();
+                }
+            }
+
+            List<int[]> runs = Replica.colorRuns(colors);
+            ByteBuffer message = ByteBuffer.allocate(11 + runs.size() * 4);
+            message.put(messageChunk).putInt(chunkX).putInt(chunkY).putShort((short) runs.size());
+
+            for (int run[] : runs) {
+                message.putShort((short) run[0]).putShort((short) run[1]);
+            }
+
+            message.flip();
+            queueMessage(connection, message);
+        }
+
+        wakeSelector();
+    }
+
+    // stops sending a chunk's updates to a viewer
+    // the relay keeps its own subscription to the chunk so that the next viewer to ask for it gets it right away
+    // this runs on the chunk's dispatcher thread, after any subscription to the chunk the viewer asked for before
+    void unsubscribe(ViewerConnection connection, int chunkX, int chunkY) {
+
+        synchronized (subscriptionLock) {
+
+            String key = chunkKey(chunkX, chunkY);
+            HashSet<ViewerConnection> chunkSubscribers = subscribers.get(key);
+            connection.subscribedChunks.remove(key);
+
+            if (chunkSubscribers != null) {
+                chunkSubscribers.remove(connection);
+
+                if (chunkSubscribers.isEmpty()) {
+                    subscribers.remove(key);
+                }
+            }
+        }
+    }
+
+    // queues a message for a viewer, marking the viewer to be disconnected if it is too far behind
+    void queueMessage(ViewerConnection connection, ByteBuffer message) {
+        if (!connection.send(message)) {
+            connectionsToClose.add(connection);
+        }
+    }
+
+    // wakes up the selector so it writes the queued messages, at most once until it runs again
+    void wakeSelector() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    static String chunkKey(int chunkX, int chunkY) {
+        return String.format("%d,%d", chunkX, chunkY);
+    }
+
+    // accepts viewers and moves messages between them and the relay until the process is killed
+    public void run() throws IOException {
+
+        client.loadPaletteFromZK();
+
+        selector = Selector.open();
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        System.out.printf("relay: listening for viewers on port %d\n", port);
+        startStatusPrinter();
+
+        while (true) {
+
+            selector.select();
+            wakeupPending.set(false);
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+            while (keys.hasNext()) {
+
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                try {
+                    if (!key.isValid()) {
+                        continue;
+                    } else if (key.isAcceptable()) {
+                        acceptViewer(serverChannel);
+                    } else {
+                        ViewerConnection connection = (ViewerConnection) key.attachment();
+
+                        if (key.isReadable()) {
+                            readFromViewer(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            writeToViewer(connection);
+                        }
+                    }
+                } catch (IOException e) {
+                    if (key.attachment() != null) {
+                        closeViewer((ViewerConnection) key.attachment());
+                    }
+                }
+            }
+
+            ViewerConnection connectionToClose;
+            while ((connectionToClose = connectionsToClose.poll()) != null) {
+                closeViewer(connectionToClose);
+            }
+
+            // viewers with queued messages are written to as soon as their sockets can take more data
+            for (ViewerConnection connection : connections.values()) {
+
+                SelectionKey key = connection.channel.keyFor(selector);
+
+                if (key != null && key.isValid()) {
+                    key.interestOps(connection.outgoing.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
+        }
+    }
+
+    // accepts a new viewer and sends it the palette
+    void acceptViewer(ServerSocketChannel serverChannel) throws IOException {
+
+        SocketChannel channel = serverChannel.accept();
+
+        if (channel == null) {
+            return;
+        }
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+
+        ViewerConnection connection = new ViewerConnection(channel);
+        connections.put(channel, connection);
+        channel.register(selector, SelectionKey.OP_READ, connection);
+
+        byte paletteData[] = Colorer.getPalette().serialize();
+        ByteBuffer message = ByteBuffer.allocate(5 + paletteData.length);
+        message.put(messagePalette).putInt(paletteData.length).put(paletteData);
+        message.flip();
+        queueMessage(connection, message);
+    }
+
+    // reads and handles every complete subscription message a viewer sent
+    void readFromViewer(ViewerConnection connection) throws IOException {
+
+        if (connection.channel.read(connection.readBuffer) < 0) {
+            throw new IOException("viewer disconnected");
+        }
+
+        connection.readBuffer.flip();
+
+        while (connection.readBuffer.remaining() >= subscriptionMessageSize) {
+
+            byte type = connection.readBuffer.get();
+            int chunkX = connection.readBuffer.getInt();
+            int chunkY = connection.readBuffer.getInt();
+
+            // both go through the chunk's dispatcher worker, so an unsubscribe can never overtake the subscribe before it
+            if (type == messageSubscribe) {
+                client.dispatcher.dispatch(Helpers.chunkCoordsToNodePath(chunkX, chunkY), () -> subscribe(connection, chunkX, chunkY));
+            } else if (type == messageUnsubscribe) {
+                client.dispatcher.dispatch(Helpers.chunkCoordsToNodePath(chunkX, chunkY), () -> unsubscribe(connection, chunkX, chunkY));
+            } else {
+                throw new IOException("invalid message from viewer");
+            }
+        }
+
+        connection.readBuffer.compact();
+    }
+
+    // writes as many queued messages to a viewer as its socket takes in one gathering write
+    void writeToViewer(ViewerConnection connection) throws IOException {
+
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+
+        for (ByteBuffer buffer : connection.outgoing) {
+            buffers.add(buffer);
+
+            if (buffers.size() == 256) {
+                break;
+            }
+        }
+
+        connection.channel.write(buffers.toArray(new ByteBuffer[buffers.size()]));
+
+        // remove the messages that were written completely
+        while (!connection.outgoing.isEmpty() && !connection.outgoing.peek().hasRemaining()) {
+            ByteBuffer written = connection.outgoing.poll();
+            connection.queuedBytes.addAndGet(-written.limit());
+            messagesSent.incrementAndGet();
+        }
+    }
+
+    // disconnects a viewer and removes its subscriptions
+    void closeViewer(ViewerConnection connection) {
+
+        synchronized (subscriptionLock) {
+            for (String key : connection.subscribedChunks) {
+                HashSet<ViewerConnection> chunkSubscribers = subscribers.get(key);
+
+                if (chunkSubscribers != null) {
+                    chunkSubscribers.remove(connection);
+
+                    if (chunkSubscribers.isEmpty()) {
+                        subscribers.remove(key);
+                    }
+                }
+            }
+
+            connection.subscribedChunks.clear();
+        }
+
+        connections.remove(connection.channel);
+
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // the viewer is gone either way
+        }
+    }
+
+    // prints how many viewers and chunks the relay is serving every 10 seconds
+    void startStatusPrinter() {
+
+        Thread statusThread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                int numSubscriptions = 0;
+                int numChunks;
+
+                synchronized (subscriptionLock) {
+                    numChunks = subscribers.size();
+                    for (HashSet<ViewerConnection> chunkSubscribers : subscribers.values()) {
+                        numSubscriptions += chunkSubscribers.size();
+                    }
+                }
+
+                System.out.printf("relay: %d chunks with %d viewer subscriptions, %d updates from ZooKeeper, %d messages sent\n",
+                    numChunks, numSubscriptions, client.updatesApplied.get(), messagesSent.get());
+            }
+        });
+
+        statusThread.setDaemon(true);
+        statusThread.start();
+    }
+
+    public static void main(String[] args) throws KeeperException, IOException {
+
+        String usage = "usage: Relay [--port <port>] (<connect string> | --shards <shard map file>)";
+        ShardMap shardMap = null;
+        int port = defaultPort;
+
+        // handle argument checking
+        for (int i = 0; i < args.length; i++) {
+
+            if (args[i].equals("--port") && i + 1 < args.length) {
+                try {
+                    port = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    System.out.println(usage);
+                    return;
+                }
+            } else if (args[i].equals("--shards") && i + 1 < args.length) {
+                try {
+                    shardMap = ShardMap.loadFromFile(args[++i]);
+                } catch (IOException e) {
+                    System.out.printf("error: could not load shard map: %s\n", e.getMessage());
+                    return;
+                }
+            } else if (!args[i].startsWith("--") && shardMap == null) {
+                shardMap = new ShardMap(args[i], null);
+            } else {
+                System.out.println(usage);
+                return;
+            }
+        }
+
+        if (shardMap == null) {
+            System.out.println(usage);
+            return;
+        }
+
+        new Relay(shardMap, port).run();
+    }
+}
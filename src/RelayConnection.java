@@ -0,0 +1,107 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+// class used by a viewer to receive the canvas from a relay instead of from ZooKeeper
+// messages from the relay are read on a background thread and applied to the client (see Relay for the message formats)
+public class RelayConnection {
+
+    Client client;
+    Socket socket;
+    DataOutputStream out;
+    Object sendLock = new Object();
+
+    public RelayConnection(Client client, String host, int port) throws IOException {
+        this.client = client;
+        this.socket = new Socket(host, port);
+        this.socket.setTcpNoDelay(true);
+        this.out = new DataOutputStream(socket.getOutputStream());
+
+        Thread readerThread = new Thread(() -> readMessages());
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    // asks the relay for a chunk's tiles followed by all of its updates
+    public void subscribe(int chunkX, int chunkY) {
+        sendSubscription(Relay.messageSubscribe, chunkX, chunkY);
+    }
+
+    // tells the relay that the chunk's updates are no longer needed
+    public void unsubscribe(int chunkX, int chunkY) {
+        sendSubscription(Relay.messageUnsubscribe, chunkX, chunkY);
+    }
+
+    void sendSubscription(byte type, int chunkX, int chunkY) {
+
+        synchronized (sendLock) {
+            try {
+                out.writeByte(type);
+                out.writeInt(chunkX);
+                out.writeInt(chunkY);
+                out.flush();
+            } catch (IOException e) {
+                client.message = String.format("error: lost the connection to the relay: %s", e.getMessage());
+            }
+        }
+    }
+
+    // reads messages from the relay until the connection closes
+    void readMessages() {
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+
+            while (true) {
+
+                byte type = in.readByte();
+
+                if (type == Relay.messagePalette) {
+
+                    byte paletteData[] = new byte[in.readInt()];
+                    in.readFully(paletteData);
+                    Palette palette = Palette.deserialize(paletteData);
+
+                    if (palette != null) {
+                        Colorer.setPalette(palette);
+                    }
+
+                } else if (type == Relay.messageChunk) {
+
+                    int chunkX = in.readInt();
+                    int chunkY = in.readInt();
+                    int numRuns = in.readShort() & 0xffff;
+                    int colors[] = new int[Chunk.size * Chunk.size];
+                    int tileIndex = 0;
+
+                    for (int i = 0; i < numRuns; i++) {
+                        int length = in.readShort() & 0xffff;
+                        int colorIndex = in.readShort() & 0xffff;
+
+                        for (int k = 0; k < length && tileIndex < colors.length; k++) {
+                            colors[tileIndex++] = colorIndex;
+                        }
+                    }
+
+                    client.handleRelayChunk(chunkX, chunkY, colors);
+
+                } else if (type == Relay.messageTile) {
+
+                    int chunkX = in.readInt();
+                    int chunkY = in.readInt();
+                    int tileX = in.readByte();
+                    int tileY = in.readByte();
+                    int colorIndex = in.readShort() & 0xffff;
+
+                    client.handleRelayTileUpdate(chunkX, chunkY, tileX, tileY, colorIndex);
+
+                } else {
+                    throw new IOException(String.format("unknown message type %d", type));
+                }
+            }
+        } catch (IOException e) {
+            client.message = String.format("error: lost the connection to the relay: %s", e.getMessage());
+        }
+    }
+}
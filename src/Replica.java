@@ -0,0 +1,294 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Watcher;
+
+// class that mirrors the canvas (or a rectangle of chunks) from ZooKeeper into memory without drawing anything
+// it uses a headless viewer client, so it never writes to ZooKeeper and skips all of the display work done per update
+// other programs in the same process can read the mirrored tiles, and the whole mirror can be dumped to a compact file
+public class Replica {
+
+    public static final int dumpFormatVersion = 1;
+    static final byte dumpMagic[] = { 'Z', 'C', 'R', 'D' };
+
+    Client client;
+    HashMap<ZooKeeperMonitor, Watcher> rootWatchers; // the watcher of each ensemble's root node, so an ensemble never has it registered twice
+    int region[]; // the rectangle of chunks to mirror as { min x, min y, max x, max y } (inclusive), null for the whole canvas
+    long startTime;
+
+    public Replica(ShardMap shardMap, int region[]) throws KeeperException, IOException {
+        this.client = new Client(shardMap, true, false, false);
+        this.client.headless = true;
+        this.rootWatchers = new HashMap<ZooKeeperMonitor, Watcher>();
+        this.region = region;
+        this.startTime = System.currentTimeMillis();
+
+        // a change on one ensemble only lists that ensemble again
+        for (ZooKeeperMonitor shardZkm : client.shardMonitors.values()) {
+            rootWatchers.put(shardZkm, (event) -> client.dispatcher.dispatch(Helpers.rootNodePath, () -> discoverChunks(shardZkm)));
+        }
+    }
+
+    // starts mirroring every existing chunk, along with chunks that are created later
+    public void start() {
+        client.loadPaletteFromZK();
+
+        for (ZooKeeperMonitor shardZkm : client.shardMonitors.values()) {
+            discoverChunks(shardZkm);
+        }
+    }
+
+    // lists the chunks of an ensemble and starts mirroring the ones that are not mirrored yet
+    // the listing leaves the ensemble's root watcher, so this runs again whenever a chunk is created
+    void discoverChunks(ZooKeeperMonitor shardZkm) {
+
+        try {
+
+            List<String> chunkNames;
+
+            try {
+                chunkNames = shardZkm.syncGetChildren(Helpers.rootNodePath, rootWatchers.get(shardZkm));
+            } catch (KeeperException e) {
+                if (e.code() != Code.NONODE) {
+                    throw e;
+                }
+
+                // the canvas has not been created yet, so wait for it, unless it was created in between
+                if (shardZkm.syncExists(Helpers.rootNodePath, rootWatchers.get(shardZkm))) {
+                    discoverChunks(shardZkm);
+                }
+                return;
+            }
+
+            for (String chunkName : chunkNames) {
+                String chunkPath = String.format("%s/%s", Helpers.rootNodePath, chunkName);
+                int chunkXCoord = Helpers.chunkXCoordFromPath(chunkPath);
+                int chunkYCoord = Helpers.chunkYCoordFromPath(chunkPath);
+
+                // skip chunks left behind on an ensemble that no longer stores them
+                if (chunkName.startsWith("chunk_") && isInRegion(chunkXCoord, chunkYCoord) && client.zkmForChunk(chunkXCoord, chunkYCoord) == shardZkm) {
+                    client.mirrorChunk(chunkXCoord, chunkYCoord);
+                }
+            }
+
+            client.errorRetryCounter = 0;
+
+        } catch (KeeperException e) {
+            client.waitForRetryDueToError();
+            System.out.printf("KeeperException: %s\n", e.getMessage());
+            discoverChunks(shardZkm);
+        } catch (InterruptedException e) {
+            System.out.printf("InterruptedException: %s\n", e.getMessage());
+        }
+    }
+
+    // returns true if the chunk should be mirrored
+    public boolean isInRegion(int chunkX, int chunkY) {
+        return region == null || (chunkX >= region[0] && chunkX <= region[2] && chunkY >= region[1] && chunkY <= region[3]);
+    }
+
+    // returns the chunks currently being mirrored
+    public List<Chunk> getMirroredChunks() {
+
+        synchronized (client.chunkLock) {
+            return new ArrayList<Chunk>(client.visibleChunks);
+        }
+    }
+
+    // returns the palette index of a tile in global tile coordinates, or -1 if its chunk is not mirrored
+    public int getTileColor(int globalX, int globalY) {
+
+        Chunk chunk;
+
+        synchronized (client.chunkLock) {
+            chunk = client.canvas.getChunkAtCoords(Math.floorDiv(globalX, Chunk.size), Math.floorDiv(globalY, Chunk.size));
+
+            if (chunk == null || !client.visibleChunks.contains(chunk)) {
+                return -1;
+            }
+        }
+
+        return chunk.getTile(Math.floorMod(globalX, Chunk.size), Math.floorMod(globalY, Chunk.size)).getColorIndex();
+    }
+
+    // returns the palette index of every tile of a chunk row by row, or null if the chunk is not mirrored
+    public int[] getChunkColors(int chunkX, int chunkY) {
+
+        Chunk chunk;
+
+        synchronized (client.chunkLock) {
+            chunk = client.canvas.getChunkAtCoords(chunkX, chunkY);
+
+            if (chunk == null || !client.visibleChunks.contains(chunk)) {
+                return null;
+            }
+        }
+
+        int colors[] = new int[Chunk.size * Chunk.size];
+
+        for (int y = 0; y < Chunk.size; y++) {
+            for (int x = 0; x < Chunk.size; x++) {
+                colors[y * Chunk.size + x] = chunk.getTile(x, y).getColorIndex();
+            }
+        }
+
+        return colors;
+    }
+
+    // returns the number of tile updates that have been applied to the mirror
+    public long getUpdatesApplied() {
+        return client.updatesApplied.get();
+    }
+
+    // writes the mirror to a file, replacing it only once the new dump is complete
+    // the file contains the magic "ZCRD", the format version, the time of the dump and the number of chunks,
+    // then for each chunk its coordinates and its tiles (row by row) as runs of { length, palette index }
+    public void dump(String fileName) throws IOException {
+
+        String tempFileName = fileName + ".tmp";
+        List<Chunk> chunks = getMirroredChunks();
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFileName)))) {
+
+            out.write(dumpMagic);
+            out.writeByte(dumpFormatVersion);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(chunks.size());
+
+            for (Chunk chunk : chunks) {
+
+                List<int[]> runs = colorRuns(getChunkColors(chunk.xCoord, chunk.yCoord));
+
+                out.writeInt(chunk.xCoord);
+                out.writeInt(chunk.yCoord);
+                out.writeShort(runs.size());
+
+                for (int run[] : runs) {
+                    out.writeShort(run[0]);
+                    out.writeShort(run[1]);
+                }
+            }
+        }
+
+        Files.move(Paths.get(tempFileName), Paths.get(fileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // converts the colors of a chunk's tiles to runs of { length, palette index }
+    public static List<int[]> colorRuns(int colors[]) {
+
+        List<int[]> runs = new ArrayList<int[]>();
+
+        for (int i = 0; i < colors.length; i++) {
+            if (!runs.isEmpty() && runs.get(runs.size() - 1)[1] == colors[i]) {
+                runs.get(runs.size() - 1)[0]++;
+            } else {
+                runs.add(new int[] { 1, colors[i] });
+            }
+        }
+
+        return runs;
+    }
+
+    // dumps the mirror every interval on a background thread, printing how much it has kept up with
+    public void startPeriodicDump(String fileName, int dumpInterval) {
+
+        Thread dumpThread = new Thread(() -> {
+
+            long lastUpdates = 0;
+            long lastTime = System.currentTimeMillis();
+
+            while (true) {
+                try {
+                    Thread.sleep(dumpInterval);
+
+                    long dumpStartTime = System.currentTimeMillis();
+                    dump(fileName);
+
+                    long updates = getUpdatesApplied();
+                    long time = System.currentTimeMillis();
+
+                    System.out.printf("replica: %d chunks, %d updates applied (%.1f/s), %d queued, dumped to %s in %d ms\n",
+                        getMirroredChunks().size(), updates, (updates - lastUpdates) * 1000.0 / Math.max(1, time - lastTime),
+                        client.dispatcher.getQueuedEventCount(), fileName, time - dumpStartTime);
+
+                    lastUpdates = updates;
+                    lastTime = time;
+                } catch (IOException e) {
+                    System.out.printf("error: could not dump the replica: %s\n", e.getMessage());
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+
+        dumpThread.setDaemon(true);
+        dumpThread.start();
+    }
+
+    public static void main(String[] args) throws KeeperException, IOException, InterruptedException {
+
+        String usage = "usage: Replica [--region <min chunk x> <min chunk y> <max chunk x> <max chunk y>] [--dump <file>] [--dump-interval <ms>] (<connect string> | --shards <shard map file>)";
+        ShardMap shardMap = null;
+        int region[] = null;
+        String dumpFileName = "replica.dump";
+        int dumpInterval = 10000;
+
+        // handle argument checking
+        for (int i = 0; i < args.length; i++) {
+
+            try {
+                if (args[i].equals("--region") && i + 4 < args.length) {
+                    region = new int[] { Integer.parseInt(args[i + 1]), Integer.parseInt(args[i + 2]), Integer.parseInt(args[i + 3]), Integer.parseInt(args[i + 4]) };
+                    i += 4;
+                } else if (args[i].equals("--dump") && i + 1 < args.length) {
+                    dumpFileName = args[++i];
+                } else if (args[i].equals("--dump-interval") && i + 1 < args.length) {
+                    dumpInterval = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--shards") && i + 1 < args.length) {
+                    try {
+                        shardMap = ShardMap.loadFromFile(args[++i]);
+                    } catch (IOException e) {
+                        System.out.printf("error: could not load shard map: %s\n", e.getMessage());
+                        return;
+                    }
+                } else if (!args[i].startsWith("--") && shardMap == null) {
+                    shardMap = new ShardMap(args[i], null);
+                } else {
+                    System.out.println(usage);
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                System.out.println(usage);
+                return;
+            }
+        }
+
+        if (shardMap == null || dumpInterval <= 0) {
+            System.out.println(usage);
+            return;
+        }
+
+        if (region != null) {
+            region = new int[] { Math.min(region[0], region[2]), Math.min(region[1], region[3]), Math.max(region[0], region[2]), Math.max(region[1], region[3]) };
+        }
+
+        Replica replica = new Replica(shardMap, region);
+        replica.start();
+        replica.startPeriodicDump(dumpFileName, dumpInterval);
+
+        // the replica runs until it is killed
+        while (true) {
+            Thread.sleep(Long.MAX_VALUE);
+        }
+    }
+}
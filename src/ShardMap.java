@@ -0,0 +1,142 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// class that maps regions of chunks to the ZooKeeper ensemble that stores them
+// the default ensemble stores every chunk that is not in a region, along with the canvas-wide nodes (palette, directory)
+public class ShardMap {
+
+    // class containing a rectangle of chunks (inclusive) and the ensemble that stores it
+    public static class Shard {
+
+        public int minChunkX;
+        public int minChunkY;
+        public int maxChunkX;
+        public int maxChunkY;
+        public String connectString;
+        public String observerConnectString; // the ensemble's observers, which viewers connect to instead (null if there are none)
+
+        public Shard(int minChunkX, int minChunkY, int maxChunkX, int maxChunkY, String connectString, String observerConnectString) {
+            this.minChunkX = Math.min(minChunkX, maxChunkX);
+            this.minChunkY = Math.min(minChunkY, maxChunkY);
+            this.maxChunkX = Math.max(minChunkX, maxChunkX);
+            this.maxChunkY = Math.max(minChunkY, maxChunkY);
+            this.connectString = connectString;
+            this.observerConnectString = observerConnectString;
+        }
+
+        // returns true if the chunk is inside the shard's region
+        public boolean containsChunk(int chunkX, int chunkY) {
+            return chunkX >= minChunkX && chunkX <= maxChunkX && chunkY >= minChunkY && chunkY <= maxChunkY;
+        }
+    }
+
+    String defaultConnectString;
+    String defaultObserverConnectString;
+    List<Shard> shards;
+
+    public ShardMap(String defaultConnectString) {
+        this(defaultConnectString, null);
+    }
+
+    public ShardMap(String defaultConnectString, String defaultObserverConnectString) {
+        this.defaultConnectString = defaultConnectString;
+        this.defaultObserverConnectString = defaultObserverConnectString;
+        this.shards = new ArrayList<Shard>();
+    }
+
+    // returns a copy of the shard map where every ensemble with observers is reached through its observers
+    // used by viewers so that their reads and watches are not served by the servers that vote on writes
+    public ShardMap forViewers() {
+
+        ShardMap viewerShardMap = new ShardMap(defaultObserverConnectString != null ? defaultObserverConnectString : defaultConnectString);
+
+        for (Shard shard : shards) {
+            String connectString = shard.observerConnectString != null ? shard.observerConnectString : shard.connectString;
+            viewerShardMap.shards.add(new Shard(shard.minChunkX, shard.minChunkY, shard.maxChunkX, shard.maxChunkY, connectString, null));
+        }
+
+        return viewerShardMap;
+    }
+
+    // loads a shard map from a file containing the following lines (lines starting with # are ignored):
+    //   default <connect string> [<observer connect string>]
+    //   shard <min chunk x> <min chunk y> <max chunk x> <max chunk y> <connect string> [<observer connect string>]
+    public static ShardMap loadFromFile(String fileName) throws IOException {
+
+        ShardMap shardMap = new ShardMap(null);
+        BufferedReader reader = new BufferedReader(new FileReader(fileName));
+        String line;
+        int lineNum = 0;
+
+        try {
+            while ((line = reader.readLine()) != null) {
+
+                lineNum++;
+                line = line.trim();
+
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                String parts[] = line.split("\\s+");
+
+                if (parts[0].equals("default") && (parts.length == 2 || parts.length == 3)) {
+                    shardMap.defaultConnectString = parts[1];
+                    shardMap.defaultObserverConnectString = parts.length == 3 ? parts[2] : null;
+                } else if (parts[0].equals("shard") && (parts.length == 6 || parts.length == 7)) {
+                    try {
+                        String observerConnectString = parts.length == 7 ? parts[6] : null;
+                        shardMap.shards.add(new Shard(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Integer.parseInt(parts[3]), Integer.parseInt(parts[4]), parts[5], observerConnectString));
+                    } catch (NumberFormatException e) {
+                        throw new IOException(String.format("%s:%d: invalid chunk coordinates", fileName, lineNum));
+                    }
+                } else {
+                    throw new IOException(String.format("%s:%d: expected 'default <connect string> [<observers>]' or 'shard x1 y1 x2 y2 <connect string> [<observers>]'", fileName, lineNum));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        if (shardMap.defaultConnectString == null) {
+            throw new IOException(String.format("%s: missing 'default <connect string>' line", fileName));
+        }
+
+        return shardMap;
+    }
+
+    // returns the connect string of the ensemble that stores a chunk
+    public String connectStringForChunk(int chunkX, int chunkY) {
+
+        for (Shard shard : shards) {
+            if (shard.containsChunk(chunkX, chunkY)) {
+                return shard.connectString;
+            }
+        }
+
+        return defaultConnectString;
+    }
+
+    // returns the connect string of the ensemble that stores the canvas-wide nodes
+    public String getDefaultConnectString() {
+        return defaultConnectString;
+    }
+
+    // returns every distinct connect string, starting with the default
+    public List<String> getAllConnectStrings() {
+
+        List<String> connectStrings = new ArrayList<String>();
+        connectStrings.add(defaultConnectString);
+
+        for (Shard shard : shards) {
+            if (!connectStrings.contains(shard.connectString)) {
+                connectStrings.add(shard.connectString);
+            }
+        }
+
+        return connectStrings;
+    }
+}
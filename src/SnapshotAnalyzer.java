@@ -0,0 +1,221 @@
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.zookeeper.data.StatPersisted;
+import org.apache.zookeeper.server.DataNode;
+import org.apache.zookeeper.server.DataTree;
+
+// offline tool that reports how large the canvas stored by an ensemble is and which of its chunks are written the most
+// it reads a snapshot from a server's data directory instead of walking the live tree, and aggregates the chunks in parallel
+public class SnapshotAnalyzer {
+
+    public static final int defaultTopCount = 10;
+    public static final int estimatedNodeOverhead = 250; // rough bytes of server heap per node besides its path and data
+
+    // class containing the totals of one chunk
+    static class ChunkStats {
+
+        int chunkX;
+        int chunkY;
+        int tileCount;
+        long dataBytes; // the bytes of the paths and data of the chunk's nodes
+        long writes; // the writes to the chunk's tiles, counting each creation and each change of data
+        long lastModifiedTime; // the time the chunk's tiles were last written
+        long lastModifiedZxid;
+
+        ChunkStats(int chunkX, int chunkY) {
+            this.chunkX = chunkX;
+            this.chunkY = chunkY;
+            this.tileCount = 0;
+            this.dataBytes = 0;
+            this.writes = 0;
+            this.lastModifiedTime = 0;
+            this.lastModifiedZxid = 0;
+        }
+    }
+
+    DataTree dataTree;
+    List<ChunkStats> chunkStats;
+
+    public SnapshotAnalyzer(DataTree dataTree) {
+        this.dataTree = dataTree;
+        this.chunkStats = new ArrayList<ChunkStats>();
+    }
+
+    // adds up the nodes of every chunk, one chunk per task
+    public void analyze(int numThreads) throws InterruptedException {
+
+        DataNode rootNode = dataTree.getNode(Helpers.rootNodePath);
+
+        if (rootNode == null) {
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<ChunkStats>> futures = new ArrayList<Future<ChunkStats>>();
+
+        for (String chunkName : rootNode.getChildren()) {
+            if (chunkName.startsWith("chunk_")) {
+                String chunkPath = String.format("%s/%s", Helpers.rootNodePath, chunkName);
+                futures.add(executor.submit(() -> analyzeChunk(chunkPath)));
+            }
+        }
+
+        try {
+            for (Future<ChunkStats> future : futures) {
+                chunkStats.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    ChunkStats analyzeChunk(String chunkPath) {
+
+        ChunkStats stats = new ChunkStats(Helpers.chunkXCoordFromPath(chunkPath), Helpers.chunkYCoordFromPath(chunkPath));
+        String tilesPath = String.format("%s/tiles", chunkPath);
+
+        stats.dataBytes += nodeBytes(chunkPath, dataTree.getNode(chunkPath));
+        DataNode tilesNode = dataTree.getNode(tilesPath);
+
+        if (tilesNode == null) {
+            return stats;
+        }
+
+        stats.dataBytes += nodeBytes(tilesPath, tilesNode);
+
+        for (String tileName : tilesNode.getChildren()) {
+
+            String tilePath = String.format("%s/%s", tilesPath, tileName);
+            DataNode tileNode = dataTree.getNode(tilePath);
+
+            if (tileNode == null) {
+                continue;
+            }
+
+            StatPersisted stat = tileNode.stat;
+
+            stats.tileCount++;
+            stats.dataBytes += nodeBytes(tilePath, tileNode);
+            stats.writes += stat.getVersion() + 1;
+            stats.lastModifiedTime = Math.max(stats.lastModifiedTime, stat.getMtime());
+            stats.lastModifiedZxid = Math.max(stats.lastModifiedZxid, stat.getMzxid());
+        }
+
+        return stats;
+    }
+
+    static long nodeBytes(String path, DataNode node) {
+        byte data[] = node == null ? null : node.getData();
+        return path.length() + (data == null ? 0 : data.length);
+    }
+
+    // prints the totals of the whole tree and of the canvas, followed by the chunks with the most writes
+    public void printReport(int topCount) {
+
+        long tileCount = 0;
+        long canvasBytes = 0;
+        long writes = 0;
+
+        for (ChunkStats stats : chunkStats) {
+            tileCount += stats.tileCount;
+            canvasBytes += stats.dataBytes;
+            writes += stats.writes;
+        }
+
+        long treeBytes = dataTree.approximateDataSize();
+        long estimatedHeapBytes = treeBytes + (long) dataTree.getNodeCount() * estimatedNodeOverhead;
+
+        System.out.printf("nodes:             %d (%d ephemeral)\n", dataTree.getNodeCount(), dataTree.getEphemeralsCount());
+        System.out.printf("tree data:         %s in paths and data, about %s of server memory\n", formatBytes(treeBytes), formatBytes(estimatedHeapBytes));
+        System.out.printf("chunks:            %d\n", chunkStats.size());
+        System.out.printf("tiles:             %d (%.1f per chunk)\n", tileCount, chunkStats.isEmpty() ? 0.0 : (double) tileCount / chunkStats.size());
+        System.out.printf("tile writes:       %d\n", writes);
+        System.out.printf("canvas data:       %s (%.0f%% of the tree)\n", formatBytes(canvasBytes), treeBytes == 0 ? 0.0 : 100.0 * canvasBytes / treeBytes);
+
+        List<ChunkStats> hottest = new ArrayList<ChunkStats>(chunkStats);
+        hottest.sort(Comparator.comparingLong((ChunkStats stats) -> stats.writes).reversed());
+
+        System.out.printf("\n%-16s %8s %10s %10s  %s\n", "chunk", "tiles", "writes", "bytes", "last modified");
+
+        for (ChunkStats stats : hottest.subList(0, Math.min(topCount, hottest.size()))) {
+            System.out.printf("%-16s %8d %10d %10d  %s (zxid 0x%x)\n", String.format("(%d, %d)", stats.chunkX, stats.chunkY), stats.tileCount, stats.writes,
+                    stats.dataBytes, stats.lastModifiedTime > 0 ? Instant.ofEpochMilli(stats.lastModifiedTime) : "-", stats.lastModifiedZxid);
+        }
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        }
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    // main method called on application launch
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        String usage = "usage: SnapshotAnalyzer [--top <n>] [--threads <n>] (<data directory> | <snapshot file>)";
+        int topCount = defaultTopCount;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        String pathName = null;
+
+        // handle argument checking
+        for (int i = 0; i < args.length; i++) {
+
+            try {
+                if (args[i].equals("--top") && i + 1 < args.length) {
+                    topCount = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--threads") && i + 1 < args.length) {
+                    numThreads = Integer.parseInt(args[++i]);
+                } else if (!args[i].startsWith("--") && pathName == null) {
+                    pathName = args[i];
+                } else {
+                    System.out.println(usage);
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                System.out.println(usage);
+                return;
+            }
+        }
+
+        if (pathName == null || topCount < 0 || numThreads < 1) {
+            System.out.println(usage);
+            return;
+        }
+
+        // a data directory is analyzed from its newest snapshot
+        File snapshotFile = new File(pathName);
+
+        if (snapshotFile.isDirectory()) {
+
+            File versionDir = new File(snapshotFile, "version-2");
+            List<File> snapshots = LogReplay.findSnapshots(versionDir.isDirectory() ? versionDir : snapshotFile);
+
+            if (snapshots.isEmpty()) {
+                System.out.printf("error: there are no snapshots in %s\n", pathName);
+                return;
+            }
+
+            snapshotFile = snapshots.get(snapshots.size() - 1);
+        }
+
+        long startTime = System.currentTimeMillis();
+        SnapshotAnalyzer analyzer = new SnapshotAnalyzer(LogReplay.loadSnapshot(snapshotFile));
+        long loadedTime = System.currentTimeMillis();
+        analyzer.analyze(numThreads);
+
+        System.out.printf("%s: loaded in %d ms, analyzed in %d ms\n\n", snapshotFile.getPath(), loadedTime - startTime, System.currentTimeMillis() - loadedTime);
+        analyzer.printReport(topCount);
+    }
+}
@@ -3,30 +3,119 @@
 public class Tile {
 
     public final String content = "██"; // the string that is used to represent the tile on the grid when printed
-    Colorer.Color color; // the color to print the tile
+    public static final String pendingContent = "▓▓"; // the string used instead for tiles with unacknowledged writes
+    public static boolean markPending = false; // true if tiles with unacknowledged writes are drawn with pendingContent
+    short colorIndex; // the palette index of the color to print the tile
     int timesUpdated; // the number of times the tile was updated to a new color (locally)
+    int version; // the version of the tile node that the color was read from or written as, -1 if the node is not known to exist
+    long mzxid; // the zxid of the write that produced the color, used to drop responses that arrive out of order (0 if unknown)
+    short confirmedColorIndex; // the newest color known to be stored in ZooKeeper while writes are pending
+    int pendingWrites; // the number of writes by this client that ZooKeeper has not acknowledged yet
     String path; // the path of the tile
 
     // default constructor
     public Tile() {
-        color = Colorer.Color.WHITE;
+        colorIndex = Palette.defaultColorIndex;
         timesUpdated = 0;
+        version = -1;
+        mzxid = 0;
+        confirmedColorIndex = colorIndex;
+        pendingWrites = 0;
     }
 
     // constructor overriding the default color
-    public Tile(Colorer.Color color) {
-        this.color = color;
+    public Tile(int colorIndex) {
+        this.colorIndex = (short) colorIndex;
         this.timesUpdated = 0;
+        this.version = -1;
+        this.mzxid = 0;
+        this.confirmedColorIndex = this.colorIndex;
+        this.pendingWrites = 0;
     }
 
     // set the tile to a new color
-    public void setColor(Colorer.Color color) {
-        this.color = color;
+    public void setColor(int colorIndex) {
+        this.colorIndex = (short) colorIndex;
         timesUpdated++;
     }
 
+    // set the tile to a new color along with the version and mzxid of the tile node it came from
+    // colors older than the one the tile already reflects are dropped, returns false if that happened
+    // while writes are pending, the color is only remembered so it can be shown if those writes lose
+    public boolean setColor(int colorIndex, int version, long mzxid) {
+
+        if (mzxid < this.mzxid) {
+            return false;
+        }
+
+        if (pendingWrites == 0) {
+            setColor(colorIndex);
+        } else {
+            confirmedColorIndex = (short) colorIndex;
+        }
+
+        this.version = version;
+        this.mzxid = mzxid;
+        return true;
+    }
+
+    // shows a color that this client is writing before ZooKeeper has acknowledged it
+    public void setPendingColor(int colorIndex) {
+
+        if (pendingWrites == 0) {
+            confirmedColorIndex = this.colorIndex;
+        }
+
+        pendingWrites++;
+        setColor(colorIndex);
+    }
+
+    // records that ZooKeeper acknowledged one of the pending writes with the given version and mzxid
+    // once no writes are pending, the tile shows whichever color has the newest mzxid
+    // returns false if the acknowledged color was dropped because the tile already reflects a newer write
+    public boolean confirmPendingColor(int colorIndex, int version, long mzxid) {
+
+        boolean applied = mzxid >= this.mzxid;
+
+        if (applied) {
+            confirmedColorIndex = (short) colorIndex;
+            this.version = version;
+            this.mzxid = mzxid;
+        }
+
+        finishPendingWrite();
+        return applied;
+    }
+
+    // records that one of the pending writes failed
+    public void cancelPendingColor() {
+        finishPendingWrite();
+    }
+
+    // shows the confirmed color once the last pending write has finished
+    void finishPendingWrite() {
+
+        if (pendingWrites > 0) {
+            pendingWrites--;
+        }
+
+        if (pendingWrites == 0 && colorIndex != confirmedColorIndex) {
+            setColor(confirmedColorIndex);
+        }
+    }
+
+    // returns true if ZooKeeper has not acknowledged every write of the tile yet
+    public boolean isPending() {
+        return pendingWrites > 0;
+    }
+
+    // returns the palette index of the tile's color
+    public int getColorIndex() {
+        return colorIndex & 0xffff;
+    }
+
     // color the content string and return it
     public String toString() {
-        return Colorer.colorString(content, color);
+        return Colorer.colorString(markPending && isPending() ? pendingContent : content, getColorIndex());
     }
 }
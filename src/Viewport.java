@@ -0,0 +1,136 @@
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+// class describing the rectangle of tiles that is drawn to the display, which may span several chunks
+public class Viewport {
+
+    public static final int statusLineCount = 6; // lines of the display used for the status messages and prompt
+
+    public int originX; // global x coordinate of the top left tile
+    public int originY; // global y coordinate of the top left tile
+    public int width; // width in tiles
+    public int height; // height in tiles
+
+    public Viewport(int originX, int originY, int width, int height) {
+        this.originX = originX;
+        this.originY = originY;
+        this.width = Math.max(1, width);
+        this.height = Math.max(1, height);
+    }
+
+    // creates a viewport covering exactly one chunk
+    public static Viewport forChunk(int chunkX, int chunkY) {
+        return new Viewport(chunkX * Chunk.size, chunkY * Chunk.size, Chunk.size, Chunk.size);
+    }
+
+    // creates a viewport starting at the top left of a chunk that is sized to fill the terminal
+    public static Viewport forTerminal(int chunkX, int chunkY) {
+
+        int terminalSize[] = detectTerminalSize();
+
+        // each tile is two characters wide
+        return new Viewport(chunkX * Chunk.size, chunkY * Chunk.size, (terminalSize[1] - 1) / 2, terminalSize[0] - statusLineCount);
+    }
+
+    // returns the {rows, columns} of the terminal, falling back to the environment or 80x24
+    public static int[] detectTerminalSize() {
+
+        try {
+            Process process = new ProcessBuilder("sh", "-c", "stty size < /dev/tty").redirectErrorStream(true).start();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            String line = reader.readLine();
+            process.waitFor();
+
+            if (line != null) {
+                String parts[] = line.trim().split(" ");
+                return new int[] {Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+            }
+        } catch (Exception e) {
+            // stty is not available or there is no terminal, try the environment instead
+        }
+
+        try {
+            return new int[] {Integer.parseInt(System.getenv("LINES")), Integer.parseInt(System.getenv("COLUMNS"))};
+        } catch (NumberFormatException e) {
+            return new int[] {24, 80};
+        }
+    }
+
+    // returns the {x, y} coordinates of every chunk that intersects the viewport
+    public List<int[]> intersectingChunkCoords() {
+
+        List<int[]> coords = new ArrayList<int[]>();
+
+        int minChunkX = Math.floorDiv(originX, Chunk.size);
+        int minChunkY = Math.floorDiv(originY, Chunk.size);
+        int maxChunkX = Math.floorDiv(originX + width - 1, Chunk.size);
+        int maxChunkY = Math.floorDiv(originY + height - 1, Chunk.size);
+
+        for (int y = minChunkY; y <= maxChunkY; y++) {
+            for (int x = minChunkX; x <= maxChunkX; x++) {
+                coords.add(new int[] {x, y});
+            }
+        }
+
+        return coords;
+    }
+
+    // returns true if the given chunk intersects the viewport
+    public boolean intersectsChunk(int chunkX, int chunkY) {
+        int chunkOriginX = chunkX * Chunk.size;
+        int chunkOriginY = chunkY * Chunk.size;
+
+        return chunkOriginX < originX + width && chunkOriginX + Chunk.size > originX
+            && chunkOriginY < originY + height && chunkOriginY + Chunk.size > originY;
+    }
+
+    // returns the display row of a tile, or -1 if it is outside the viewport
+    public int rowForTile(int chunkY, int tileY) {
+        int row = chunkY * Chunk.size + tileY - originY;
+        return row >= 0 && row < height ? row : -1;
+    }
+
+    // returns the display column (in tiles) of a tile, or -1 if it is outside the viewport
+    public int columnForTile(int chunkX, int tileX) {
+        int column = chunkX * Chunk.size + tileX - originX;
+        return column >= 0 && column < width ? column : -1;
+    }
+
+    // build a string of every tile in the viewport, drawing missing chunks as blank tiles
+    public String render(Canvas canvas) {
+
+        StringBuilder str = new StringBuilder();
+        String blankTileStr = new Tile().toString();
+
+        for (int row = 0; row < height; row++) {
+
+            int globalY = originY + row;
+            int chunkY = Math.floorDiv(globalY, Chunk.size);
+            int tileY = Math.floorMod(globalY, Chunk.size);
+
+            int column = 0;
+            while (column < width) {
+
+                // draw the row in runs that each stay inside one chunk
+                int globalX = originX + column;
+                int chunkX = Math.floorDiv(globalX, Chunk.size);
+                int tileX = Math.floorMod(globalX, Chunk.size);
+                int runLength = Math.min(Chunk.size - tileX, width - column);
+
+                Chunk chunk = canvas.getChunkAtCoords(chunkX, chunkY);
+
+                for (int i = 0; i < runLength; i++) {
+                    str.append(chunk == null ? blankTileStr : chunk.getTile(tileX + i, tileY).toString());
+                }
+
+                column += runLength;
+            }
+
+            str.append("\n");
+        }
+
+        return str.toString();
+    }
+}
@@ -0,0 +1,179 @@
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.KeeperException.Code;
+
+// class that shares a write budget for the whole canvas between the writers that take part in it
+// the quota node stores the budget in writes per second and every participating writer keeps an ephemeral node under it,
+// so each writer limits itself to an equal share of the budget, and the shares grow as soon as a writer leaves
+// the share caps both the single tile writes and the batched writes of a writer, each never above its own limit
+public class WriteQuota {
+
+    public static final String memberPrefix = "writer-";
+
+    Client client;
+    ZooKeeperMonitor zkm;
+    double localRate; // the rate this client is limited to on its own, 0 or less for no limit
+    double localBatchRate; // the rate this client's batched writes are limited to on their own, 0 or less for no limit
+    double budget; // the writes per second shared by all writers, 0 or less if no budget has been set
+    int numMembers;
+    String memberPath; // the path of this client's ephemeral node, null before joining
+    Watcher quotaWatcher; // one watcher for both watches, so ZooKeeper never registers it twice on the quota node
+
+    public WriteQuota(Client client, ZooKeeperMonitor zkm) {
+        this.client = client;
+        this.zkm = zkm;
+        this.localRate = client.writeLimiter.getMaxRate();
+        this.localBatchRate = client.batchLimiter.getMaxRate();
+        this.budget = 0;
+        this.numMembers = 1;
+        this.memberPath = null;
+        this.quotaWatcher = (event) -> {
+            client.dispatcher.dispatch(Helpers.quotaNodePath, () -> refresh());
+        };
+    }
+
+    // registers this client as a writer sharing the budget and starts following the budget and the other writers
+    public void join() {
+
+        try {
+            if (!zkm.syncExists(Helpers.rootNodePath, false)) {
+                try {
+                    zkm.syncCreate(Helpers.rootNodePath, false, null);
+                } catch (KeeperException.NodeExistsException e) {
+                    // another client created it first
+                }
+            }
+
+            if (!zkm.syncExists(Helpers.quotaNodePath, false)) {
+                try {
+                    zkm.syncCreate(Helpers.quotaNodePath, false, null);
+                } catch (KeeperException.NodeExistsException e) {
+                    // another client created it first
+                }
+            }
+
+            memberPath = zkm.syncCreate(String.format("%s/%s", Helpers.quotaNodePath, memberPrefix), null, CreateMode.EPHEMERAL_SEQUENTIAL);
+            client.errorRetryCounter = 0;
+
+        } catch (KeeperException e) {
+            client.waitForRetryDueToError();
+            client.message = String.format("KeeperException: %s", e.getMessage());
+            join();
+            return;
+        } catch (InterruptedException e) {
+            client.message = String.format("InterruptedException: %s", e.getMessage());
+            return;
+        }
+
+        refresh();
+    }
+
+    // reads the budget and counts the writers, leaving watches that refresh the share again when either changes
+    void refresh() {
+
+        try {
+            byte data[] = zkm.syncGetData(Helpers.quotaNodePath, quotaWatcher, null);
+            List<String> memberNames = zkm.syncGetChildren(Helpers.quotaNodePath, quotaWatcher);
+
+            synchronized (this) {
+                budget = parseBudget(data);
+                numMembers = Math.max(1, memberNames.size());
+            }
+
+            applyShare();
+            client.errorRetryCounter = 0;
+
+        } catch (KeeperException e) {
+
+            // the quota node was deleted, so the writers are no longer sharing a budget
+            if (e.code() == Code.NONODE) {
+                synchronized (this) {
+                    budget = 0;
+                }
+                applyShare();
+                return;
+            }
+
+            client.waitForRetryDueToError();
+            client.message = String.format("KeeperException: %s", e.getMessage());
+            refresh();
+        } catch (InterruptedException e) {
+            client.message = String.format("InterruptedException: %s", e.getMessage());
+        }
+    }
+
+    // changes the rates this client is limited to on its own, which cap its share of the budget
+    public void setLocalRates(double rate, double batchRate) {
+
+        synchronized (this) {
+            localRate = rate;
+            localBatchRate = batchRate;
+        }
+
+        applyShare();
+    }
+
+    // limits the single tile writes and the batched writes of this client to its share of the budget
+    void applyShare() {
+        client.writeLimiter.setMaxRate(getShare());
+        client.batchLimiter.setMaxRate(getBatchShare());
+    }
+
+    // sets the budget shared by all writers, 0 removes it
+    public void setBudget(double writesPerSecond) throws KeeperException, InterruptedException {
+
+        byte data[] = String.format("%d", (long) Math.max(0, writesPerSecond)).getBytes(StandardCharsets.US_ASCII);
+
+        try {
+            zkm.syncSetData(Helpers.quotaNodePath, data);
+        } catch (KeeperException.NoNodeException e) {
+            zkm.syncCreate(Helpers.quotaNodePath, false, data);
+        }
+    }
+
+    // returns the writes per second this client may send: its share of the budget, but never more than its own limit
+    public synchronized double getShare() {
+        return capAtShare(localRate);
+    }
+
+    // returns the batched writes per second this client may send, capped by the same share of the budget
+    public synchronized double getBatchShare() {
+        return capAtShare(localBatchRate);
+    }
+
+    synchronized double capAtShare(double rate) {
+
+        if (budget <= 0) {
+            return rate;
+        }
+
+        double share = budget / numMembers;
+        return rate > 0 ? Math.min(rate, share) : share;
+    }
+
+    public synchronized double getBudget() {
+        return budget;
+    }
+
+    public synchronized int getNumMembers() {
+        return numMembers;
+    }
+
+    // parses the budget stored in the quota node, anything that is not a number means there is no budget
+    static double parseBudget(byte data[]) {
+
+        if (data == null || data.length == 0) {
+            return 0;
+        }
+
+        try {
+            return Double.parseDouble(new String(data, StandardCharsets.US_ASCII).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
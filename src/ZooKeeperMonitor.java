@@ -3,9 +3,12 @@ import java.util.Arrays;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
@@ -13,6 +16,7 @@ import org.apache.zookeeper.AsyncCallback.DataCallback;
 import org.apache.zookeeper.AsyncCallback.StatCallback;
 import org.apache.zookeeper.AsyncCallback.Children2Callback;
 import org.apache.zookeeper.AsyncCallback.Create2Callback;
+import org.apache.zookeeper.AsyncCallback.MultiCallback;
 import org.apache.zookeeper.KeeperException.Code;
 import org.apache.zookeeper.Watcher.Event.KeeperState;
 import org.apache.zookeeper.data.Stat;
@@ -21,14 +25,26 @@ import org.apache.zookeeper.ZooDefs.Ids;
 
 public class ZooKeeperMonitor implements Watcher, DataCallback, Create2Callback, StatCallback {
 
+    public static final int defaultSessionTimeout = 3000; // milliseconds
+
     ZooKeeper zk;
     ZooKeeperMonitorListener listener;
+    EventDispatcher dispatcher; // runs the listener's handlers so that ZooKeeper's event thread is never blocked by them
     boolean failed;
 
     public ZooKeeperMonitor(ZooKeeperMonitorListener listener, String serverInfo) throws KeeperException, IOException {
+        this(listener, serverInfo, new EventDispatcher());
+    }
+
+    public ZooKeeperMonitor(ZooKeeperMonitorListener listener, String serverInfo, EventDispatcher dispatcher) throws KeeperException, IOException {
+        this(listener, serverInfo, dispatcher, defaultSessionTimeout);
+    }
+
+    public ZooKeeperMonitor(ZooKeeperMonitorListener listener, String serverInfo, EventDispatcher dispatcher, int sessionTimeout) throws KeeperException, IOException {
         // System.out.printf("new ZooKeeperMonitor for server: %s\n", serverInfo);
         this.listener = listener;
-        this.zk = new ZooKeeper(serverInfo, 3000, this);
+        this.dispatcher = dispatcher;
+        this.zk = new ZooKeeper(serverInfo, sessionTimeout, this);
         this.failed = false;
     }
 
@@ -38,12 +54,18 @@ public class ZooKeeperMonitor implements Watcher, DataCallback, Create2Callback,
         // // handle if a node exists or not
         // void handleExists(String path, boolean exists);
 
-        // handle getting data from a node
-        void handleGetDataCallback(String path, byte[] data);
+        // handle getting data from a node (data and stat are null if the node does not exist)
+        void handleGetDataCallback(String path, byte[] data, Stat stat);
 
         // // handle getting children from a node
         // void handleGetChildren(String path, List<String> children);
 
+        // handle the result of an asynchronous create or setData call for a node (data is null unless it was an upsert)
+        void handleWriteCallback(String path, byte[] data, boolean created, Stat stat);
+
+        // handle an asynchronous upsert of a node that failed, given the data it tried to write
+        void handleWriteError(String path, byte[] data, Code reasonCode);
+
         // handle if the ZooKeeper session is no longer valid
         void handleSessionClose(Code reasonCode);
 
@@ -70,23 +92,72 @@ public class ZooKeeperMonitor implements Watcher, DataCallback, Create2Callback,
     //     zk.exists(path, watch, this, null);
     // }
 
+    // synchronous call to ZooKeeper to check if a node exists, leaving a watch for its creation even if it doesn't
+    public boolean syncExistsWatched(String path) throws KeeperException, InterruptedException {
+        return zk.exists(path, true) != null;
+    }
+
+    // synchronous call to ZooKeeper to check if a node exists, leaving a watch with a specific watcher instead of this monitor
+    public boolean syncExists(String path, Watcher watcher) throws KeeperException, InterruptedException {
+        return zk.exists(path, watcher) != null;
+    }
+
+    // makes the server this session is connected to catch up with the leader, waiting until it has
+    // used before reads that must see writes made through other sessions (e.g. when connected to an observer)
+    public void syncSync(String path) throws KeeperException, InterruptedException {
+
+        CountDownLatch synced = new CountDownLatch(1);
+        int result[] = new int[1];
+
+        zk.sync(path, (rc, syncedPath, ctx) -> {
+            result[0] = rc;
+            synced.countDown();
+        }, null);
+
+        synced.await();
+
+        if (Code.get(result[0]) != Code.OK) {
+            throw KeeperException.create(Code.get(result[0]), path);
+        }
+    }
+
     // synchronous call to ZooKeeper to get the data of a node
     public byte[] syncGetData(String path, boolean watch) throws KeeperException, InterruptedException {
         // System.out.printf("ZKMonitor: starting sync get data call for path: %s\n", path);
         return zk.getData(path, watch, null);
     }
 
+    // synchronous call to ZooKeeper to get the data of a node, filling in the node's stat
+    public byte[] syncGetData(String path, boolean watch, Stat stat) throws KeeperException, InterruptedException {
+        return zk.getData(path, watch, stat);
+    }
+
+    // synchronous call to ZooKeeper to get the data of a node, sending the watch event to the given watcher instead of the listener
+    public byte[] syncGetData(String path, Watcher watcher, Stat stat) throws KeeperException, InterruptedException {
+        return zk.getData(path, watcher, stat);
+    }
+
     // asynchronous call to ZooKeeper to get the data of a node
     public void asyncGetData(String path, boolean watch) throws KeeperException, InterruptedException {
         zk.getData(path, watch, this, null);
     }
 
+    // asynchronous call to ZooKeeper to get the data of a node, sending the result to the given callback instead of the listener
+    public void asyncGetData(String path, boolean watch, DataCallback callback, Object ctx) {
+        zk.getData(path, watch, callback, ctx);
+    }
+
     // synchronous call to ZooKeeper to get the children of a node
     public List<String> syncGetChildren(String path, boolean watch) throws KeeperException, InterruptedException {
         // System.out.printf("ZKMonitor: starting sync get children call for path: %s\n", path);
         return zk.getChildren(path, watch, null);
     }
 
+    // synchronous call to ZooKeeper to get the children of a node, sending the watch event to the given watcher instead of the listener
+    public List<String> syncGetChildren(String path, Watcher watcher) throws KeeperException, InterruptedException {
+        return zk.getChildren(path, watcher, null);
+    }
+
     // asynchronous call to ZooKeeper to get the children of a node
     // public void asyncGetChildren(String path, boolean watch) throws KeeperException, InterruptedException {
     //     zk.getChildren(path, watch, this, null);
@@ -98,22 +169,79 @@ public class ZooKeeperMonitor implements Watcher, DataCallback, Create2Callback,
         return zk.create(path, data, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
     }
 
+    // synchronous call to ZooKeeper to create a new node, filling in the new node's stat
+    public String syncCreate(String path, boolean watch, byte[] data, Stat stat) throws KeeperException, InterruptedException {
+        return zk.create(path, data, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, stat);
+    }
+
+    // synchronous call to ZooKeeper to create a new node with the given mode, returning the actual path (e.g. for sequential nodes)
+    public String syncCreate(String path, byte[] data, CreateMode mode) throws KeeperException, InterruptedException {
+        return zk.create(path, data, Ids.OPEN_ACL_UNSAFE, mode);
+    }
+
     // asynchronous call to ZooKeeper to create a new node
     public void asyncCreate(String path, boolean watch, byte[] data) throws KeeperException, InterruptedException {
         zk.create(path, data, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, this, null);
     }
 
+    // synchronous call to ZooKeeper that creates a node, or sets its data if it already exists
+    // likelyExists picks which request is tried first, so only one round trip is needed when the guess is right
+    public Stat syncUpsert(String path, byte[] data, boolean likelyExists) throws KeeperException, InterruptedException {
+
+        if (likelyExists) {
+            try {
+                return zk.setData(path, data, -1);
+            } catch (KeeperException.NoNodeException e) {
+                // the node was not created yet, so fall through to creating it
+            }
+        }
+
+        try {
+            Stat stat = new Stat();
+            zk.create(path, data, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, stat);
+            return stat;
+        } catch (KeeperException.NodeExistsException e) {
+            return zk.setData(path, data, -1);
+        }
+    }
+
+    // asynchronous call to ZooKeeper that creates a node, or sets its data if it already exists
+    // the data is passed as the context so the create and setData callbacks can fall back to the other request
+    public void asyncUpsert(String path, byte[] data, boolean likelyExists) {
+
+        if (likelyExists) {
+            zk.setData(path, data, -1, this, data);
+        } else {
+            zk.create(path, data, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, this, data);
+        }
+    }
+
+    // synchronous call to ZooKeeper to run several operations as one transaction, either all of them succeed or none do
+    public List<OpResult> syncMulti(List<Op> ops) throws KeeperException, InterruptedException {
+        return zk.multi(ops);
+    }
+
+    // asynchronous call to ZooKeeper to run several operations as one transaction, sending the result to the given callback
+    public void asyncMulti(List<Op> ops, MultiCallback callback, Object ctx) {
+        zk.multi(ops, callback, ctx);
+    }
+
     // synchronous call to ZooKeeper to set the data of a node
-    public void syncSetData(String path, byte[] data) throws KeeperException, InterruptedException {
+    public Stat syncSetData(String path, byte[] data) throws KeeperException, InterruptedException {
         // System.out.printf("ZKMonitor: starting sync setData for path: %s\n", path);
-        zk.setData(path, data, -1); // returns stat object, but i don't really need that
+        return zk.setData(path, data, -1);
+    }
+
+    // synchronous call to ZooKeeper to set the data of a node only if its version matches
+    public Stat syncSetData(String path, byte[] data, int version) throws KeeperException, InterruptedException {
+        return zk.setData(path, data, version);
     }
 
     // synchronous call to ZooKeeper to set the data of a node
     public void asyncSetData(String path, byte[] data) throws KeeperException, InterruptedException {
         // System.out.printf("ZKMonitor: starting sync setData for path: %s\n", path);
         // zk.setData(path, data, -1); // returns stat object, but it is not needed
-        zk.setData(path, data, -1, this, data);
+        zk.setData(path, data, -1, this, null);
     } 
     
     /* callback methods */
@@ -130,19 +258,22 @@ public class ZooKeeperMonitor implements Watcher, DataCallback, Create2Callback,
             case SyncConnected:
                 break;
             case Expired:
-                listener.handleSessionStateUpdate(state.toString().trim());
+                dispatcher.dispatch(null, () -> listener.handleSessionStateUpdate(state.toString().trim()));
                 break;
             case AuthFailed:
-                listener.handleSessionStateUpdate(state.toString().trim());
+                dispatcher.dispatch(null, () -> listener.handleSessionStateUpdate(state.toString().trim()));
                 break;
             default:
                 failed = true;
                 break;
             }
-        } else if (event.getType() == Event.EventType.NodeChildrenChanged) {
-            listener.handleWatchedGetChildren(event.getPath());
+        } else if (event.getType() == Event.EventType.NodeChildrenChanged || event.getType() == Event.EventType.NodeCreated
+                || event.getType() == Event.EventType.NodeDeleted) {
+            // a watched tiles node being created is handled the same as its list of children changing, and so is it being
+            // deleted once its chunk was emptied, which leaves a watch for it to be created again
+            dispatcher.dispatch(event.getPath(), () -> listener.handleWatchedGetChildren(event.getPath()));
         } else if (event.getType() == Event.EventType.NodeDataChanged) {
-            listener.handleWatchedGetData(event.getPath());
+            dispatcher.dispatch(event.getPath(), () -> listener.handleWatchedGetData(event.getPath()));
         }
     }
 
@@ -159,26 +290,41 @@ public class ZooKeeperMonitor implements Watcher, DataCallback, Create2Callback,
         // check the resulting reason code
         switch (reasonCode) {
             case OK:
+                dispatcher.dispatch(path, () -> listener.handleGetDataCallback(path, data, stat));
                 break;
             case NONODE:
-                data = null;
+                dispatcher.dispatch(path, () -> listener.handleGetDataCallback(path, null, null));
                 break;
             default:
-                listener.handleSessionClose(Code.get(rc));
-                return;
+                dispatcher.dispatch(path, () -> listener.handleSessionClose(reasonCode));
+                break;
             }
-
-        listener.handleGetDataCallback(path, data);
     }
 
     // CreateCallback interface implementation - called when ZooKeeper returns the path of a newly created node from an async call
     public void processResult(int rc, String path, Object ctx, String name, Stat stat) {
-        // no need to forward results to the client
+
+        // only successful creates are forwarded, an upsert whose node already exists falls back to a setData
+        if (Code.get(rc) == Code.OK) {
+            dispatcher.dispatch(path, () -> listener.handleWriteCallback(path, ctx instanceof byte[] ? (byte[]) ctx : null, true, stat));
+        } else if (Code.get(rc) == Code.NODEEXISTS && ctx instanceof byte[]) {
+            zk.setData(path, (byte[]) ctx, -1, this, ctx);
+        } else if (ctx instanceof byte[]) {
+            dispatcher.dispatch(path, () -> listener.handleWriteError(path, (byte[]) ctx, Code.get(rc)));
+        }
     }
 
     // StatCallback interface implementation - called when ZooKeeper returns a Stat object from an async getData call
     public void processResult(int rc, String path, Object ctx, Stat stat) {
-        // no need to forward these results to the client as they are not used
+
+        if (Code.get(rc) == Code.OK) {
+            dispatcher.dispatch(path, () -> listener.handleWriteCallback(path, ctx instanceof byte[] ? (byte[]) ctx : null, false, stat));
+        } else if (Code.get(rc) == Code.NONODE && ctx instanceof byte[]) {
+            // an upsert whose node does not exist yet falls back to a create
+            zk.create(path, (byte[]) ctx, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, this, ctx);
+        } else if (ctx instanceof byte[]) {
+            dispatcher.dispatch(path, () -> listener.handleWriteError(path, (byte[]) ctx, Code.get(rc)));
+        }
     }
 
     // // ChildrenCallback interface implementation - called when ZooKeeper returns a node's list of children from an async call